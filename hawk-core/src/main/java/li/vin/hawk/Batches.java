@@ -0,0 +1,145 @@
+/*
+ *    Copyright 2013 Weald Technology Trading Limited
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ */
+
+package li.vin.hawk;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+
+/*package*/ final class Batches
+{
+  /**
+   * Default number of items handled by one task when a batch is split
+   */
+  static final int DEFAULT_CHUNK_SIZE = 256;
+
+  /**
+   * Work on a contiguous range of a batch.
+   */
+  interface Chunk
+  {
+    void run(int from, int to);
+  }
+
+  /**
+   * Split a batch into chunks and run them on an executor, waiting for all
+   * of them to complete. Small batches, or batches without an executor, run
+   * on the calling thread.
+   *
+   * @param count the number of items in the batch
+   * @param chunkSize the number of items per chunk
+   * @param executor the executor, or <code>null</code> to run on the calling thread
+   * @param chunk the work to do for each chunk
+   */
+  static void run(final int count, final int chunkSize, final ExecutorService executor, final Chunk chunk)
+  {
+    if (executor == null || count <= chunkSize)
+    {
+      chunk.run(0, count);
+      return;
+    }
+
+    final List<Future<?>> futures = new ArrayList<Future<?>>(count / chunkSize + 1);
+    for (int start = 0; start < count; start += chunkSize)
+    {
+      final int from = start;
+      final int to = Math.min(count, start + chunkSize);
+      futures.add(executor.submit(new Runnable()
+      {
+        @Override
+        public void run()
+        {
+          chunk.run(from, to);
+        }
+      }));
+    }
+    for (final Future<?> future : futures)
+    {
+      await(future);
+    }
+  }
+
+  /**
+   * Run a batch that has already been split into chunks on an executor,
+   * waiting for all of them to complete. Chunk <code>i</code> covers the
+   * items from <code>bounds[i]</code> up to <code>bounds[i + 1]</code>. A
+   * single chunk, or a batch without an executor, runs on the calling
+   * thread.
+   *
+   * @param bounds the start of each chunk, followed by the end of the batch
+   * @param executor the executor, or <code>null</code> to run on the calling thread
+   * @param chunk the work to do for each chunk
+   */
+  static void run(final int[] bounds, final ExecutorService executor, final Chunk chunk)
+  {
+    final int chunks = bounds.length - 1;
+    if (executor == null || chunks <= 1)
+    {
+      if (chunks > 0)
+      {
+        chunk.run(bounds[0], bounds[chunks]);
+      }
+      return;
+    }
+
+    final List<Future<?>> futures = new ArrayList<Future<?>>(chunks);
+    for (int i = 0; i < chunks; i++)
+    {
+      final int from = bounds[i];
+      final int to = bounds[i + 1];
+      futures.add(executor.submit(new Runnable()
+      {
+        @Override
+        public void run()
+        {
+          chunk.run(from, to);
+        }
+      }));
+    }
+    for (final Future<?> future : futures)
+    {
+      await(future);
+    }
+  }
+
+  /**
+   * Wait for a task, rethrowing its failure.
+   */
+  static <T> T await(final Future<T> future)
+  {
+    try
+    {
+      return future.get();
+    }
+    catch (InterruptedException ie)
+    {
+      Thread.currentThread().interrupt();
+      throw new HawkError("Interrupted while waiting for batch", ie);
+    }
+    catch (ExecutionException ee)
+    {
+      if (ee.getCause() instanceof RuntimeException) {
+        throw (RuntimeException)ee.getCause();
+      }
+      throw new HawkError("Batch failed", ee.getCause());
+    }
+  }
+
+  private Batches() {}
+}
@@ -0,0 +1,385 @@
+/*
+ *    Copyright 2013 Weald Technology Trading Limited
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ */
+
+package li.vin.hawk;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A client for a nonce store shared between servers, such as a networked
+ * cache behind a load balancer.
+ * <p>
+ * Nonces added by concurrent requests are coalesced into batches: while one
+ * batch is on the wire, the nonces that arrive queue up and go out together
+ * in the next one. Several batches can be in flight at once, so the round
+ * trip to the shared store is paid per batch rather than per request.
+ */
+public class BatchingNonceStore implements NonceStore
+{
+  /**
+   * The remote side of a batching nonce store.
+   */
+  public interface Backend
+  {
+    /**
+     * Atomically record a batch of nonces, each one only if it is not
+     * already present.
+     *
+     * @param nonces the nonces to record
+     * @return for each nonce, in order, <code>true</code> if it had not been
+     *         seen before
+     * @throws IOException if the store cannot be reached
+     */
+    boolean[] addAll(List<HawkNonce> nonces) throws IOException;
+  }
+
+  public static final int DEFAULT_MAX_BATCH_SIZE = 256;
+  public static final int DEFAULT_PIPELINE_DEPTH = 4;
+  public static final long DEFAULT_TIMEOUT_MILLIS = 5000L;
+  public static final int DEFAULT_MAX_QUEUE_SIZE = 65536;
+
+  private final Backend backend;
+  private final int maxBatchSize;
+  private final long timeoutMillis;
+  private final BlockingQueue<PendingNonce> queue;
+  private final Thread[] senders;
+  // Guarded by this, so that no nonce is queued after close() drains the queue
+  private volatile boolean closed = false;
+
+  private final AtomicLong batchCount = new AtomicLong();
+  private final AtomicLong nonceCount = new AtomicLong();
+
+  /**
+   * Create a batching nonce store with default batch size and pipeline depth.
+   *
+   * @param backend the shared store
+   */
+  public BatchingNonceStore(final Backend backend)
+  {
+    this(backend, DEFAULT_MAX_BATCH_SIZE, DEFAULT_PIPELINE_DEPTH);
+  }
+
+  /**
+   * Create a batching nonce store.
+   *
+   * @param backend the shared store
+   * @param maxBatchSize the largest number of nonces to send in one batch
+   * @param pipelineDepth the number of batches that can be in flight at once
+   */
+  public BatchingNonceStore(final Backend backend, final int maxBatchSize, final int pipelineDepth)
+  {
+    this(backend, maxBatchSize, pipelineDepth, DEFAULT_TIMEOUT_MILLIS);
+  }
+
+  /**
+   * Create a batching nonce store.
+   *
+   * @param backend the shared store
+   * @param maxBatchSize the largest number of nonces to send in one batch
+   * @param pipelineDepth the number of batches that can be in flight at once
+   * @param timeoutMillis how long {@link #add(HawkNonce)} waits for the
+   *          shared store before failing
+   */
+  public BatchingNonceStore(final Backend backend, final int maxBatchSize, final int pipelineDepth, final long timeoutMillis)
+  {
+    this(backend, maxBatchSize, pipelineDepth, timeoutMillis, DEFAULT_MAX_QUEUE_SIZE);
+  }
+
+  /**
+   * Create a batching nonce store.
+   *
+   * @param backend the shared store
+   * @param maxBatchSize the largest number of nonces to send in one batch
+   * @param pipelineDepth the number of batches that can be in flight at once
+   * @param timeoutMillis how long {@link #add(HawkNonce)} waits for the
+   *          shared store before failing
+   * @param maxQueueSize the largest number of nonces waiting to be sent;
+   *          once that many are waiting, for example because the shared
+   *          store has stalled, further nonces fail at once
+   */
+  public BatchingNonceStore(final Backend backend,
+                            final int maxBatchSize,
+                            final int pipelineDepth,
+                            final long timeoutMillis,
+                            final int maxQueueSize)
+  {
+    if (backend == null) {
+      throw new NullPointerException("The backend is required");
+    }
+    if (maxBatchSize < 1) {
+      throw new IllegalArgumentException("The maximum batch size must be positive");
+    }
+    if (pipelineDepth < 1) {
+      throw new IllegalArgumentException("The pipeline depth must be positive");
+    }
+    if (timeoutMillis < 1) {
+      throw new IllegalArgumentException("The timeout must be positive");
+    }
+    if (maxQueueSize < 1) {
+      throw new IllegalArgumentException("The maximum queue size must be positive");
+    }
+    this.queue = new LinkedBlockingQueue<PendingNonce>(maxQueueSize);
+    this.backend = backend;
+    this.maxBatchSize = maxBatchSize;
+    this.timeoutMillis = timeoutMillis;
+    this.senders = new Thread[pipelineDepth];
+    for (int i = 0; i < pipelineDepth; i++)
+    {
+      this.senders[i] = new Thread(new Sender(), "hawk-nonce-sender-" + i);
+      this.senders[i].setDaemon(true);
+      this.senders[i].start();
+    }
+  }
+
+  /**
+   * Always <code>false</code>: asking the shared store would cost the round
+   * trip that batching is there to avoid, and {@link #add(HawkNonce)} is
+   * authoritative.
+   */
+  @Override
+  public boolean contains(final HawkNonce nonce)
+  {
+    return false;
+  }
+
+  /**
+   * Record a nonce, waiting no longer than the timeout for the shared store,
+   * so that a stalled store fails requests rather than blocking them.
+   */
+  @Override
+  public boolean add(final HawkNonce nonce) throws HawkError
+  {
+    try
+    {
+      return addAsync(nonce).get(this.timeoutMillis, TimeUnit.MILLISECONDS);
+    }
+    catch (TimeoutException te)
+    {
+      throw new HawkError("Nonce store timed out", te);
+    }
+    catch (InterruptedException ie)
+    {
+      Thread.currentThread().interrupt();
+      throw new HawkError("Interrupted while recording nonce", ie);
+    }
+    catch (ExecutionException ee)
+    {
+      throw new HawkError("Nonce store unavailable", ee.getCause());
+    }
+  }
+
+  /**
+   * Record a nonce without waiting for the shared store.
+   *
+   * @param nonce the nonce
+   * @return the result of {@link #add(HawkNonce)}, once the batch holding the
+   *         nonce has completed
+   */
+  public Future<Boolean> addAsync(final HawkNonce nonce)
+  {
+    if (nonce == null) {
+      throw new NullPointerException("The nonce is required");
+    }
+    final PendingNonce pending = new PendingNonce(nonce);
+    synchronized (this)
+    {
+      if (this.closed)
+      {
+        pending.fail(new IOException("Nonce store is closed"));
+      }
+      else if (!this.queue.offer(pending))
+      {
+        pending.fail(new IOException("Nonce store queue is full"));
+      }
+    }
+    return pending;
+  }
+
+  /**
+   * Stop sending batches. Nonces that have not been sent fail.
+   */
+  public void close()
+  {
+    final List<PendingNonce> remaining = new ArrayList<PendingNonce>();
+    synchronized (this)
+    {
+      this.closed = true;
+      this.queue.drainTo(remaining);
+    }
+    for (final Thread sender : this.senders)
+    {
+      sender.interrupt();
+    }
+    for (final PendingNonce pending : remaining)
+    {
+      pending.fail(new IOException("Nonce store is closed"));
+    }
+  }
+
+  /**
+   * Obtain the number of batches sent to the shared store.
+   *
+   * @return the number of batches
+   */
+  public long getBatchCount()
+  {
+    return this.batchCount.get();
+  }
+
+  /**
+   * Obtain the number of nonces sent to the shared store.
+   *
+   * @return the number of nonces
+   */
+  public long getNonceCount()
+  {
+    return this.nonceCount.get();
+  }
+
+  private void send(final List<PendingNonce> batch)
+  {
+    final List<HawkNonce> nonces = new ArrayList<HawkNonce>(batch.size());
+    for (final PendingNonce pending : batch)
+    {
+      nonces.add(pending.nonce);
+    }
+    this.batchCount.incrementAndGet();
+    this.nonceCount.addAndGet(nonces.size());
+
+    try
+    {
+      final boolean[] results = this.backend.addAll(nonces);
+      if (results == null || results.length != nonces.size()) {
+        throw new IOException("Nonce store returned " + (results == null ? "no" : results.length) +
+                              " results for " + nonces.size() + " nonces");
+      }
+      for (int i = 0; i < results.length; i++)
+      {
+        batch.get(i).complete(results[i]);
+      }
+    }
+    catch (Throwable t)
+    {
+      for (final PendingNonce pending : batch)
+      {
+        pending.fail(t);
+      }
+    }
+  }
+
+  private final class Sender implements Runnable
+  {
+    @Override
+    public void run()
+    {
+      final List<PendingNonce> batch = new ArrayList<PendingNonce>(maxBatchSize);
+      while (!closed)
+      {
+        try
+        {
+          batch.add(queue.take());
+        }
+        catch (InterruptedException ie)
+        {
+          break;
+        }
+        queue.drainTo(batch, maxBatchSize - 1);
+        send(batch);
+        batch.clear();
+      }
+    }
+  }
+
+  /**
+   * A nonce waiting for its batch to complete.
+   */
+  private static final class PendingNonce implements Future<Boolean>
+  {
+    private final HawkNonce nonce;
+    private final CountDownLatch done = new CountDownLatch(1);
+    private volatile boolean result;
+    private volatile Throwable failure;
+
+    PendingNonce(final HawkNonce nonce)
+    {
+      this.nonce = nonce;
+    }
+
+    void complete(final boolean result)
+    {
+      this.result = result;
+      this.done.countDown();
+    }
+
+    void fail(final Throwable failure)
+    {
+      this.failure = failure;
+      this.done.countDown();
+    }
+
+    @Override
+    public boolean cancel(final boolean mayInterruptIfRunning)
+    {
+      return false;
+    }
+
+    @Override
+    public boolean isCancelled()
+    {
+      return false;
+    }
+
+    @Override
+    public boolean isDone()
+    {
+      return this.done.getCount() == 0;
+    }
+
+    @Override
+    public Boolean get() throws InterruptedException, ExecutionException
+    {
+      this.done.await();
+      return result();
+    }
+
+    @Override
+    public Boolean get(final long timeout, final TimeUnit unit) throws InterruptedException, ExecutionException, TimeoutException
+    {
+      if (!this.done.await(timeout, unit)) {
+        throw new TimeoutException();
+      }
+      return result();
+    }
+
+    private Boolean result() throws ExecutionException
+    {
+      if (this.failure != null) {
+        throw new ExecutionException(this.failure);
+      }
+      return this.result;
+    }
+  }
+}
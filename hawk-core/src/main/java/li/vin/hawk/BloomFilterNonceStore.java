@@ -0,0 +1,289 @@
+/*
+ *    Copyright 2013 Weald Technology Trading Limited
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ */
+
+package li.vin.hawk;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A probabilistic front for another nonce store.
+ * <p>
+ * Nearly every nonce a server sees is fresh, and a Bloom filter can say so
+ * without touching the exact store. Only nonces the filter has possibly seen
+ * fall through to the exact store's {@link NonceStore#contains(HawkNonce)}.
+ * Additions always reach the exact store, which remains the authority on
+ * whether a nonce is new; the filter can only make the pre-check cheaper, so
+ * it never causes a request to be accepted or rejected wrongly.
+ * <p>
+ * The filter is split into slices by nonce timestamp. Slices are recycled as
+ * time moves on, so the filter only ever covers the timestamp window and its
+ * size does not grow. All updates are lock-free.
+ */
+public class BloomFilterNonceStore implements NonceStore
+{
+  public static final double DEFAULT_FALSE_POSITIVE_RATE = 0.01;
+
+  // Slices covering the window; more slices means less memory held for
+  // expired timestamps but more frequent recycling
+  private static final int SLICES_PER_WINDOW = 6;
+
+  private final NonceStore exact;
+  private final double falsePositiveRate;
+  private final long sliceSeconds;
+  private final int sliceBits;
+  private final int hashCount;
+  private final AtomicLongArray[] slices;
+  private final AtomicLongArray sliceEpochs;
+
+  private final AtomicLong lookupCount = new AtomicLong();
+  private final AtomicLong fallThroughCount = new AtomicLong();
+  private final AtomicLong confirmedCount = new AtomicLong();
+
+  /**
+   * Create a filtered nonce store with the default false positive rate.
+   *
+   * @param exact the exact store behind the filter
+   * @param window the server's timestamp skew, in seconds
+   * @param expectedRate the expected number of requests per second
+   */
+  public BloomFilterNonceStore(final NonceStore exact, final long window, final long expectedRate)
+  {
+    this(exact, window, expectedRate, DEFAULT_FALSE_POSITIVE_RATE);
+  }
+
+  /**
+   * Create a filtered nonce store.
+   *
+   * @param exact the exact store behind the filter
+   * @param window the server's timestamp skew, in seconds
+   * @param expectedRate the expected number of requests per second
+   * @param falsePositiveRate the target rate at which fresh nonces fall
+   *          through to the exact store, between 0 and 1
+   */
+  public BloomFilterNonceStore(final NonceStore exact,
+                               final long window,
+                               final long expectedRate,
+                               final double falsePositiveRate)
+  {
+    if (exact == null) {
+      throw new NullPointerException("The exact store is required");
+    }
+    if (window < 0) {
+      throw new IllegalArgumentException("The window must not be negative");
+    }
+    if (expectedRate < 1) {
+      throw new IllegalArgumentException("The expected rate must be positive");
+    }
+    if (!(falsePositiveRate > 0.0 && falsePositiveRate < 1.0)) {
+      throw new IllegalArgumentException("The false positive rate must be between 0 and 1");
+    }
+    this.exact = exact;
+    this.falsePositiveRate = falsePositiveRate;
+
+    // Timestamps are accepted either side of now, so the filter has to cover
+    // twice the window, plus a slice that is being recycled
+    this.sliceSeconds = Math.max(1L, (2 * window + SLICES_PER_WINDOW - 1) / SLICES_PER_WINDOW);
+    final int sliceCount = (int)((2 * window) / this.sliceSeconds) + 2;
+
+    // Standard Bloom filter sizing for the nonces expected in one slice
+    final double expectedNonces = (double)expectedRate * this.sliceSeconds;
+    final double bits = -expectedNonces * Math.log(falsePositiveRate) / (Math.log(2) * Math.log(2));
+    final long words = Math.min((long)Math.ceil(bits / 64), Integer.MAX_VALUE / 64);
+    this.sliceBits = (int)words * 64;
+    this.hashCount = Math.max(1, (int)Math.round(this.sliceBits / expectedNonces * Math.log(2)));
+
+    this.slices = new AtomicLongArray[sliceCount];
+    this.sliceEpochs = new AtomicLongArray(sliceCount);
+    for (int i = 0; i < sliceCount; i++)
+    {
+      this.slices[i] = new AtomicLongArray((int)words);
+      this.sliceEpochs.set(i, -1L);
+    }
+  }
+
+  @Override
+  public boolean contains(final HawkNonce nonce)
+  {
+    this.lookupCount.incrementAndGet();
+    final long epoch = epoch(nonce);
+    final int index = sliceIndex(epoch);
+    final long sliceEpoch = this.sliceEpochs.get(index);
+    if (sliceEpoch < epoch)
+    {
+      // Nothing has been added for this slice yet
+      return false;
+    }
+    if (sliceEpoch == epoch && !mightContain(this.slices[index], nonce))
+    {
+      return false;
+    }
+
+    // Possibly seen, or so old that its slice has been recycled
+    this.fallThroughCount.incrementAndGet();
+    final boolean seen = this.exact.contains(nonce);
+    if (seen)
+    {
+      this.confirmedCount.incrementAndGet();
+    }
+    return seen;
+  }
+
+  @Override
+  public boolean add(final HawkNonce nonce) throws HawkError
+  {
+    final AtomicLongArray slice = slice(epoch(nonce));
+    if (slice != null)
+    {
+      final long hash = nonce.fingerprint();
+      final int h1 = (int)hash;
+      final int h2 = (int)(hash >>> 32);
+      for (int i = 0; i < this.hashCount; i++)
+      {
+        setBit(slice, bitIndex(h1, h2, i));
+      }
+    }
+    return this.exact.add(nonce);
+  }
+
+  public double getFalsePositiveRate()
+  {
+    return this.falsePositiveRate;
+  }
+
+  /**
+   * Obtain the number of pre-checks made against the filter.
+   *
+   * @return the number of pre-checks
+   */
+  public long getLookupCount()
+  {
+    return this.lookupCount.get();
+  }
+
+  /**
+   * Obtain the number of pre-checks that fell through to the exact store.
+   *
+   * @return the number of pre-checks that fell through
+   */
+  public long getFallThroughCount()
+  {
+    return this.fallThroughCount.get();
+  }
+
+  /**
+   * Obtain the number of pre-checks that the exact store confirmed as
+   * replays. Fall-throughs that were not confirmed are false positives.
+   *
+   * @return the number of confirmed replays
+   */
+  public long getConfirmedCount()
+  {
+    return this.confirmedCount.get();
+  }
+
+  /**
+   * Obtain the size of the filter.
+   *
+   * @return the number of bits held across all slices
+   */
+  public long getFilterBits()
+  {
+    return (long)this.sliceBits * this.slices.length;
+  }
+
+  private long epoch(final HawkNonce nonce)
+  {
+    return nonce.getTimestamp() / this.sliceSeconds;
+  }
+
+  private int sliceIndex(final long epoch)
+  {
+    final int index = (int)(epoch % this.slices.length);
+    return index < 0 ? index + this.slices.length : index;
+  }
+
+  /**
+   * Obtain the slice for an epoch, recycling the slice of an older epoch if
+   * necessary.
+   *
+   * @return the slice, or <code>null</code> if the epoch is older than the
+   *         one now held in its slice
+   */
+  private AtomicLongArray slice(final long epoch)
+  {
+    final int index = sliceIndex(epoch);
+    while (true)
+    {
+      final long sliceEpoch = this.sliceEpochs.get(index);
+      if (sliceEpoch == epoch)
+      {
+        return this.slices[index];
+      }
+      if (sliceEpoch > epoch)
+      {
+        return null;
+      }
+      if (this.sliceEpochs.compareAndSet(index, sliceEpoch, epoch))
+      {
+        // Bits set by a racing writer during the clear are lost, which only
+        // means a later pre-check may miss; the exact store still decides
+        final AtomicLongArray slice = this.slices[index];
+        for (int i = 0; i < slice.length(); i++)
+        {
+          slice.set(i, 0L);
+        }
+        return slice;
+      }
+    }
+  }
+
+  private boolean mightContain(final AtomicLongArray slice, final HawkNonce nonce)
+  {
+    final long hash = nonce.fingerprint();
+    final int h1 = (int)hash;
+    final int h2 = (int)(hash >>> 32);
+    for (int i = 0; i < this.hashCount; i++)
+    {
+      final int bit = bitIndex(h1, h2, i);
+      if ((slice.get(bit >>> 6) & (1L << bit)) == 0)
+      {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  private int bitIndex(final int h1, final int h2, final int i)
+  {
+    final int combined = h1 + i * h2;
+    return (combined & Integer.MAX_VALUE) % this.sliceBits;
+  }
+
+  private static void setBit(final AtomicLongArray slice, final int bit)
+  {
+    final int word = bit >>> 6;
+    final long mask = 1L << bit;
+    while (true)
+    {
+      final long current = slice.get(word);
+      if ((current & mask) != 0 || slice.compareAndSet(word, current, current | mask))
+      {
+        return;
+      }
+    }
+  }
+}
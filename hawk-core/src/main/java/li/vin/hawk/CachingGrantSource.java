@@ -0,0 +1,207 @@
+/*
+ *    Copyright 2013 Weald Technology Trading Limited
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ */
+
+package li.vin.hawk;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A bounded cache in front of another grant source, so that repeated
+ * requests from an application on behalf of the same delegator only resolve
+ * the grant once.
+ * <p>
+ * Only valid grants are cached, and each is held until it expires, so a
+ * revoked grant remains usable for the rest of its lifetime; call
+ * {@link #invalidate(String, String, String)} when revoking. Unknown grants
+ * are always passed through, so newly issued grants take effect at once.
+ * The least recently used grants are evicted first.
+ */
+public class CachingGrantSource implements HawkGrantSource
+{
+  public static final int DEFAULT_MAX_ENTRIES = 1024;
+
+  private final HawkGrantSource source;
+  private final int maxEntries;
+  private final LinkedHashMap<Key, HawkGrant> grants;
+  // Bumped by every invalidation, so that a lookup that raced with one is
+  // not cached; guarded by this
+  private long generation = 0L;
+
+  private final AtomicLong hitCount = new AtomicLong();
+  private final AtomicLong missCount = new AtomicLong();
+
+  /**
+   * Create a cache with the default bound.
+   *
+   * @param source the grant source behind the cache
+   */
+  public CachingGrantSource(final HawkGrantSource source)
+  {
+    this(source, DEFAULT_MAX_ENTRIES);
+  }
+
+  /**
+   * Create a cache.
+   *
+   * @param source the grant source behind the cache
+   * @param maxEntries the largest number of grants to hold
+   */
+  public CachingGrantSource(final HawkGrantSource source, final int maxEntries)
+  {
+    if (source == null) {
+      throw new NullPointerException("The grant source is required");
+    }
+    if (maxEntries < 1) {
+      throw new IllegalArgumentException("The maximum number of entries must be positive");
+    }
+    this.source = source;
+    this.maxEntries = maxEntries;
+    this.grants = new LinkedHashMap<Key, HawkGrant>(16, 0.75f, true)
+    {
+      private static final long serialVersionUID = 1L;
+
+      @Override
+      protected boolean removeEldestEntry(final Map.Entry<Key, HawkGrant> eldest)
+      {
+        return size() > CachingGrantSource.this.maxEntries;
+      }
+    };
+  }
+
+  @Override
+  public HawkGrant getGrant(final String keyId, final String app, final String dlg)
+  {
+    final long now = System.currentTimeMillis() / Hawk.MILLISECONDS_IN_SECONDS;
+    final Key key = new Key(keyId, app, dlg);
+    final long generation;
+    synchronized (this)
+    {
+      generation = this.generation;
+      final HawkGrant grant = this.grants.get(key);
+      if (grant != null)
+      {
+        if (now < grant.getExpires())
+        {
+          this.hitCount.incrementAndGet();
+          return grant;
+        }
+        this.grants.remove(key);
+      }
+    }
+
+    // Resolved outside of the lock, so that a slow source does not hold up hits
+    this.missCount.incrementAndGet();
+    final HawkGrant grant = this.source.getGrant(keyId, app, dlg);
+    if (grant != null && grant.covers(keyId, app, dlg, now))
+    {
+      synchronized (this)
+      {
+        // The grant may have been revoked while it was being resolved
+        if (this.generation == generation)
+        {
+          this.grants.put(key, grant);
+        }
+      }
+    }
+    return grant;
+  }
+
+  /**
+   * Forget a grant, for example because it has been revoked.
+   *
+   * @param keyId the key ID of the grant
+   * @param app the application ID of the grant
+   * @param dlg the delegating application ID of the grant, or <code>null</code>
+   */
+  public synchronized void invalidate(final String keyId, final String app, final String dlg)
+  {
+    this.generation++;
+    this.grants.remove(new Key(keyId, app, dlg));
+  }
+
+  /**
+   * Obtain the number of lookups answered from the cache.
+   *
+   * @return the number of hits
+   */
+  public long getHitCount()
+  {
+    return this.hitCount.get();
+  }
+
+  /**
+   * Obtain the number of lookups passed to the grant source.
+   *
+   * @return the number of misses
+   */
+  public long getMissCount()
+  {
+    return this.missCount.get();
+  }
+
+  /**
+   * Obtain the number of grants held.
+   *
+   * @return the number of grants
+   */
+  public synchronized int size()
+  {
+    return this.grants.size();
+  }
+
+  private static final class Key
+  {
+    private final String keyId;
+    private final String app;
+    private final String dlg;
+    private final int hashCode;
+
+    Key(final String keyId, final String app, final String dlg)
+    {
+      if (keyId == null) {
+        throw new NullPointerException("Key ID is required but not supplied");
+      }
+      if (app == null) {
+        throw new NullPointerException("Application ID is required but not supplied");
+      }
+      this.keyId = keyId;
+      this.app = app;
+      this.dlg = dlg;
+      this.hashCode = (keyId.hashCode() * 31 + app.hashCode()) * 31 + (dlg == null ? 0 : dlg.hashCode());
+    }
+
+    @Override
+    public boolean equals(final Object that)
+    {
+      if (!(that instanceof Key)) {
+        return false;
+      }
+      final Key other = (Key)that;
+      return this.hashCode == other.hashCode &&
+             this.keyId.equals(other.keyId) &&
+             this.app.equals(other.app) &&
+             (this.dlg == null ? other.dlg == null : this.dlg.equals(other.dlg));
+    }
+
+    @Override
+    public int hashCode()
+    {
+      return this.hashCode;
+    }
+  }
+}
@@ -0,0 +1,228 @@
+/*
+ *    Copyright 2013 Weald Technology Trading Limited
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ */
+
+package li.vin.hawk;
+
+import java.security.InvalidKeyException;
+import java.security.NoSuchAlgorithmException;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+
+/**
+ * A source of credentials derived from a master secret, for fleets of
+ * devices too large to store a key for each. Every key ID has credentials,
+ * so any key ID presented to the server is accepted as far as the MAC; it is
+ * the MAC, made with a key that only the master secret can produce, that
+ * authenticates the device.
+ * <p>
+ * The key for a key ID is derived with HKDF (RFC 5869) using the HMAC of
+ * the configured algorithm, without a salt, with the master secret as the
+ * input keying material and <code>hawk-device-key</code>, a zero byte and
+ * the UTF-8 key ID as the context. The derived bytes are Base64-encoded to
+ * form the key. Devices are provisioned with the credentials returned by
+ * {@link #deriveCredentials(String)}.
+ * <p>
+ * Derivation costs an HMAC, so recently derived credentials are held in a
+ * bounded cache that evicts the least recently used first.
+ */
+public class DerivedCredentialsSource implements HawkCredentialsSource
+{
+  public static final int DEFAULT_MAX_ENTRIES = 4096;
+
+  private static final byte[] CONTEXT = {'h', 'a', 'w', 'k', '-', 'd', 'e', 'v', 'i', 'c', 'e', '-', 'k', 'e', 'y', 0};
+
+  private final HawkCredentials.Algorithm algorithm;
+  private final byte[] prk;
+  private final int maxEntries;
+  private final LinkedHashMap<String, HawkCredentials> credentials;
+
+  private final AtomicLong hitCount = new AtomicLong();
+  private final AtomicLong missCount = new AtomicLong();
+
+  private final ThreadLocal<Mac> macs = new ThreadLocal<Mac>()
+  {
+    @Override
+    protected Mac initialValue()
+    {
+      return hmac(algorithm, prk);
+    }
+  };
+
+  /**
+   * Create a source with the default cache bound.
+   *
+   * @param masterSecret the master secret
+   * @param algorithm the algorithm of the derivation and of the credentials
+   */
+  public DerivedCredentialsSource(final byte[] masterSecret, final HawkCredentials.Algorithm algorithm)
+  {
+    this(masterSecret, algorithm, DEFAULT_MAX_ENTRIES);
+  }
+
+  /**
+   * Create a source.
+   *
+   * @param masterSecret the master secret
+   * @param algorithm the algorithm of the derivation and of the credentials
+   * @param maxEntries the largest number of derived credentials to hold
+   */
+  public DerivedCredentialsSource(final byte[] masterSecret,
+                                  final HawkCredentials.Algorithm algorithm,
+                                  final int maxEntries)
+  {
+    if (masterSecret == null) {
+      throw new NullPointerException("The master secret is required");
+    }
+    if (algorithm == null) {
+      throw new NullPointerException("The algorithm is required");
+    }
+    if (masterSecret.length == 0) {
+      throw new IllegalArgumentException("The master secret must not be empty");
+    }
+    if (maxEntries < 1) {
+      throw new IllegalArgumentException("The maximum number of entries must be positive");
+    }
+    this.algorithm = algorithm;
+    this.maxEntries = maxEntries;
+
+    // HKDF-Extract; without a salt the salt is a hash length of zeros
+    final int hashLength = algorithm == HawkCredentials.Algorithm.SHA1 ? 20 : 32;
+    this.prk = hmac(algorithm, new byte[hashLength]).doFinal(masterSecret);
+
+    this.credentials = new LinkedHashMap<String, HawkCredentials>(16, 0.75f, true)
+    {
+      private static final long serialVersionUID = 1L;
+
+      @Override
+      protected boolean removeEldestEntry(final Map.Entry<String, HawkCredentials> eldest)
+      {
+        return size() > DerivedCredentialsSource.this.maxEntries;
+      }
+    };
+  }
+
+  @Override
+  public HawkCredentials getCredentials(final String keyId)
+  {
+    if (keyId == null)
+    {
+      return null;
+    }
+    synchronized (this)
+    {
+      final HawkCredentials cached = this.credentials.get(keyId);
+      if (cached != null)
+      {
+        this.hitCount.incrementAndGet();
+        return cached;
+      }
+    }
+
+    // Derived outside of the lock, so that misses do not hold up hits
+    this.missCount.incrementAndGet();
+    final HawkCredentials derived = deriveCredentials(keyId);
+    synchronized (this)
+    {
+      this.credentials.put(keyId, derived);
+    }
+    return derived;
+  }
+
+  /**
+   * Derive the credentials for a key ID, bypassing the cache. This is how
+   * devices are provisioned.
+   *
+   * @param keyId the key ID
+   * @return the credentials
+   */
+  public HawkCredentials deriveCredentials(final String keyId)
+  {
+    if (keyId == null) {
+      throw new NullPointerException("Key ID is required but not supplied");
+    }
+    // HKDF-Expand, for a single block of output
+    final Mac mac = this.macs.get();
+    mac.update(CONTEXT);
+    mac.update(keyId.getBytes(Hawk.UTF8));
+    mac.update((byte)1);
+    return new HawkCredentials.Builder()
+                              .keyId(keyId)
+                              .key(Hawk.encodeMac(mac.doFinal()))
+                              .algorithm(this.algorithm)
+                              .build();
+  }
+
+  /**
+   * Obtain the number of lookups answered from the cache.
+   *
+   * @return the number of hits
+   */
+  public long getHitCount()
+  {
+    return this.hitCount.get();
+  }
+
+  /**
+   * Obtain the number of lookups that derived credentials.
+   *
+   * @return the number of misses
+   */
+  public long getMissCount()
+  {
+    return this.missCount.get();
+  }
+
+  /**
+   * Obtain the number of credentials held.
+   *
+   * @return the number of credentials
+   */
+  public synchronized int size()
+  {
+    return this.credentials.size();
+  }
+
+  private static Mac hmac(final HawkCredentials.Algorithm algorithm, final byte[] key)
+  {
+    try
+    {
+      final Mac mac = Mac.getInstance(algorithm.getJavaAlgorithm());
+      mac.init(new SecretKeySpec(key, algorithm.getJavaAlgorithm()));
+      return mac;
+    }
+    catch (NoSuchAlgorithmException nsae)
+    {
+      throw new HawkError("Unknown encryption algorithm", nsae);
+    }
+    catch (InvalidKeyException ike)
+    {
+      throw new HawkError("Invalid key", ike);
+    }
+  }
+
+  // Standard object methods follow
+  @Override
+  public String toString()
+  {
+    return super.toString() + '{' +
+        "algorithm=" + this.algorithm + ' ' +
+        "maxEntries=" + this.maxEntries + '}';
+  }
+}
@@ -41,7 +41,7 @@ public class Hawk
 
   private static final int DEFAULT_HTTP_PORT = 80;
   private static final int DEFAULT_HTTPS_PORT = 443;
-  private static final Charset UTF8 = Charset.forName("UTF-8");
+  static final Charset UTF8 = Charset.forName("UTF-8");
 
   /**
    * Calculate and return a MAC. The MAC is used to sign the method and
@@ -85,6 +85,25 @@ public class Hawk
                                     final String ext,
                                     final String app,
                                     final String dlg)
+  {
+    return encodeMac(calculateRawMAC(credentials, authType, timestamp, uri, nonce, method, hash, ext, app, dlg));
+  }
+
+  /**
+   * Internal method to calculate a MAC as
+   * {@link #calculateMAC(HawkCredentials, AuthType, Long, URI, String, String, String, String, String, String)},
+   * without encoding it
+   */
+  static byte[] calculateRawMAC(final HawkCredentials credentials,
+                                final AuthType authType,
+                                final Long timestamp,
+                                final URI uri,
+                                final String nonce,
+                                final String method,
+                                final String hash,
+                                final String ext,
+                                final String app,
+                                final String dlg)
   {
     // Check that required parameters are present
     if (credentials == null) {
@@ -111,7 +130,78 @@ public class Hawk
       }
     }
 
+    final HawkTracer tracer = HawkTracing.tracer;
+    if (tracer == null)
+    {
+      return rawMac(initMac(credentials), normalize(authType, timestamp, uri, nonce, method, hash, ext, app, dlg));
+    }
+    final long start = System.nanoTime();
+    final String text = normalize(authType, timestamp, uri, nonce, method, hash, ext, app, dlg);
+    tracer.phase(HawkTracer.Phase.NORMALIZE, credentials.getKeyId(), authType, text.length(), System.nanoTime() - start, true);
+    return rawMac(initMac(credentials), text);
+  }
+
+  /**
+   * Build the normalized string that is signed for a request.
+   */
+  static String normalize(final AuthType authType,
+                          final long timestamp,
+                          final URI uri,
+                          final String nonce,
+                          final String method,
+                          final String hash,
+                          final String ext,
+                          final String app,
+                          final String dlg)
+  {
     final StringBuilder sb = new StringBuilder(1024);
+    appendRequestHead(sb, authType, timestamp, uri, nonce, method);
+    appendTail(sb, authType.equals(AuthType.HEADER) ? hash : null, ext, app, dlg);
+    return sb.toString();
+  }
+
+  /**
+   * Write out the part of the normalized string for a request that comes
+   * from the request itself, up to and including the port line.
+   */
+  static void appendRequestHead(final StringBuilder sb,
+                                final AuthType authType,
+                                final long timestamp,
+                                final URI uri,
+                                final String nonce,
+                                final String method)
+  {
+    if (authType.equals(AuthType.MESSAGE)) {
+      throw new IllegalArgumentException("Messages are not signed against a URI");
+    }
+
+    appendHead(sb,
+               authType,
+               timestamp,
+               authType.equals(AuthType.HEADER) ? nonce : null,
+               authType.equals(AuthType.BEWIT) ? "GET" : method.toUpperCase(Locale.ENGLISH),
+               uri.getRawPath(),
+               uri.getRawQuery(),
+               uri.getHost().toLowerCase(Locale.ENGLISH),
+               getPort(uri));
+  }
+
+  /**
+   * Write out the normalized string to sign, up to and including the port
+   * line. All of the values are written as supplied, with <code>null</code>
+   * written as an empty line. The resource is the path, followed by the query
+   * if there is one.
+   */
+  private static void appendHead(final StringBuilder sb,
+                                 final AuthType authType,
+                                 final long timestamp,
+                                 final String nonce,
+                                 final String method,
+                                 final String path,
+                                 final String query,
+                                 final String host,
+                                 final int port)
+  {
     sb.append("hawk.");
     sb.append(HAWKVERSION);
     sb.append('.');
@@ -119,33 +209,43 @@ public class Hawk
     sb.append('\n');
     sb.append(timestamp);
     sb.append('\n');
-    if (authType.equals(AuthType.HEADER))
+    if (nonce != null)
     {
       sb.append(nonce);
     }
     sb.append('\n');
-    if (authType.equals(AuthType.BEWIT))
+    if (method != null)
     {
-      sb.append("GET");
+      sb.append(method);
     }
-    else
+    sb.append('\n');
+    if (path != null)
     {
-      sb.append(method.toUpperCase(Locale.ENGLISH));
+      sb.append(path);
     }
-    sb.append('\n');
-    sb.append(uri.getRawPath());
-    if (uri.getQuery() != null)
+    if (query != null)
     {
       sb.append('?');
-      sb.append(uri.getRawQuery());
+      sb.append(query);
     }
     sb.append('\n');
-    sb.append(uri.getHost().toLowerCase(Locale.ENGLISH));
+    sb.append(host);
     sb.append('\n');
-    sb.append(getPort(uri));
+    sb.append(port);
     sb.append('\n');
-    if ((authType.equals(AuthType.HEADER)) &&
-        (hash != null))
+  }
+
+  /**
+   * Write out the rest of the normalized string to sign. The app and
+   * delegator lines are only present if there is an app.
+   */
+  private static void appendTail(final StringBuilder sb,
+                                 final String hash,
+                                 final String ext,
+                                 final String app,
+                                 final String dlg)
+  {
+    if (hash != null)
     {
       sb.append(hash);
     }
@@ -161,8 +261,80 @@ public class Hawk
       sb.append(checkedDlg);
       sb.append('\n');
     }
+  }
+
+  /**
+   * Calculate and return the MAC for a message, such as one sent over a
+   * queue or a WebSocket. Messages are not tied to a method or resource, so
+   * only the host and port of the channel are signed along with the hash of
+   * the message.
+   *
+   * @param credentials
+   *          Hawk credentials of the sender
+   * @param timestamp
+   *          timestamp of the message
+   * @param nonce
+   *          a random string used to uniquely identify the message
+   * @param host
+   *          the host of the channel
+   * @param port
+   *          the port of the channel
+   * @param hash
+   *          the hash of the message, from
+   *          {@link #calculateMessageHash(HawkCredentials, String)}
+   * @return the MAC
+   */
+  public static String calculateMessageMAC(final HawkCredentials credentials,
+                                           final long timestamp,
+                                           final String nonce,
+                                           final String host,
+                                           final int port,
+                                           final String hash)
+  {
+    if (credentials == null) {
+      throw new NullPointerException("Credentials are required but not supplied");
+    }
+    return calculateMac(credentials, normalizeMessage(timestamp, nonce, host, port, hash));
+  }
 
-    return calculateMac(credentials, sb.toString());
+  /**
+   * Build the normalized string that is signed for a message.
+   */
+  static String normalizeMessage(final long timestamp,
+                                 final String nonce,
+                                 final String host,
+                                 final int port,
+                                 final String hash)
+  {
+    if (nonce == null) {
+      throw new NullPointerException("Nonce is required but not supplied");
+    }
+    if (host == null) {
+      throw new NullPointerException("Host is required but not supplied");
+    }
+    if (hash == null) {
+      throw new NullPointerException("Hash is required but not supplied");
+    }
+
+    final StringBuilder sb = new StringBuilder(256);
+    appendHead(sb, AuthType.MESSAGE, timestamp, nonce, null, null, null, host.toLowerCase(Locale.ENGLISH), port);
+    appendTail(sb, hash, null, null, null);
+    return sb.toString();
+  }
+
+  /**
+   * Calculate the hash of a message. This is the payload MAC of the message
+   * with no content type.
+   *
+   * @param credentials
+   *          Hawk credentials of the sender
+   * @param message
+   *          the message
+   * @return the hash
+   */
+  public static String calculateMessageHash(final HawkCredentials credentials, final String message)
+  {
+    return calculateBodyMac(credentials, "", message);
   }
 
   /**
@@ -223,7 +395,94 @@ public class Hawk
       throw new NullPointerException("Body is required but not supplied");
     }
 
+    final HawkTracer tracer = HawkTracing.tracer;
+    if (tracer == null)
+    {
+      return calculateMac(credentials, normalizeBody(contentType, body));
+    }
+    final long start = System.nanoTime();
+    boolean success = false;
+    try
+    {
+      final String mac = calculateMac(credentials, normalizeBody(contentType, body));
+      success = true;
+      return mac;
+    }
+    finally
+    {
+      tracer.phase(HawkTracer.Phase.PAYLOAD_HASH, credentials == null ? null : credentials.getKeyId(), null,
+                   body.length(), System.nanoTime() - start, success);
+    }
+  }
+
+  /**
+   * Build the normalized string that is signed for a body.
+   */
+  static String normalizeBody(final String contentType, final String body)
+  {
     final StringBuilder sb = new StringBuilder(1024);
+    sb.append(payloadPrefix(contentType));
+    sb.append(body);
+    sb.append('\n');
+    return sb.toString();
+  }
+
+  /**
+   * Obtain a MAC engine primed for a body with a specific content-type. The
+   * caller feeds the raw body bytes to the engine as they become available and
+   * then completes it with {@link #finishBodyMac(Mac)}, which gives the same
+   * result as {@link #calculateBodyMac(HawkCredentials, String, String)} for a
+   * UTF-8 body without holding the body in memory.
+   *
+   * @param credentials
+   *          Hawk credentials of the requestor
+   * @param contentType
+   *          the MIME content type
+   * @return the primed MAC engine
+   */
+  public static Mac startBodyMac(final HawkCredentials credentials, final String contentType)
+  {
+    if (contentType == null) {
+      throw new NullPointerException("Content type is required but not supplied");
+    }
+
+    final Mac mac = initMac(credentials);
+    mac.update(payloadPrefix(contentType).getBytes(UTF8));
+    return mac;
+  }
+
+  /**
+   * Complete a MAC engine obtained from
+   * {@link #startBodyMac(HawkCredentials, String)}.
+   *
+   * @param mac
+   *          the MAC engine that has been fed the body
+   * @return the MAC
+   */
+  public static String finishBodyMac(final Mac mac)
+  {
+    return encodeMac(finishRawBodyMac(mac));
+  }
+
+  /**
+   * Internal method to complete a body MAC without encoding it
+   */
+  static byte[] finishRawBodyMac(final Mac mac)
+  {
+    mac.update((byte)'\n');
+    return mac.doFinal();
+  }
+
+  /**
+   * Build the normalized header that precedes the body in a payload MAC.
+   *
+   * @param contentType
+   *          the MIME content type
+   * @return the normalized header
+   */
+  static String payloadPrefix(final String contentType)
+  {
+    final StringBuilder sb = new StringBuilder(64);
     sb.append("hawk.");
     sb.append(HAWKVERSION);
     sb.append(".payload\n");
@@ -236,10 +495,7 @@ public class Hawk
       sb.append(contentType.toLowerCase(Locale.ENGLISH));
     }
     sb.append('\n');
-    sb.append(body);
-    sb.append('\n');
-
-    return calculateMac(credentials, sb.toString());
+    return sb.toString();
   }
 
   /**
@@ -255,6 +511,66 @@ public class Hawk
    *           MAC
    */
   public static String calculateMac(final HawkCredentials credentials, final String text) throws HawkError
+  {
+    return calculateMac(initMac(credentials), text);
+  }
+
+  /**
+   * Internal method to generate the MAC with an engine that has already been
+   * initialized, so that one engine can be reused for many MACs
+   *
+   * @param mac
+   *          the MAC engine, as returned by {@link #initMac(HawkCredentials)}
+   * @param text
+   *          the compiled string
+   * @return the MAC
+   */
+  static String calculateMac(final Mac mac, final String text)
+  {
+    return encodeMac(rawMac(mac, text));
+  }
+
+  /**
+   * Internal method to generate a MAC without encoding it, for comparison
+   * with {@link HawkBuffers#macEquals(byte[], CharSequence)}
+   */
+  static byte[] rawMac(final Mac mac, final String text)
+  {
+    return mac.doFinal(text.getBytes(UTF8));
+  }
+
+  /**
+   * Internal method to obtain a MAC engine keyed with the credentials
+   *
+   * @param credentials
+   *          Hawk credentials of the requestor
+   * @return the initialized MAC engine
+   * @throws HawkError
+   *           if the algorithm or key of the credentials cannot be used
+   */
+  static Mac initMac(final HawkCredentials credentials) throws HawkError
+  {
+    final HawkTracer tracer = HawkTracing.tracer;
+    if (tracer == null)
+    {
+      return createMac(credentials);
+    }
+    final long start = System.nanoTime();
+    boolean success = false;
+    try
+    {
+      final Mac mac = createMac(credentials);
+      success = true;
+      return mac;
+    }
+    finally
+    {
+      tracer.phase(HawkTracer.Phase.MAC_INIT, credentials == null ? null : credentials.getKeyId(), null,
+                   0L, System.nanoTime() - start, success);
+    }
+  }
+
+  private static Mac createMac(final HawkCredentials credentials) throws HawkError
   {
     try
     {
@@ -262,7 +578,7 @@ public class Hawk
       try
       {
         mac.init(new SecretKeySpec(credentials.getKey().getBytes(UTF8), credentials.getJavaAlgorithm()));
-        return new String(Base64.encode(mac.doFinal(text.getBytes(UTF8)), Base64.NO_WRAP), UTF8);
+        return mac;
       }
       catch (InvalidKeyException e)
       {
@@ -275,6 +591,18 @@ public class Hawk
     }
   }
 
+  /**
+   * Internal method to encode a raw MAC for transmission
+   *
+   * @param raw
+   *          the raw MAC bytes
+   * @return the Base64-encoded MAC
+   */
+  static String encodeMac(final byte[] raw)
+  {
+    return new String(Base64.encode(raw, Base64.NO_WRAP), UTF8);
+  }
+
   /**
    * Calculate and return a bewit. The bewit is used to allow access to a resource
    * when passed to a suitable Hawk server.
@@ -304,21 +632,40 @@ public class Hawk
     if (ttl == null) {
       throw new NullPointerException("TTL is required but not supplied");
     }
-    if (ttl > 0) {
+    if (ttl <= 0) {
       throw new IllegalArgumentException("TTL must be a positive value");
     }
 
-
     // Calculate expiry from ttl and current time
-    Long expiry = System.currentTimeMillis() / MILLISECONDS_IN_SECONDS + ttl;
-    final String mac = Hawk.calculateMAC(credentials, Hawk.AuthType.BEWIT, expiry, uri, null, null, null, ext, null, null);
+    final long expiry = System.currentTimeMillis() / MILLISECONDS_IN_SECONDS + ttl;
+    return generateBewit(initMac(credentials), credentials.getKeyId(), expiry, uri, ext);
+  }
 
-    final StringBuffer sb = new StringBuffer(256);
-    sb.append(credentials.getKeyId());
+  /**
+   * Internal method to calculate a bewit with an initialized MAC engine
+   *
+   * @param mac
+   *          the MAC engine, initialized with the requestor's key
+   * @param keyId
+   *          the requestor's key ID
+   * @param expiry
+   *          the time at which the bewit expires, in seconds
+   * @param uri
+   *          URI of the request, including query parameters if appropriate
+   * @param ext
+   *          optional extra data, or <code>null</code>
+   * @return the bewit
+   */
+  static String generateBewit(final Mac mac, final String keyId, final long expiry, final URI uri, final String ext)
+  {
+    final String bewitMac = calculateMac(mac, normalize(Hawk.AuthType.BEWIT, expiry, uri, null, null, null, ext, null, null));
+
+    final StringBuilder sb = new StringBuilder(256);
+    sb.append(keyId);
     sb.append('\\');
-    sb.append(String.valueOf(expiry));
+    sb.append(expiry);
     sb.append('\\');
-    sb.append(mac);
+    sb.append(bewitMac);
     sb.append('\\');
     if (ext != null)
     {
@@ -337,7 +684,11 @@ public class Hawk
     /**
      * Authentication via a bewit query parameter
      */
-    BEWIT;
+    BEWIT,
+    /**
+     * Authentication of a message outside of an HTTP request
+     */
+    MESSAGE;
 
     @Override
     public String toString()
@@ -0,0 +1,433 @@
+/*
+ *    Copyright 2013 Weald Technology Trading Limited
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ */
+
+package li.vin.hawk;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * An audit log of authentication decisions, written to a file in the
+ * background.
+ * <p>
+ * Request threads add records to a lock-free ring buffer and return; a single
+ * writer thread drains the buffer in batches and appends them to the file
+ * through a {@link FileChannel}. Each record is one tab-separated line:
+ * <pre>
+ * decision time (ms)  operation  status  key ID  timestamp  nonce
+ * </pre>
+ * with <code>-</code> for values that are not known, such as the key ID of
+ * a malformed header. Characters outside printable ASCII are written as
+ * <code>?</code>.
+ * <p>
+ * What happens when the writer falls behind and the buffer fills up is set
+ * by the {@link Backpressure} policy. Records that are not written are
+ * counted.
+ */
+public class HawkAuditLog implements Closeable
+{
+  public enum Operation
+  {
+    /**
+     * A client signed a request
+     */
+    SIGN_REQUEST,
+    /**
+     * A server verified a request
+     */
+    VERIFY_REQUEST,
+    /**
+     * A server verified a message
+     */
+    VERIFY_MESSAGE
+  }
+
+  public enum Backpressure
+  {
+    /**
+     * Drop records while the buffer is full
+     */
+    DROP,
+    /**
+     * Keep only one record in every sample rate while the buffer is more than
+     * half full, and drop records while it is full
+     */
+    SAMPLE,
+    /**
+     * Make request threads wait while the buffer is full
+     */
+    BLOCK
+  }
+
+  public static final int DEFAULT_CAPACITY = 8192;
+  public static final int DEFAULT_SAMPLE_RATE = 10;
+
+  private static final int WRITE_BUFFER_SIZE = 64 * 1024;
+  // Long enough for a line with a key ID and nonce of typical length
+  private static final int MAX_LINE_SIZE = 1024;
+  private static final long IDLE_PARK_NANOS = 1000000L;
+
+  private final FileChannel channel;
+  private final Backpressure backpressure;
+  private final int sampleRate;
+  private final int mask;
+
+  // Ring buffer; a slot is published when its sequence is set
+  private final long[] decisionTimes;
+  private final Operation[] operations;
+  private final HawkAuthResult.Status[] statuses;
+  private final String[] keyIds;
+  private final long[] timestamps;
+  private final String[] nonces;
+  private final AtomicLongArray published;
+  private final AtomicLong head = new AtomicLong();
+  private final AtomicLong tail = new AtomicLong();
+
+  private final Thread writer;
+  private volatile boolean closed = false;
+  private volatile IOException failure;
+
+  private final AtomicLong sampleCounter = new AtomicLong();
+  private final AtomicLong writtenCount = new AtomicLong();
+  private final AtomicLong droppedCount = new AtomicLong();
+
+  /**
+   * Create an audit log with the default capacity, dropping records when the
+   * buffer is full.
+   *
+   * @param file the file to append records to
+   * @throws IOException if the file cannot be opened
+   */
+  public HawkAuditLog(final File file) throws IOException
+  {
+    this(file, DEFAULT_CAPACITY, Backpressure.DROP, DEFAULT_SAMPLE_RATE);
+  }
+
+  /**
+   * Create an audit log.
+   *
+   * @param file the file to append records to
+   * @param capacity the number of records the buffer holds, rounded up to a
+   *          power of two
+   * @param backpressure what to do when the buffer is full
+   * @param sampleRate for {@link Backpressure#SAMPLE}, keep one in this many
+   *          records while the buffer is more than half full
+   * @throws IOException if the file cannot be opened
+   */
+  public HawkAuditLog(final File file,
+                      final int capacity,
+                      final Backpressure backpressure,
+                      final int sampleRate) throws IOException
+  {
+    if (file == null) {
+      throw new NullPointerException("The file is required");
+    }
+    if (backpressure == null) {
+      throw new NullPointerException("The backpressure policy is required");
+    }
+    if (capacity < 1 || capacity > 1 << 30) {
+      throw new IllegalArgumentException("The capacity must be between 1 and 2^30");
+    }
+    if (sampleRate < 1) {
+      throw new IllegalArgumentException("The sample rate must be positive");
+    }
+    this.backpressure = backpressure;
+    this.sampleRate = sampleRate;
+
+    final int size = Integer.highestOneBit(capacity * 2 - 1);
+    this.mask = size - 1;
+    this.decisionTimes = new long[size];
+    this.operations = new Operation[size];
+    this.statuses = new HawkAuthResult.Status[size];
+    this.keyIds = new String[size];
+    this.timestamps = new long[size];
+    this.nonces = new String[size];
+    this.published = new AtomicLongArray(size);
+    for (int i = 0; i < size; i++)
+    {
+      this.published.set(i, -1L);
+    }
+
+    this.channel = new FileOutputStream(file, true).getChannel();
+    this.writer = new Thread(new Writer(), "hawk-audit-writer");
+    this.writer.setDaemon(true);
+    this.writer.start();
+  }
+
+  /**
+   * Record a decision. This never blocks unless the policy is
+   * {@link Backpressure#BLOCK} and the buffer is full.
+   *
+   * @param operation what was decided on
+   * @param keyId the key ID, or <code>null</code> if not known
+   * @param timestamp the timestamp of the request or message, or 0 if not known
+   * @param nonce the nonce, or <code>null</code> if not known
+   * @param status the outcome
+   */
+  public void record(final Operation operation,
+                     final String keyId,
+                     final long timestamp,
+                     final String nonce,
+                     final HawkAuthResult.Status status)
+  {
+    if (this.closed)
+    {
+      this.droppedCount.incrementAndGet();
+      return;
+    }
+
+    final int size = this.mask + 1;
+    if (this.backpressure == Backpressure.SAMPLE &&
+        this.head.get() - this.tail.get() >= size / 2 &&
+        this.sampleCounter.incrementAndGet() % this.sampleRate != 0)
+    {
+      this.droppedCount.incrementAndGet();
+      return;
+    }
+
+    long sequence;
+    while (true)
+    {
+      sequence = this.head.get();
+      if (sequence - this.tail.get() >= size)
+      {
+        if (this.backpressure != Backpressure.BLOCK || this.closed)
+        {
+          this.droppedCount.incrementAndGet();
+          return;
+        }
+        LockSupport.parkNanos(IDLE_PARK_NANOS);
+      }
+      else if (this.head.compareAndSet(sequence, sequence + 1))
+      {
+        break;
+      }
+    }
+
+    final int slot = (int)sequence & this.mask;
+    this.decisionTimes[slot] = System.currentTimeMillis();
+    this.operations[slot] = operation;
+    this.statuses[slot] = status;
+    this.keyIds[slot] = keyId;
+    this.timestamps[slot] = timestamp;
+    this.nonces[slot] = nonce;
+    // Publishes the fields above to the writer
+    this.published.lazySet(slot, sequence);
+  }
+
+  /**
+   * Stop the writer once it has written the records already in the buffer,
+   * and close the file.
+   *
+   * @throws IOException if the records could not all be written
+   */
+  @Override
+  public void close() throws IOException
+  {
+    this.closed = true;
+    LockSupport.unpark(this.writer);
+    try
+    {
+      this.writer.join();
+    }
+    catch (InterruptedException ie)
+    {
+      Thread.currentThread().interrupt();
+    }
+    // Records claimed by threads that raced with close are lost
+    this.droppedCount.addAndGet(this.head.get() - this.tail.get());
+    this.channel.close();
+    if (this.failure != null) {
+      throw this.failure;
+    }
+  }
+
+  /**
+   * Obtain the number of records written to the file.
+   *
+   * @return the number of records written
+   */
+  public long getWrittenCount()
+  {
+    return this.writtenCount.get();
+  }
+
+  /**
+   * Obtain the number of records dropped or sampled out because the buffer
+   * was full, or because the log was closed or failed.
+   *
+   * @return the number of records dropped
+   */
+  public long getDroppedCount()
+  {
+    return this.droppedCount.get();
+  }
+
+  private final class Writer implements Runnable
+  {
+    private final ByteBuffer out = ByteBuffer.allocateDirect(WRITE_BUFFER_SIZE);
+
+    @Override
+    public void run()
+    {
+      long sequence = tail.get();
+      while (true)
+      {
+        // Read closed before draining, so that nothing published before close is missed
+        final boolean stopping = closed;
+        int batch = 0;
+        while (published.get((int)sequence & mask) == sequence)
+        {
+          final int slot = (int)sequence & mask;
+          if (this.out.remaining() < MAX_LINE_SIZE)
+          {
+            flush();
+          }
+          append(slot);
+          operations[slot] = null;
+          statuses[slot] = null;
+          keyIds[slot] = null;
+          nonces[slot] = null;
+          sequence++;
+          tail.lazySet(sequence);
+          batch++;
+        }
+        if (batch > 0)
+        {
+          flush();
+          if (failure == null)
+          {
+            writtenCount.addAndGet(batch);
+          }
+          else
+          {
+            droppedCount.addAndGet(batch);
+          }
+        }
+        else if (stopping && head.get() == sequence)
+        {
+          return;
+        }
+        else
+        {
+          LockSupport.parkNanos(IDLE_PARK_NANOS);
+        }
+      }
+    }
+
+    private void append(final int slot)
+    {
+      appendNumber(decisionTimes[slot]);
+      this.out.put((byte)'\t');
+      appendText(operations[slot].name(), MAX_LINE_SIZE);
+      this.out.put((byte)'\t');
+      appendText(statuses[slot].name(), MAX_LINE_SIZE);
+      this.out.put((byte)'\t');
+      // Key IDs and nonces come from requests, so their length is capped
+      appendText(keyIds[slot], MAX_LINE_SIZE / 4);
+      this.out.put((byte)'\t');
+      if (keyIds[slot] == null && timestamps[slot] == 0L)
+      {
+        this.out.put((byte)'-');
+      }
+      else
+      {
+        appendNumber(timestamps[slot]);
+      }
+      this.out.put((byte)'\t');
+      appendText(nonces[slot], MAX_LINE_SIZE / 4);
+      this.out.put((byte)'\n');
+    }
+
+    private void appendText(final String value, final int maxLength)
+    {
+      if (value == null)
+      {
+        this.out.put((byte)'-');
+        return;
+      }
+      final int length = Math.min(value.length(), maxLength);
+      for (int i = 0; i < length; i++)
+      {
+        final char c = value.charAt(i);
+        this.out.put(c > ' ' && c < 0x7f ? (byte)c : (byte)'?');
+      }
+    }
+
+    private void appendNumber(final long value)
+    {
+      if (value < 0)
+      {
+        this.out.put((byte)'-');
+        appendDigits(-(value / 10));
+        this.out.put((byte)('0' - value % 10));
+      }
+      else
+      {
+        appendDigits(value / 10);
+        this.out.put((byte)('0' + value % 10));
+      }
+    }
+
+    private void appendDigits(final long value)
+    {
+      if (value > 0)
+      {
+        appendDigits(value / 10);
+        this.out.put((byte)('0' + value % 10));
+      }
+    }
+
+    private void flush()
+    {
+      this.out.flip();
+      try
+      {
+        if (failure == null)
+        {
+          while (this.out.hasRemaining())
+          {
+            channel.write(this.out);
+          }
+        }
+      }
+      catch (IOException ioe)
+      {
+        // Keep draining so that request threads are not blocked
+        failure = ioe;
+      }
+      this.out.clear();
+    }
+  }
+
+  // Standard object methods follow
+  @Override
+  public String toString()
+  {
+    return super.toString() + '{' +
+        "capacity=" + (this.mask + 1) + ' ' +
+        "backpressure=" + this.backpressure + ' ' +
+        "written=" + this.writtenCount.get() + ' ' +
+        "dropped=" + this.droppedCount.get() + '}';
+  }
+}
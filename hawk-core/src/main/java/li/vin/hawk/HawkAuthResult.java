@@ -0,0 +1,174 @@
+/*
+ *    Copyright 2013 Weald Technology Trading Limited
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ */
+
+package li.vin.hawk;
+
+/**
+ * The outcome of verifying a request.
+ * <p>
+ * Rejections are shared, preallocated instances that carry no stack trace,
+ * so that turning away a flood of bad requests costs no more than the checks
+ * themselves. Only a successful verification allocates a result.
+ */
+public final class HawkAuthResult
+{
+  public enum Status
+  {
+    /**
+     * The request is authentic
+     */
+    OK("Authenticated"),
+    /**
+     * There is no authorization header
+     */
+    MISSING_HEADER("Authorization header is required but not supplied"),
+    /**
+     * The authorization header is not a well-formed Hawk header
+     */
+    MALFORMED_HEADER("Authorization header is not a well-formed Hawk header"),
+    /**
+     * The timestamp is outside of the allowed window
+     */
+    STALE_TIMESTAMP("Stale timestamp"),
+    /**
+     * The nonce has already been used
+     */
+    DUPLICATE_NONCE("Duplicate nonce"),
+    /**
+     * The key ID is not known
+     */
+    UNKNOWN_CREDENTIALS("Unknown credentials"),
+    /**
+     * The MAC does not match the request
+     */
+    BAD_MAC("Bad MAC"),
+    /**
+     * The payload does not match its hash
+     */
+    BAD_HASH("Bad payload hash"),
+    /**
+     * The nonce store could not be reached, so replays cannot be detected
+     */
+    NONCE_STORE_UNAVAILABLE("Nonce store unavailable"),
+    /**
+     * The request was made on behalf of an application without a valid grant
+     */
+    INVALID_GRANT("Invalid grant"),
+    /**
+     * Too many requests have been made with the key ID
+     */
+    THROTTLED("Too many requests");
+
+    private final String message;
+
+    private Status(final String message)
+    {
+      this.message = message;
+    }
+
+    public String getMessage()
+    {
+      return this.message;
+    }
+  }
+
+  private static final HawkAuthResult[] FAILURES;
+  static
+  {
+    final Status[] statuses = Status.values();
+    FAILURES = new HawkAuthResult[statuses.length];
+    for (int i = 0; i < statuses.length; i++)
+    {
+      FAILURES[i] = new HawkAuthResult(statuses[i], null, null);
+    }
+  }
+
+  private final Status status;
+  private final HawkCredentials credentials;
+  private final HawkAuthorizationHeader header;
+
+  private HawkAuthResult(final Status status,
+                         final HawkCredentials credentials,
+                         final HawkAuthorizationHeader header)
+  {
+    this.status = status;
+    this.credentials = credentials;
+    this.header = header;
+  }
+
+  /**
+   * Obtain the shared result for a rejection.
+   *
+   * @param status the reason for the rejection
+   * @return the result
+   */
+  static HawkAuthResult failure(final Status status)
+  {
+    return FAILURES[status.ordinal()];
+  }
+
+  /**
+   * Create the result for an authentic request.
+   *
+   * @param credentials the credentials of the requestor
+   * @param header the parsed authorization header
+   * @return the result
+   */
+  static HawkAuthResult success(final HawkCredentials credentials, final HawkAuthorizationHeader header)
+  {
+    return new HawkAuthResult(Status.OK, credentials, header);
+  }
+
+  public boolean isAuthenticated()
+  {
+    return this.status == Status.OK;
+  }
+
+  public Status getStatus()
+  {
+    return this.status;
+  }
+
+  /**
+   * Obtain the credentials of the requestor.
+   *
+   * @return the credentials, or <code>null</code> if the request was rejected
+   */
+  public HawkCredentials getCredentials()
+  {
+    return this.credentials;
+  }
+
+  /**
+   * Obtain the parsed authorization header.
+   *
+   * @return the header, or <code>null</code> if the request was rejected or
+   *         was a message
+   */
+  public HawkAuthorizationHeader getHeader()
+  {
+    return this.header;
+  }
+
+  // Standard object methods follow
+  @Override
+  public String toString()
+  {
+    return super.toString() + '{' +
+        "status=" + this.status + ' ' +
+        "credentials=" + this.credentials + '}';
+  }
+}
@@ -0,0 +1,266 @@
+/*
+ *    Copyright 2013 Weald Technology Trading Limited
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ */
+
+package li.vin.hawk;
+
+/**
+ * The attributes of a Hawk authorization header, as sent by a client.
+ */
+public final class HawkAuthorizationHeader
+{
+  private static final String SCHEME = "Hawk";
+
+  private String id;
+  private Long ts;
+  private String nonce;
+  private String hash;
+  private String ext;
+  private String mac;
+  private String app;
+  private String dlg;
+
+  private HawkAuthorizationHeader()
+  {
+  }
+
+  /**
+   * Parse the value of an authorization header.
+   *
+   * @param header
+   *          the value of the authorization header
+   * @return the parsed header
+   * @throws HawkError
+   *           if the header is not a well-formed Hawk header
+   */
+  public static HawkAuthorizationHeader parse(final String header) throws HawkError
+  {
+    if (header == null) {
+      throw new HawkError("Authorization header is required but not supplied");
+    }
+    final HawkAuthorizationHeader result = tryParse(header);
+    if (result == null) {
+      throw new HawkError("Authorization header is not a well-formed Hawk header");
+    }
+    return result;
+  }
+
+  /**
+   * Parse the value of an authorization header without throwing on bad
+   * input, so that malformed headers can be rejected cheaply.
+   *
+   * @param header
+   *          the value of the authorization header
+   * @return the parsed header, or <code>null</code> if the header is missing
+   *         or is not a well-formed Hawk header
+   */
+  public static HawkAuthorizationHeader tryParse(final String header)
+  {
+    final HawkTracer tracer = HawkTracing.tracer;
+    if (tracer == null || header == null)
+    {
+      return parseHeader(header);
+    }
+    final long start = System.nanoTime();
+    final HawkAuthorizationHeader result = parseHeader(header);
+    tracer.phase(HawkTracer.Phase.PARSE_HEADER, result == null ? null : result.getId(), Hawk.AuthType.HEADER,
+                 header.length(), System.nanoTime() - start, result != null);
+    return result;
+  }
+
+  private static HawkAuthorizationHeader parseHeader(final String header)
+  {
+    if (header == null ||
+        !header.regionMatches(true, 0, SCHEME, 0, SCHEME.length()) ||
+        header.length() == SCHEME.length() ||
+        header.charAt(SCHEME.length()) != ' ')
+    {
+      return null;
+    }
+
+    final HawkAuthorizationHeader result = new HawkAuthorizationHeader();
+    final int len = header.length();
+    int pos = SCHEME.length();
+    while (true)
+    {
+      // Skip separators
+      while (pos < len && (header.charAt(pos) == ' ' || header.charAt(pos) == ','))
+      {
+        pos++;
+      }
+      if (pos == len)
+      {
+        break;
+      }
+
+      final int eq = header.indexOf('=', pos);
+      if (eq == -1 || eq + 1 == len || header.charAt(eq + 1) != '"')
+      {
+        return null;
+      }
+      final int close = header.indexOf('"', eq + 2);
+      if (close == -1 || !result.set(header.substring(pos, eq), header.substring(eq + 2, close)))
+      {
+        return null;
+      }
+      pos = close + 1;
+    }
+
+    if (result.id == null || result.ts == null || result.nonce == null || result.mac == null)
+    {
+      return null;
+    }
+    return result;
+  }
+
+  /**
+   * Set an attribute.
+   *
+   * @return <code>false</code> if the attribute is unknown, duplicated or
+   *         invalid
+   */
+  private boolean set(final String name, final String value)
+  {
+    final Object previous;
+    if ("id".equals(name))
+    {
+      previous = this.id;
+      this.id = value;
+    }
+    else if ("ts".equals(name))
+    {
+      previous = this.ts;
+      this.ts = parseTimestamp(value);
+      if (this.ts == null)
+      {
+        return false;
+      }
+    }
+    else if ("nonce".equals(name))
+    {
+      previous = this.nonce;
+      this.nonce = value;
+    }
+    else if ("hash".equals(name))
+    {
+      previous = this.hash;
+      this.hash = value;
+    }
+    else if ("ext".equals(name))
+    {
+      previous = this.ext;
+      this.ext = value;
+    }
+    else if ("mac".equals(name))
+    {
+      previous = this.mac;
+      this.mac = value;
+    }
+    else if ("app".equals(name))
+    {
+      previous = this.app;
+      this.app = value;
+    }
+    else if ("dlg".equals(name))
+    {
+      previous = this.dlg;
+      this.dlg = value;
+    }
+    else
+    {
+      return false;
+    }
+    return previous == null;
+  }
+
+  /**
+   * Parse a timestamp of decimal digits without going through
+   * {@link Long#valueOf(String)}, which throws on bad input.
+   */
+  private static Long parseTimestamp(final String value)
+  {
+    // Up to 18 digits cannot overflow a long
+    if (value.length() == 0 || value.length() > 18)
+    {
+      return null;
+    }
+    long result = 0L;
+    for (int i = 0; i < value.length(); i++)
+    {
+      final char c = value.charAt(i);
+      if (c < '0' || c > '9')
+      {
+        return null;
+      }
+      result = result * 10 + (c - '0');
+    }
+    return result;
+  }
+
+  public String getId()
+  {
+    return this.id;
+  }
+
+  public Long getTs()
+  {
+    return this.ts;
+  }
+
+  public String getNonce()
+  {
+    return this.nonce;
+  }
+
+  public String getHash()
+  {
+    return this.hash;
+  }
+
+  public String getExt()
+  {
+    return this.ext;
+  }
+
+  public String getMac()
+  {
+    return this.mac;
+  }
+
+  public String getApp()
+  {
+    return this.app;
+  }
+
+  public String getDlg()
+  {
+    return this.dlg;
+  }
+
+  // Standard object methods follow
+  @Override
+  public String toString()
+  {
+    return super.toString() + '{' +
+        "id=" + this.id + ' ' +
+        "ts=" + this.ts + ' ' +
+        "nonce=" + this.nonce + ' ' +
+        "hash=" + this.hash + ' ' +
+        "ext=" + this.ext + ' ' +
+        "mac=" + this.mac + ' ' +
+        "app=" + this.app + ' ' +
+        "dlg=" + this.dlg + '}';
+  }
+}
@@ -0,0 +1,212 @@
+/*
+ *    Copyright 2013 Weald Technology Trading Limited
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ */
+
+package li.vin.hawk;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.net.URI;
+import java.util.Iterator;
+import java.util.concurrent.ExecutorService;
+
+import javax.crypto.Mac;
+
+/**
+ * Generates bewits for large numbers of URIs with one set of credentials,
+ * such as when pre-signing download links.
+ * <p>
+ * All of the URIs in a run share an expiry time, and each thread keeps a MAC
+ * engine initialized with the key. URIs are read and signed a window at a
+ * time, with each window split across an executor if one is supplied, and
+ * the signed URIs are written out in input order. Memory use depends on the
+ * window size, not on the number of URIs.
+ * <p>
+ * To write to a channel, wrap it with
+ * {@link java.nio.channels.Channels#newWriter(java.nio.channels.WritableByteChannel, String)}.
+ */
+public final class HawkBewitGenerator
+{
+  /**
+   * Default number of chunks held in one window
+   */
+  public static final int DEFAULT_WINDOW_CHUNKS = 16;
+
+  private final HawkCredentials credentials;
+  private final ExecutorService executor;
+  private final int chunkSize;
+  private final int windowSize;
+
+  private final ThreadLocal<Mac> macs = new ThreadLocal<Mac>()
+  {
+    @Override
+    protected Mac initialValue()
+    {
+      return Hawk.initMac(credentials);
+    }
+  };
+
+  /**
+   * Create a bewit generator that signs on the calling thread.
+   *
+   * @param credentials Hawk credentials of the requestor
+   */
+  public HawkBewitGenerator(final HawkCredentials credentials)
+  {
+    this(credentials, null, Batches.DEFAULT_CHUNK_SIZE, DEFAULT_WINDOW_CHUNKS);
+  }
+
+  /**
+   * Create a bewit generator.
+   *
+   * @param credentials Hawk credentials of the requestor
+   * @param executor the executor to sign on, or <code>null</code> to sign
+   *          on the calling thread
+   * @param chunkSize the number of URIs signed by one task
+   * @param windowChunks the number of chunks read ahead of the writer; at
+   *          least the number of threads in the executor keeps it busy
+   */
+  public HawkBewitGenerator(final HawkCredentials credentials,
+                            final ExecutorService executor,
+                            final int chunkSize,
+                            final int windowChunks)
+  {
+    if (credentials == null) {
+      throw new NullPointerException("Credentials are required but not supplied");
+    }
+    if (chunkSize < 1) {
+      throw new IllegalArgumentException("The chunk size must be positive");
+    }
+    if (windowChunks < 1) {
+      throw new IllegalArgumentException("The number of chunks per window must be positive");
+    }
+    this.credentials = credentials;
+    this.executor = executor;
+    this.chunkSize = chunkSize;
+    this.windowSize = chunkSize * windowChunks;
+  }
+
+  /**
+   * Sign URIs, writing each one with its bewit query parameter on a line of
+   * its own.
+   *
+   * @param uris the URIs to sign
+   * @param ttl the time to live for the bewits, in seconds
+   * @param ext optional extra data, or <code>null</code>
+   * @param out the writer for the signed URIs
+   * @return the number of URIs signed
+   * @throws IOException if the signed URIs cannot be written
+   */
+  public long generate(final Iterator<URI> uris, final long ttl, final String ext, final Writer out) throws IOException
+  {
+    if (uris == null) {
+      throw new NullPointerException("URIs are required but not supplied");
+    }
+    if (out == null) {
+      throw new NullPointerException("Writer is required but not supplied");
+    }
+    if (ttl <= 0) {
+      throw new IllegalArgumentException("TTL must be a positive value");
+    }
+
+    final long expiry = System.currentTimeMillis() / Hawk.MILLISECONDS_IN_SECONDS + ttl;
+    final String keyId = this.credentials.getKeyId();
+    final URI[] window = new URI[this.windowSize];
+    final String[] signed = new String[this.windowSize];
+    long total = 0L;
+    while (uris.hasNext())
+    {
+      int count = 0;
+      while (count < window.length && uris.hasNext())
+      {
+        final URI uri = uris.next();
+        if (uri == null) {
+          throw new NullPointerException("URI is required but not supplied");
+        }
+        window[count++] = uri;
+      }
+
+      Batches.run(count, this.chunkSize, this.executor, new Batches.Chunk()
+      {
+        @Override
+        public void run(final int from, final int to)
+        {
+          final Mac mac = macs.get();
+          for (int i = from; i < to; i++)
+          {
+            signed[i] = appendBewit(window[i], Hawk.generateBewit(mac, keyId, expiry, window[i], ext));
+          }
+        }
+      });
+
+      for (int i = 0; i < count; i++)
+      {
+        out.write(signed[i]);
+        out.write('\n');
+        window[i] = null;
+        signed[i] = null;
+      }
+      total += count;
+    }
+    out.flush();
+    return total;
+  }
+
+  /**
+   * Add a bewit to the query of a URI.
+   *
+   * @param uri the URI
+   * @param bewit the bewit for the URI
+   * @return the URI with the bewit as its last query parameter
+   */
+  public static String appendBewit(final URI uri, final String bewit)
+  {
+    final String base = uri.toString();
+    final int fragment = base.indexOf('#');
+    final StringBuilder sb = new StringBuilder(base.length() + bewit.length() + 16);
+    sb.append(base, 0, fragment == -1 ? base.length() : fragment);
+    sb.append(uri.getRawQuery() == null ? '?' : '&');
+    sb.append("bewit=");
+    // Base64 needs only these characters escaped in a query
+    for (int i = 0; i < bewit.length(); i++)
+    {
+      final char c = bewit.charAt(i);
+      switch (c)
+      {
+        case '+':
+          sb.append("%2B");
+          break;
+        case '/':
+          sb.append("%2F");
+          break;
+        case '=':
+          sb.append("%3D");
+          break;
+        default:
+          sb.append(c);
+      }
+    }
+    if (fragment != -1)
+    {
+      sb.append(base, fragment, base.length());
+    }
+    return sb.toString();
+  }
+
+  public HawkCredentials getCredentials()
+  {
+    return this.credentials;
+  }
+}
@@ -0,0 +1,425 @@
+/*
+ *    Copyright 2013 Weald Technology Trading Limited
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ */
+
+package li.vin.hawk;
+
+import java.net.URI;
+import java.nio.BufferOverflowException;
+import java.nio.ByteBuffer;
+
+import javax.crypto.Mac;
+import javax.crypto.ShortBufferException;
+
+/**
+ * Byte-oriented versions of the MAC calculations in {@link Hawk}, for callers
+ * that already hold the hash, ext, app, delegator and body as bytes. Inputs
+ * are read from the current position to the limit of each buffer and are
+ * left untouched; the MAC is written, raw or Base64-encoded, into a
+ * caller-supplied buffer. An array can be passed with {@link ByteBuffer#wrap(byte[])}.
+ * <p>
+ * Text values must be UTF-8 encoded, in which case the results are identical
+ * to those of the string-based methods.
+ * <p>
+ * The normalized request head is built and encoded in buffers kept per
+ * thread, so a MAC calculation does not allocate a string or array for it.
+ */
+public final class HawkBuffers
+{
+  /**
+   * The longest raw MAC produced by any supported algorithm
+   */
+  public static final int MAX_RAW_MAC_LENGTH = 32;
+
+  /**
+   * The longest Base64-encoded MAC produced by any supported algorithm
+   */
+  public static final int MAX_BASE64_MAC_LENGTH = 44;
+
+  private static final byte[] BASE64_ALPHABET =
+      "ABCDEFGHIJKLMNOPQRSTUVWXYZabcdefghijklmnopqrstuvwxyz0123456789+/".getBytes(Hawk.UTF8);
+
+  /**
+   * Space for the normalized request head, reused by each thread
+   */
+  private static final class Head
+  {
+    private final StringBuilder chars = new StringBuilder(256);
+    private byte[] bytes = new byte[768];
+  }
+
+  private static final ThreadLocal<Head> HEADS = new ThreadLocal<Head>()
+  {
+    @Override
+    protected Head initialValue()
+    {
+      return new Head();
+    }
+  };
+
+  /**
+   * Calculate a MAC, as
+   * {@link Hawk#calculateMAC(HawkCredentials, Hawk.AuthType, Long, URI, String, String, String, String, String, String)}.
+   *
+   * @param credentials
+   *          Hawk credentials of the requestor
+   * @param authType
+   *          The type of the MAC to calculate
+   * @param timestamp
+   *          timestamp of the request
+   * @param uri
+   *          URI of the request, including query parameters if appropriate
+   * @param nonce
+   *          nonce a random string used to uniquely identify the request
+   * @param method
+   *          the HTTP method of the request
+   * @param hash
+   *          a hash of the request's payload, or <code>null</code> if payload
+   *          authentication is not required
+   * @param ext
+   *          optional extra data, or <code>null</code>
+   * @param app
+   *          application ID, used for Oz, or <code>null</code>
+   * @param dlg
+   *          delegator, used for Oz, or <code>null</code>
+   * @param out
+   *          the buffer to write the MAC to
+   * @param base64
+   *          <code>true</code> to write the MAC Base64-encoded, as it is sent,
+   *          or <code>false</code> to write the raw MAC
+   * @return the number of bytes written
+   * @throws BufferOverflowException
+   *           if there is not enough room left in the output buffer
+   */
+  public static int calculateMAC(final HawkCredentials credentials,
+                                 final Hawk.AuthType authType,
+                                 final long timestamp,
+                                 final URI uri,
+                                 final String nonce,
+                                 final String method,
+                                 final ByteBuffer hash,
+                                 final ByteBuffer ext,
+                                 final ByteBuffer app,
+                                 final ByteBuffer dlg,
+                                 final ByteBuffer out,
+                                 final boolean base64)
+  {
+    // Check that required parameters are present
+    if (credentials == null) {
+      throw new NullPointerException("Credentials are required but not supplied");
+    }
+    if (uri == null) {
+      throw new NullPointerException("URI is required but not supplied");
+    }
+    if (authType == null) {
+      throw new NullPointerException("Authentication type is required but not supplied");
+    }
+    if (authType.equals(Hawk.AuthType.HEADER))
+    {
+      if (nonce == null) {
+        throw new NullPointerException("Nonce is required but not supplied");
+      }
+      if (method == null) {
+        throw new NullPointerException("Method is required but not supplied");
+      }
+    }
+
+    final Mac mac = Hawk.initMac(credentials);
+    final Head head = HEADS.get();
+    head.chars.setLength(0);
+    Hawk.appendRequestHead(head.chars, authType, timestamp, uri, nonce, method);
+    updateUtf8(mac, head);
+
+    if (authType.equals(Hawk.AuthType.HEADER) && hash != null)
+    {
+      update(mac, hash, hash.position(), hash.limit());
+    }
+    mac.update((byte)'\n');
+    if (ext != null)
+    {
+      updateEscaped(mac, ext);
+    }
+    mac.update((byte)'\n');
+    if (app != null)
+    {
+      update(mac, app, app.position(), app.limit());
+      mac.update((byte)'\n');
+      if (dlg != null)
+      {
+        update(mac, dlg, dlg.position(), dlg.limit());
+      }
+      mac.update((byte)'\n');
+    }
+
+    return finish(mac, out, base64);
+  }
+
+  /**
+   * Calculate the MAC for a body, as
+   * {@link Hawk#calculateBodyMac(HawkCredentials, String, String)}.
+   *
+   * @param credentials
+   *          Hawk credentials of the requestor
+   * @param contentType
+   *          the MIME content type
+   * @param body
+   *          the body
+   * @param out
+   *          the buffer to write the MAC to
+   * @param base64
+   *          <code>true</code> to write the MAC Base64-encoded, as it is sent,
+   *          or <code>false</code> to write the raw MAC
+   * @return the number of bytes written
+   * @throws BufferOverflowException
+   *           if there is not enough room left in the output buffer
+   */
+  public static int calculateBodyMac(final HawkCredentials credentials,
+                                     final String contentType,
+                                     final ByteBuffer body,
+                                     final ByteBuffer out,
+                                     final boolean base64)
+  {
+    if (body == null) {
+      throw new NullPointerException("Body is required but not supplied");
+    }
+
+    final Mac mac = Hawk.startBodyMac(credentials, contentType);
+    update(mac, body, body.position(), body.limit());
+    mac.update((byte)'\n');
+    return finish(mac, out, base64);
+  }
+
+  /**
+   * Base64-encode bytes, as Hawk sends MACs, into a buffer.
+   *
+   * @param raw the bytes to encode
+   * @param offset the offset of the first byte to encode
+   * @param length the number of bytes to encode
+   * @param out the buffer to write the encoded bytes to
+   * @return the number of bytes written
+   * @throws BufferOverflowException
+   *           if there is not enough room left in the output buffer
+   */
+  public static int encodeBase64(final byte[] raw, final int offset, final int length, final ByteBuffer out)
+  {
+    final int encodedLength = (length + 2) / 3 * 4;
+    if (out.remaining() < encodedLength) {
+      throw new BufferOverflowException();
+    }
+
+    final int end = offset + length;
+    int i = offset;
+    while (end - i >= 3)
+    {
+      final int bits = ((raw[i] & 0xff) << 16) | ((raw[i + 1] & 0xff) << 8) | (raw[i + 2] & 0xff);
+      out.put(BASE64_ALPHABET[bits >>> 18]);
+      out.put(BASE64_ALPHABET[(bits >>> 12) & 0x3f]);
+      out.put(BASE64_ALPHABET[(bits >>> 6) & 0x3f]);
+      out.put(BASE64_ALPHABET[bits & 0x3f]);
+      i += 3;
+    }
+    if (end - i == 1)
+    {
+      final int bits = (raw[i] & 0xff) << 16;
+      out.put(BASE64_ALPHABET[bits >>> 18]);
+      out.put(BASE64_ALPHABET[(bits >>> 12) & 0x3f]);
+      out.put((byte)'=');
+      out.put((byte)'=');
+    }
+    else if (end - i == 2)
+    {
+      final int bits = ((raw[i] & 0xff) << 16) | ((raw[i + 1] & 0xff) << 8);
+      out.put(BASE64_ALPHABET[bits >>> 18]);
+      out.put(BASE64_ALPHABET[(bits >>> 12) & 0x3f]);
+      out.put(BASE64_ALPHABET[(bits >>> 6) & 0x3f]);
+      out.put((byte)'=');
+    }
+    return encodedLength;
+  }
+
+  /**
+   * Compare a raw MAC against a Base64-encoded MAC, such as one received in
+   * a header, without decoding it or encoding the raw MAC into a string. The
+   * time taken depends on the lengths of the MACs but not on where they
+   * differ.
+   *
+   * @param raw the raw MAC
+   * @param encoded the Base64-encoded MAC, or <code>null</code>
+   * @return <code>true</code> if the MACs are the same
+   */
+  public static boolean macEquals(final byte[] raw, final CharSequence encoded)
+  {
+    if (encoded == null || encoded.length() != (raw.length + 2) / 3 * 4)
+    {
+      return false;
+    }
+
+    int diff = 0;
+    int i = 0;
+    int j = 0;
+    while (raw.length - i >= 3)
+    {
+      diff |= compareQuantum(encoded, j, ((raw[i] & 0xff) << 16) | ((raw[i + 1] & 0xff) << 8) | (raw[i + 2] & 0xff), 0);
+      i += 3;
+      j += 4;
+    }
+    if (raw.length - i == 1)
+    {
+      diff |= compareQuantum(encoded, j, (raw[i] & 0xff) << 16, 2);
+    }
+    else if (raw.length - i == 2)
+    {
+      diff |= compareQuantum(encoded, j, ((raw[i] & 0xff) << 16) | ((raw[i + 1] & 0xff) << 8), 1);
+    }
+    return diff == 0;
+  }
+
+  /**
+   * Compare four encoded characters against the encoding of 24 bits, the last
+   * of them padding.
+   *
+   * @return zero if they are the same
+   */
+  private static int compareQuantum(final CharSequence encoded, final int at, final int bits, final int padding)
+  {
+    int diff = encoded.charAt(at) ^ BASE64_ALPHABET[bits >>> 18];
+    diff |= encoded.charAt(at + 1) ^ BASE64_ALPHABET[(bits >>> 12) & 0x3f];
+    diff |= encoded.charAt(at + 2) ^ (padding > 1 ? '=' : BASE64_ALPHABET[(bits >>> 6) & 0x3f]);
+    diff |= encoded.charAt(at + 3) ^ (padding > 0 ? '=' : BASE64_ALPHABET[bits & 0x3f]);
+    return diff;
+  }
+
+  /**
+   * Complete a MAC into the output buffer.
+   */
+  private static int finish(final Mac mac, final ByteBuffer out, final boolean base64)
+  {
+    if (base64)
+    {
+      final byte[] raw = mac.doFinal();
+      return encodeBase64(raw, 0, raw.length, out);
+    }
+
+    final int length = mac.getMacLength();
+    if (out.remaining() < length) {
+      throw new BufferOverflowException();
+    }
+    if (out.hasArray())
+    {
+      try
+      {
+        mac.doFinal(out.array(), out.arrayOffset() + out.position());
+      }
+      catch (ShortBufferException sbe)
+      {
+        throw new BufferOverflowException();
+      }
+      out.position(out.position() + length);
+    }
+    else
+    {
+      out.put(mac.doFinal());
+    }
+    return length;
+  }
+
+  /**
+   * Feed part of a buffer to a MAC engine, leaving the buffer as it was.
+   */
+  private static void update(final Mac mac, final ByteBuffer buffer, final int from, final int to)
+  {
+    final int position = buffer.position();
+    final int limit = buffer.limit();
+    buffer.limit(to);
+    buffer.position(from);
+    mac.update(buffer);
+    buffer.limit(limit);
+    buffer.position(position);
+  }
+
+  /**
+   * Feed the request head to a MAC engine, UTF-8 encoded as
+   * {@link String#getBytes(java.nio.charset.Charset)} would, with an unpaired
+   * surrogate encoded as '?'.
+   */
+  private static void updateUtf8(final Mac mac, final Head head)
+  {
+    final StringBuilder chars = head.chars;
+    final int length = chars.length();
+    if (head.bytes.length < length * 3)
+    {
+      head.bytes = new byte[length * 3];
+    }
+    final byte[] bytes = head.bytes;
+    int n = 0;
+    for (int i = 0; i < length; i++)
+    {
+      final char c = chars.charAt(i);
+      if (c < 0x80)
+      {
+        bytes[n++] = (byte)c;
+      }
+      else if (c < 0x800)
+      {
+        bytes[n++] = (byte)(0xc0 | (c >> 6));
+        bytes[n++] = (byte)(0x80 | (c & 0x3f));
+      }
+      else if (Character.isHighSurrogate(c) && i + 1 < length && Character.isLowSurrogate(chars.charAt(i + 1)))
+      {
+        final int codePoint = Character.toCodePoint(c, chars.charAt(++i));
+        bytes[n++] = (byte)(0xf0 | (codePoint >> 18));
+        bytes[n++] = (byte)(0x80 | ((codePoint >> 12) & 0x3f));
+        bytes[n++] = (byte)(0x80 | ((codePoint >> 6) & 0x3f));
+        bytes[n++] = (byte)(0x80 | (codePoint & 0x3f));
+      }
+      else if (Character.isHighSurrogate(c) || Character.isLowSurrogate(c))
+      {
+        bytes[n++] = (byte)'?';
+      }
+      else
+      {
+        bytes[n++] = (byte)(0xe0 | (c >> 12));
+        bytes[n++] = (byte)(0x80 | ((c >> 6) & 0x3f));
+        bytes[n++] = (byte)(0x80 | (c & 0x3f));
+      }
+    }
+    mac.update(bytes, 0, n);
+  }
+
+  /**
+   * Feed ext data to a MAC engine, escaping backslashes and newlines. Neither
+   * byte can occur inside a multi-byte UTF-8 sequence, so this matches the
+   * escaping of the string-based methods.
+   */
+  private static void updateEscaped(final Mac mac, final ByteBuffer ext)
+  {
+    final int end = ext.limit();
+    int runStart = ext.position();
+    for (int i = runStart; i < end; i++)
+    {
+      final byte b = ext.get(i);
+      if (b == '\\' || b == '\n')
+      {
+        update(mac, ext, runStart, i);
+        mac.update((byte)'\\');
+        mac.update(b == '\n' ? (byte)'n' : (byte)'\\');
+        runStart = i + 1;
+      }
+    }
+    update(mac, ext, runStart, end);
+  }
+
+  private HawkBuffers() {}
+}
@@ -16,16 +16,25 @@
 
 package li.vin.hawk;
 
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.HttpURLConnection;
 import java.net.URI;
+import java.net.URISyntaxException;
 import java.util.Arrays;
+import java.util.concurrent.ExecutorService;
 
 public final class HawkClient implements Comparable<HawkClient>
 {
   private final HawkClientConfiguration configuration;
   private final HawkCredentials credentials;
+  private final PayloadHashCache payloadHashCache;
+  private final HawkAuditLog auditLog;
 
   private HawkClient(final HawkClientConfiguration configuration,
-                     final HawkCredentials credentials)
+                     final HawkCredentials credentials,
+                     final PayloadHashCache payloadHashCache,
+                     final HawkAuditLog auditLog)
   {
     if (configuration == null)
     {
@@ -36,6 +45,8 @@ public final class HawkClient implements Comparable<HawkClient>
       this.configuration = configuration;
     }
     this.credentials = credentials;
+    this.payloadHashCache = payloadHashCache;
+    this.auditLog = auditLog;
     validate();
   }
 
@@ -70,6 +81,10 @@ public final class HawkClient implements Comparable<HawkClient>
     long timestamp = System.currentTimeMillis() / Hawk.MILLISECONDS_IN_SECONDS;
     final String nonce = StringUtils.generateRandomString(6);
     final String mac = Hawk.calculateMAC(this.credentials, Hawk.AuthType.HEADER, timestamp, uri, nonce, method, hash, ext, app, dlg);
+    if (this.auditLog != null)
+    {
+      this.auditLog.record(HawkAuditLog.Operation.SIGN_REQUEST, this.credentials.getKeyId(), timestamp, nonce, HawkAuthResult.Status.OK);
+    }
 
     final StringBuilder sb = new StringBuilder(1024);
     sb.append("Hawk id=\"");
@@ -88,6 +103,16 @@ public final class HawkClient implements Comparable<HawkClient>
       sb.append("\", ext=\"");
       sb.append(ext);
     }
+    if (app != null)
+    {
+      sb.append("\", app=\"");
+      sb.append(app);
+      if (dlg != null)
+      {
+        sb.append("\", dlg=\"");
+        sb.append(dlg);
+      }
+    }
     sb.append("\", mac=\"");
     sb.append(mac);
     sb.append('"');
@@ -95,6 +120,127 @@ public final class HawkClient implements Comparable<HawkClient>
     return sb.toString();
   }
 
+  /**
+   * Generate the value for the Hawk authorization header of a request with a
+   * body. The payload is hashed, in a single streaming pass, unless the
+   * configuration says that payloads are never validated or the hash of the
+   * same payload is in the client's payload hash cache.
+   *
+   * @param uri the URI for the request
+   * @param method the request for the method
+   * @param payload the body of the request, or <code>null</code> if none
+   * @param ext extra data, or <code>null</code> if none
+   * @param app application ID, or <code>null</code> if none
+   * @param dlg delegator, or <code>null</code> if none
+   * @return The value for the Hawk authorization header.
+   * @throws IOException if the payload cannot be read
+   */
+  public String generatePayloadAuthorizationHeader(final URI uri,
+                                                   final String method,
+                                                   final HawkPayload payload,
+                                                   final String ext,
+                                                   final String app,
+                                                   final String dlg) throws IOException
+  {
+    return generateAuthorizationHeader(uri, method, hashPayload(payload), ext, app, dlg);
+  }
+
+  /**
+   * Prepare the authorization header of a request ahead of sending it. The
+   * payload is hashed, a nonce generated and the header signed on the
+   * executor, for example while the connection is being set up, so that
+   * {@link HawkPreparedRequest#getAuthorizationHeader()} only has to re-sign
+   * the header if the clock has moved on to another second.
+   *
+   * @param uri the URI for the request
+   * @param method the request for the method
+   * @param payload the body of the request, or <code>null</code> if none
+   * @param ext extra data, or <code>null</code> if none
+   * @param app application ID, or <code>null</code> if none
+   * @param dlg delegator, or <code>null</code> if none
+   * @param executor the executor, or <code>null</code> to prepare on the calling thread
+   * @return the prepared request
+   */
+  public HawkPreparedRequest prepare(final URI uri,
+                                     final String method,
+                                     final HawkPayload payload,
+                                     final String ext,
+                                     final String app,
+                                     final String dlg,
+                                     final ExecutorService executor)
+  {
+    return new HawkPreparedRequest(this, this.credentials, this.auditLog, uri, method, payload, ext, app, dlg, executor);
+  }
+
+  /**
+   * Hash a payload, unless the configuration says that payloads are never
+   * validated.
+   */
+  String hashPayload(final HawkPayload payload) throws IOException
+  {
+    if ((payload == null) ||
+        (this.configuration.getPayloadValidation() == Hawk.PayloadValidation.NEVER))
+    {
+      return null;
+    }
+    if (this.payloadHashCache == null)
+    {
+      return payload.calculateHash(this.credentials);
+    }
+    return this.payloadHashCache.calculateHash(this.credentials, payload);
+  }
+
+  /**
+   * Sign a connection that has not yet been connected, setting its
+   * authorization header and, if there is a payload, its content type. The
+   * caller is responsible for sending the payload, for example with
+   * {@link HawkPayload#writeTo(java.io.OutputStream)}.
+   *
+   * @param connection the connection to sign
+   * @param payload the body of the request, or <code>null</code> if none
+   * @param ext extra data, or <code>null</code> if none
+   * @throws IOException if the payload cannot be read
+   */
+  public void sign(final HttpURLConnection connection,
+                   final HawkPayload payload,
+                   final String ext) throws IOException
+  {
+    final URI uri;
+    try
+    {
+      uri = connection.getURL().toURI();
+    }
+    catch (URISyntaxException use)
+    {
+      throw new IllegalArgumentException("Connection URL is not a valid URI", use);
+    }
+
+    connection.setRequestProperty("Authorization",
+                                  generatePayloadAuthorizationHeader(uri, connection.getRequestMethod(), payload, ext, null, null));
+    if (payload != null)
+    {
+      connection.setRequestProperty("Content-Type", payload.getContentType());
+    }
+  }
+
+  /**
+   * Obtain the response body that the application should read, checking it
+   * against the payload hash sent by the server as it is read. The stream
+   * fails the read that reaches the end of the body, or its close, if the
+   * hash does not match, so the body never has to be buffered.
+   *
+   * @param body the raw response body
+   * @param contentType the MIME content type of the response body
+   * @param hash the payload hash sent by the server
+   * @return the response body to hand to the application
+   */
+  public PayloadVerifyingInputStream verifyResponsePayload(final InputStream body,
+                                                           final String contentType,
+                                                           final String hash)
+  {
+    return new PayloadVerifyingInputStream(body, this.credentials, contentType, hash);
+  }
+
   public boolean isValidFor(final String path)
   {
     return ((this.configuration.getPathPrefix() == null) ||
@@ -141,6 +287,8 @@ public final class HawkClient implements Comparable<HawkClient>
   {
     private HawkClientConfiguration configuration;
     private HawkCredentials credentials;
+    private PayloadHashCache payloadHashCache;
+    private HawkAuditLog auditLog;
 
     /**
      * Generate a new builder.
@@ -157,6 +305,8 @@ public final class HawkClient implements Comparable<HawkClient>
     {
       this.configuration = prior.configuration;
       this.credentials = prior.credentials;
+      this.payloadHashCache = prior.payloadHashCache;
+      this.auditLog = prior.auditLog;
     }
 
     /**
@@ -181,13 +331,37 @@ public final class HawkClient implements Comparable<HawkClient>
       return this;
     }
 
+    /**
+     * Set a cache of payload hashes, so that payloads that are sent more
+     * than once are only hashed once. The cache can be shared between
+     * clients.
+     * @param payloadHashCache the payload hash cache, or <code>null</code> for none
+     * @return The builder
+     */
+    public Builder payloadHashCache(final PayloadHashCache payloadHashCache)
+    {
+      this.payloadHashCache = payloadHashCache;
+      return this;
+    }
+
+    /**
+     * Record every request signed in an audit log.
+     * @param auditLog the audit log, or <code>null</code> for none
+     * @return The builder
+     */
+    public Builder auditLog(final HawkAuditLog auditLog)
+    {
+      this.auditLog = auditLog;
+      return this;
+    }
+
     /**
      * Build the client
      * @return a new client
      */
     public HawkClient build()
     {
-      return new HawkClient(this.configuration, this.credentials);
+      return new HawkClient(this.configuration, this.credentials, this.payloadHashCache, this.auditLog);
     }
   }
 }
@@ -72,7 +72,7 @@ public class HawkClientConfiguration implements Comparable<HawkClientConfigurati
     if (this.payloadValidation == null) {
       throw new NullPointerException("Payload validation setting is required");
     }
-    if (this.pathPrefix == null || this.pathPrefix.startsWith("/")) {
+    if (this.pathPrefix != null && !this.pathPrefix.startsWith("/")) {
       throw new IllegalArgumentException("Path prefix must start with \"/\" if present");
     }
   }
@@ -0,0 +1,33 @@
+/*
+ *    Copyright 2013 Weald Technology Trading Limited
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ */
+
+package li.vin.hawk;
+
+/**
+ * A source of Hawk credentials, used by a server to resolve the key ID
+ * presented in a request to the credentials that should have signed it.
+ */
+public interface HawkCredentialsSource
+{
+  /**
+   * Obtain the credentials for a key ID.
+   *
+   * @param keyId
+   *          the key ID presented by the requestor
+   * @return the credentials, or <code>null</code> if the key ID is unknown
+   */
+  HawkCredentials getCredentials(String keyId);
+}
@@ -0,0 +1,104 @@
+/*
+ *    Copyright 2013 Weald Technology Trading Limited
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ */
+
+package li.vin.hawk;
+
+/**
+ * A grant allowing an application to make requests with a key ID, optionally
+ * on behalf of a delegating application, until it expires.
+ */
+public final class HawkGrant
+{
+  private final String keyId;
+  private final String app;
+  private final String dlg;
+  private final long expires;
+
+  /**
+   * Create a grant.
+   *
+   * @param keyId the key ID the grant applies to
+   * @param app the application ID
+   * @param dlg the delegating application ID, or <code>null</code> if none
+   * @param expires the time at which the grant expires, in seconds
+   */
+  public HawkGrant(final String keyId, final String app, final String dlg, final long expires)
+  {
+    this.keyId = keyId;
+    this.app = app;
+    this.dlg = dlg;
+    this.expires = expires;
+    validate();
+  }
+
+  private void validate()
+  {
+    if (this.keyId == null) {
+      throw new NullPointerException("The key ID is required");
+    }
+    if (this.app == null) {
+      throw new NullPointerException("The application ID is required");
+    }
+  }
+
+  /**
+   * Whether the grant covers a request.
+   *
+   * @param keyId the key ID of the request
+   * @param app the application ID of the request
+   * @param dlg the delegating application ID of the request, or <code>null</code>
+   * @param now the current time, in seconds
+   * @return <code>true</code> if the grant is for the request and has not expired
+   */
+  public boolean covers(final String keyId, final String app, final String dlg, final long now)
+  {
+    return now < this.expires &&
+           this.keyId.equals(keyId) &&
+           this.app.equals(app) &&
+           (this.dlg == null ? dlg == null : this.dlg.equals(dlg));
+  }
+
+  public String getKeyId()
+  {
+    return this.keyId;
+  }
+
+  public String getApp()
+  {
+    return this.app;
+  }
+
+  public String getDlg()
+  {
+    return this.dlg;
+  }
+
+  public long getExpires()
+  {
+    return this.expires;
+  }
+
+  // Standard object methods follow
+  @Override
+  public String toString()
+  {
+    return super.toString() + '{' +
+        "keyId=" + this.keyId + ' ' +
+        "app=" + this.app + ' ' +
+        "dlg=" + this.dlg + ' ' +
+        "expires=" + this.expires + '}';
+  }
+}
@@ -0,0 +1,36 @@
+/*
+ *    Copyright 2013 Weald Technology Trading Limited
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ */
+
+package li.vin.hawk;
+
+/**
+ * A source of grants, used by a server to check that a request made on
+ * behalf of an application, with the <code>app</code> and <code>dlg</code>
+ * attributes, is allowed.
+ */
+public interface HawkGrantSource
+{
+  /**
+   * Resolve the grant for a request.
+   *
+   * @param keyId the key ID of the request
+   * @param app the application ID of the request
+   * @param dlg the delegating application ID of the request, or <code>null</code>
+   * @return the grant, or <code>null</code> if the application has no grant
+   *         for the key ID
+   */
+  HawkGrant getGrant(String keyId, String app, String dlg);
+}
@@ -0,0 +1,106 @@
+/*
+ *    Copyright 2013 Weald Technology Trading Limited
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ */
+
+package li.vin.hawk;
+
+/**
+ * The authorization sent alongside a message, such as one sent over a queue
+ * or a WebSocket.
+ */
+public final class HawkMessageAuthorization
+{
+  private final String id;
+  private final long ts;
+  private final String nonce;
+  private final String hash;
+  private final String mac;
+
+  /**
+   * Create a message authorization.
+   *
+   * @param id the key ID of the sender
+   * @param ts the timestamp of the message
+   * @param nonce the nonce of the message
+   * @param hash the hash of the message
+   * @param mac the MAC of the message
+   */
+  public HawkMessageAuthorization(final String id,
+                                  final long ts,
+                                  final String nonce,
+                                  final String hash,
+                                  final String mac)
+  {
+    this.id = id;
+    this.ts = ts;
+    this.nonce = nonce;
+    this.hash = hash;
+    this.mac = mac;
+    validate();
+  }
+
+  private void validate()
+  {
+    if (this.id == null) {
+      throw new NullPointerException("The key ID is required");
+    }
+    if (this.nonce == null) {
+      throw new NullPointerException("The nonce is required");
+    }
+    if (this.hash == null) {
+      throw new NullPointerException("The hash is required");
+    }
+    if (this.mac == null) {
+      throw new NullPointerException("The MAC is required");
+    }
+  }
+
+  public String getId()
+  {
+    return this.id;
+  }
+
+  public long getTs()
+  {
+    return this.ts;
+  }
+
+  public String getNonce()
+  {
+    return this.nonce;
+  }
+
+  public String getHash()
+  {
+    return this.hash;
+  }
+
+  public String getMac()
+  {
+    return this.mac;
+  }
+
+  // Standard object methods follow
+  @Override
+  public String toString()
+  {
+    return super.toString() + '{' +
+        "id=" + this.id + ' ' +
+        "ts=" + this.ts + ' ' +
+        "nonce=" + this.nonce + ' ' +
+        "hash=" + this.hash + ' ' +
+        "mac=" + this.mac + '}';
+  }
+}
@@ -0,0 +1,143 @@
+/*
+ *    Copyright 2013 Weald Technology Trading Limited
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ */
+
+package li.vin.hawk;
+
+import java.util.concurrent.ExecutorService;
+
+import javax.crypto.Mac;
+
+/**
+ * Signs messages sent by one sender over one channel, such as a queue or a
+ * WebSocket. Each thread keeps a MAC engine initialized with the sender's
+ * key, so signing a message costs the MACs themselves and nothing more.
+ */
+public final class HawkMessageSigner
+{
+  // Long enough that two batches in the same second are unlikely to share a prefix
+  private static final int BATCH_NONCE_PREFIX_LENGTH = 10;
+
+  private final HawkCredentials credentials;
+  private final String host;
+  private final int port;
+
+  private final ThreadLocal<Mac> macs = new ThreadLocal<Mac>()
+  {
+    @Override
+    protected Mac initialValue()
+    {
+      return Hawk.initMac(credentials);
+    }
+  };
+
+  /**
+   * Create a message signer.
+   *
+   * @param credentials Hawk credentials of the sender
+   * @param host the host of the channel
+   * @param port the port of the channel
+   */
+  public HawkMessageSigner(final HawkCredentials credentials, final String host, final int port)
+  {
+    if (credentials == null) {
+      throw new NullPointerException("Credentials are required but not supplied");
+    }
+    if (host == null) {
+      throw new NullPointerException("Host is required but not supplied");
+    }
+    this.credentials = credentials;
+    this.host = host;
+    this.port = port;
+  }
+
+  /**
+   * Sign a message.
+   *
+   * @param message the message
+   * @return the authorization to send with the message
+   */
+  public HawkMessageAuthorization sign(final String message)
+  {
+    return sign(this.macs.get(), System.currentTimeMillis() / Hawk.MILLISECONDS_IN_SECONDS, StringUtils.generateRandomString(6), message);
+  }
+
+  /**
+   * Sign a batch of messages on the calling thread.
+   *
+   * @param messages the messages
+   * @return the authorizations, in the same order as the messages
+   */
+  public HawkMessageAuthorization[] signAll(final String[] messages)
+  {
+    return signAll(messages, null);
+  }
+
+  /**
+   * Sign a batch of messages, splitting large batches across an executor.
+   * All of the messages in the batch share a timestamp, so rather than being
+   * drawn independently, where large batches would risk a duplicate, their
+   * nonces are a random prefix for the batch followed by the position of the
+   * message in it.
+   *
+   * @param messages the messages
+   * @param executor the executor, or <code>null</code> to sign on the calling thread
+   * @return the authorizations, in the same order as the messages
+   */
+  public HawkMessageAuthorization[] signAll(final String[] messages, final ExecutorService executor)
+  {
+    final long timestamp = System.currentTimeMillis() / Hawk.MILLISECONDS_IN_SECONDS;
+    final String prefix = StringUtils.generateRandomString(BATCH_NONCE_PREFIX_LENGTH);
+    final HawkMessageAuthorization[] authorizations = new HawkMessageAuthorization[messages.length];
+    Batches.run(messages.length, Batches.DEFAULT_CHUNK_SIZE, executor, new Batches.Chunk()
+    {
+      @Override
+      public void run(final int from, final int to)
+      {
+        final Mac mac = macs.get();
+        for (int i = from; i < to; i++)
+        {
+          authorizations[i] = sign(mac, timestamp, prefix + Integer.toString(i, Character.MAX_RADIX), messages[i]);
+        }
+      }
+    });
+    return authorizations;
+  }
+
+  private HawkMessageAuthorization sign(final Mac mac, final long timestamp, final String nonce, final String message)
+  {
+    if (message == null) {
+      throw new NullPointerException("Message is required but not supplied");
+    }
+    final String hash = Hawk.calculateMac(mac, Hawk.normalizeBody("", message));
+    final String signature = Hawk.calculateMac(mac, Hawk.normalizeMessage(timestamp, nonce, this.host, this.port, hash));
+    return new HawkMessageAuthorization(this.credentials.getKeyId(), timestamp, nonce, hash, signature);
+  }
+
+  public HawkCredentials getCredentials()
+  {
+    return this.credentials;
+  }
+
+  public String getHost()
+  {
+    return this.host;
+  }
+
+  public int getPort()
+  {
+    return this.port;
+  }
+}
@@ -0,0 +1,140 @@
+/*
+ *    Copyright 2013 Weald Technology Trading Limited
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ */
+
+package li.vin.hawk;
+
+import java.util.Arrays;
+
+/**
+ * A nonce as used for replay protection. Clients generate nonces per key ID
+ * and timestamp, so a nonce is identified by all three.
+ */
+public final class HawkNonce implements Comparable<HawkNonce>
+{
+  private static final long FNV_OFFSET_BASIS = 0xcbf29ce484222325L;
+  private static final long FNV_PRIME = 0x100000001b3L;
+
+  private final String keyId;
+  private final String nonce;
+  private final long timestamp;
+
+  /**
+   * Create a nonce.
+   *
+   * @param keyId the key ID of the requestor
+   * @param nonce the nonce supplied by the requestor
+   * @param timestamp the timestamp of the request
+   */
+  public HawkNonce(final String keyId, final String nonce, final long timestamp)
+  {
+    if (keyId == null) {
+      throw new NullPointerException("The key ID is required");
+    }
+    if (nonce == null) {
+      throw new NullPointerException("The nonce is required");
+    }
+    this.keyId = keyId;
+    this.nonce = nonce;
+    this.timestamp = timestamp;
+  }
+
+  public String getKeyId()
+  {
+    return this.keyId;
+  }
+
+  public String getNonce()
+  {
+    return this.nonce;
+  }
+
+  public long getTimestamp()
+  {
+    return this.timestamp;
+  }
+
+  /**
+   * Obtain a 64-bit FNV-1a hash over the key ID, nonce and timestamp, for
+   * stores that hold nonces in compact form.
+   *
+   * @return the hash
+   */
+  long fingerprint()
+  {
+    long hash = FNV_OFFSET_BASIS;
+    hash = fingerprint(hash, this.keyId);
+    hash = (hash ^ '\n') * FNV_PRIME;
+    hash = fingerprint(hash, this.nonce);
+    long ts = this.timestamp;
+    for (int i = 0; i < 8; i++)
+    {
+      hash = (hash ^ (ts & 0xff)) * FNV_PRIME;
+      ts >>>= 8;
+    }
+    return hash;
+  }
+
+  private static long fingerprint(long hash, final String value)
+  {
+    for (int i = 0; i < value.length(); i++)
+    {
+      hash = (hash ^ value.charAt(i)) * FNV_PRIME;
+    }
+    return hash;
+  }
+
+  // Standard object methods follow
+  @Override
+  public String toString()
+  {
+    return super.toString() + '{' +
+        "keyId=" + this.keyId + ' ' +
+        "nonce=" + this.nonce + ' ' +
+        "timestamp=" + this.timestamp + '}';
+  }
+
+  @Override
+  public boolean equals(final Object that)
+  {
+    return (that instanceof HawkNonce) && (this.compareTo((HawkNonce)that) == 0);
+  }
+
+  @Override
+  public int hashCode()
+  {
+    return Arrays.hashCode(new Object[] {this.keyId, this.nonce, this.timestamp});
+  }
+
+  @Override
+  public int compareTo(final HawkNonce that)
+  {
+    if (this == that) {
+      return 0;
+    }
+
+    final int idCompare = this.keyId.compareTo(that.keyId);
+    if (idCompare != 0) {
+      return idCompare;
+    }
+
+    final int nonceCompare = this.nonce.compareTo(that.nonce);
+    if (nonceCompare != 0) {
+      return nonceCompare;
+    }
+
+    return this.timestamp < that.timestamp ? -1 : (this.timestamp == that.timestamp ? 0 : 1);
+  }
+}
@@ -0,0 +1,191 @@
+/*
+ *    Copyright 2013 Weald Technology Trading Limited
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ */
+
+package li.vin.hawk;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+import javax.crypto.Mac;
+
+/**
+ * The body of a request to be signed by a Hawk client.
+ * <p>
+ * The payload hash has to be sent in the authorization header, ahead of the
+ * body itself, so a payload must be able to supply its content more than
+ * once: once to be hashed and once to be sent. Each pass streams the content,
+ * so neither requires the body to be held in memory.
+ */
+public abstract class HawkPayload
+{
+  private static final int BUFFER_SIZE = 8192;
+
+  private final String contentType;
+
+  protected HawkPayload(final String contentType)
+  {
+    if (contentType == null) {
+      throw new NullPointerException("Content type is required but not supplied");
+    }
+    this.contentType = contentType;
+  }
+
+  /**
+   * Create a payload from an array of bytes.
+   *
+   * @param contentType the MIME content type
+   * @param body the body
+   * @return the payload
+   */
+  public static HawkPayload fromBytes(final String contentType, final byte[] body)
+  {
+    if (body == null) {
+      throw new NullPointerException("Body is required but not supplied");
+    }
+    return new HawkPayload(contentType)
+    {
+      @Override
+      public InputStream openStream()
+      {
+        return new ByteArrayInputStream(body);
+      }
+
+      @Override
+      public long getLength()
+      {
+        return body.length;
+      }
+    };
+  }
+
+  /**
+   * Create a payload from the contents of a file.
+   *
+   * @param contentType the MIME content type
+   * @param body the file holding the body
+   * @return the payload
+   */
+  public static HawkPayload fromFile(final String contentType, final File body)
+  {
+    if (body == null) {
+      throw new NullPointerException("Body is required but not supplied");
+    }
+    return new HawkPayload(contentType)
+    {
+      @Override
+      public InputStream openStream() throws IOException
+      {
+        return new FileInputStream(body);
+      }
+
+      @Override
+      public long getLength()
+      {
+        return body.length();
+      }
+    };
+  }
+
+  /**
+   * Open a new stream over the content of the payload. Every call must
+   * return the same content from the start.
+   *
+   * @return a stream over the payload content
+   * @throws IOException if the content cannot be opened
+   */
+  public abstract InputStream openStream() throws IOException;
+
+  /**
+   * Obtain the length of the payload in bytes.
+   *
+   * @return the length, or <code>-1</code> if it is not known in advance
+   */
+  public long getLength()
+  {
+    return -1L;
+  }
+
+  public String getContentType()
+  {
+    return this.contentType;
+  }
+
+  /**
+   * Calculate the payload hash in a single streaming pass over the content.
+   *
+   * @param credentials Hawk credentials of the requestor
+   * @return the payload hash
+   * @throws IOException if the content cannot be read
+   */
+  public String calculateHash(final HawkCredentials credentials) throws IOException
+  {
+    final HawkTracer tracer = HawkTracing.tracer;
+    final long start = tracer == null ? 0L : System.nanoTime();
+    long size = 0L;
+    boolean success = false;
+    final Mac mac = Hawk.startBodyMac(credentials, this.contentType);
+    final InputStream in = openStream();
+    try
+    {
+      final byte[] buffer = new byte[BUFFER_SIZE];
+      int count;
+      while ((count = in.read(buffer)) != -1)
+      {
+        mac.update(buffer, 0, count);
+        size += count;
+      }
+      final String hash = Hawk.finishBodyMac(mac);
+      success = true;
+      return hash;
+    }
+    finally
+    {
+      in.close();
+      if (tracer != null)
+      {
+        tracer.phase(HawkTracer.Phase.PAYLOAD_HASH, credentials.getKeyId(), null, size, System.nanoTime() - start, success);
+      }
+    }
+  }
+
+  /**
+   * Write the content of the payload to a stream.
+   *
+   * @param out the stream to write to
+   * @throws IOException if the content cannot be read or written
+   */
+  public void writeTo(final OutputStream out) throws IOException
+  {
+    final InputStream in = openStream();
+    try
+    {
+      final byte[] buffer = new byte[BUFFER_SIZE];
+      int count;
+      while ((count = in.read(buffer)) != -1)
+      {
+        out.write(buffer, 0, count);
+      }
+    }
+    finally
+    {
+      in.close();
+    }
+  }
+}
@@ -0,0 +1,224 @@
+/*
+ *    Copyright 2013 Weald Technology Trading Limited
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ */
+
+package li.vin.hawk;
+
+import java.io.IOException;
+import java.net.URI;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+
+import javax.crypto.Mac;
+
+/**
+ * A request whose authorization header is prepared ahead of sending it, as
+ * returned by
+ * {@link HawkClient#prepare(URI, String, HawkPayload, String, String, String, ExecutorService)}.
+ * <p>
+ * Preparation hashes the payload, generates the nonce, initializes the MAC
+ * engine and signs the header for the current second. Everything in the
+ * header but the timestamp and the MAC is encoded up front, as is everything
+ * in the signed string after the timestamp, so if the request is sent in a
+ * later second only the MAC itself has to be recalculated.
+ * <p>
+ * A prepared request is good for sending once; a retry needs a new nonce,
+ * and so a new preparation.
+ */
+public final class HawkPreparedRequest
+{
+  private static final byte[] SIGNED_HEAD = ("hawk." + Hawk.HAWKVERSION + '.' + Hawk.AuthType.HEADER + '\n').getBytes(Hawk.UTF8);
+
+  private final HawkCredentials credentials;
+  private final HawkAuditLog auditLog;
+  private final URI uri;
+  private final Future<Signed> signed;
+
+  HawkPreparedRequest(final HawkClient client,
+                      final HawkCredentials credentials,
+                      final HawkAuditLog auditLog,
+                      final URI uri,
+                      final String method,
+                      final HawkPayload payload,
+                      final String ext,
+                      final String app,
+                      final String dlg,
+                      final ExecutorService executor)
+  {
+    if (uri == null) {
+      throw new NullPointerException("URI is required but not supplied");
+    }
+    if (method == null) {
+      throw new NullPointerException("Method is required but not supplied");
+    }
+    this.credentials = credentials;
+    this.auditLog = auditLog;
+    this.uri = uri;
+
+    final Callable<Signed> preparation = new Callable<Signed>()
+    {
+      @Override
+      public Signed call() throws IOException
+      {
+        return new Signed(client.hashPayload(payload), method, ext, app, dlg);
+      }
+    };
+    if (executor == null)
+    {
+      final FutureTask<Signed> task = new FutureTask<Signed>(preparation);
+      task.run();
+      this.signed = task;
+    }
+    else
+    {
+      this.signed = executor.submit(preparation);
+    }
+  }
+
+  /**
+   * Obtain the value for the Hawk authorization header, waiting for the
+   * preparation to finish if necessary.
+   *
+   * @return The value for the Hawk authorization header.
+   * @throws IOException if the payload could not be read
+   */
+  public String getAuthorizationHeader() throws IOException
+  {
+    final Signed signed = await();
+    final long now = System.currentTimeMillis() / Hawk.MILLISECONDS_IN_SECONDS;
+    final String header = signed.header(now);
+    if (this.auditLog != null)
+    {
+      this.auditLog.record(HawkAuditLog.Operation.SIGN_REQUEST, this.credentials.getKeyId(), now, signed.nonce, HawkAuthResult.Status.OK);
+    }
+    return header;
+  }
+
+  /**
+   * Obtain the hash of the payload, waiting for the preparation to finish if
+   * necessary.
+   *
+   * @return the hash, or <code>null</code> if the request has no payload or
+   *         payloads are not validated
+   * @throws IOException if the payload could not be read
+   */
+  public String getHash() throws IOException
+  {
+    return await().hash;
+  }
+
+  public URI getUri()
+  {
+    return this.uri;
+  }
+
+  private Signed await() throws IOException
+  {
+    try
+    {
+      return this.signed.get();
+    }
+    catch (InterruptedException ie)
+    {
+      Thread.currentThread().interrupt();
+      throw new HawkError("Interrupted while preparing request", ie);
+    }
+    catch (ExecutionException ee)
+    {
+      if (ee.getCause() instanceof IOException) {
+        throw (IOException)ee.getCause();
+      }
+      if (ee.getCause() instanceof RuntimeException) {
+        throw (RuntimeException)ee.getCause();
+      }
+      throw new HawkError("Preparation failed", ee.getCause());
+    }
+  }
+
+  /**
+   * The header, signed for one second and ready to be re-signed for another.
+   */
+  private final class Signed
+  {
+    private final String hash;
+    private final String nonce;
+    private final Mac mac;
+    // Everything in the header before the timestamp
+    private final String template;
+    // Everything in the signed string after the timestamp
+    private final byte[] signedTail;
+    private long timestamp;
+    private String header;
+
+    Signed(final String hash, final String method, final String ext, final String app, final String dlg)
+    {
+      this.hash = hash;
+      this.nonce = StringUtils.generateRandomString(6);
+      this.mac = Hawk.initMac(credentials);
+
+      final long now = System.currentTimeMillis() / Hawk.MILLISECONDS_IN_SECONDS;
+      final String text = Hawk.normalize(Hawk.AuthType.HEADER, now, uri, this.nonce, method, hash, ext, app, dlg);
+      this.signedTail = text.substring(SIGNED_HEAD.length + Long.toString(now).length()).getBytes(Hawk.UTF8);
+
+      final StringBuilder sb = new StringBuilder(256);
+      sb.append("Hawk id=\"");
+      sb.append(credentials.getKeyId());
+      sb.append("\", nonce=\"");
+      sb.append(this.nonce);
+      if (hash != null)
+      {
+        sb.append("\", hash=\"");
+        sb.append(hash);
+      }
+      if ((ext != null) && (!"".equals(ext)))
+      {
+        sb.append("\", ext=\"");
+        sb.append(ext);
+      }
+      if (app != null)
+      {
+        sb.append("\", app=\"");
+        sb.append(app);
+        if (dlg != null)
+        {
+          sb.append("\", dlg=\"");
+          sb.append(dlg);
+        }
+      }
+      sb.append("\", ts=\"");
+      this.template = sb.toString();
+
+      header(now);
+    }
+
+    synchronized String header(final long now)
+    {
+      if (this.header == null || this.timestamp != now)
+      {
+        final String ts = Long.toString(now);
+        this.mac.update(SIGNED_HEAD);
+        this.mac.update(ts.getBytes(Hawk.UTF8));
+        this.mac.update(this.signedTail);
+        final String signature = Hawk.encodeMac(this.mac.doFinal());
+        this.header = this.template + ts + "\", mac=\"" + signature + '"';
+        this.timestamp = now;
+      }
+      return this.header;
+    }
+  }
+}
@@ -0,0 +1,763 @@
+/*
+ *    Copyright 2013 Weald Technology Trading Limited
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ */
+
+package li.vin.hawk;
+
+import java.io.InputStream;
+import java.net.URI;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+
+import javax.crypto.Mac;
+
+import li.vin.hawk.Hawk.PayloadValidation;
+
+/**
+ * Server-side authentication of Hawk requests. This is independent of any
+ * particular HTTP stack: a container filter parses the authorization header,
+ * calls {@link #authenticate(URI, String, HawkAuthorizationHeader)} and then
+ * hands the application the stream returned by
+ * {@link #verifyPayload(InputStream, String, HawkCredentials, HawkAuthorizationHeader)}
+ * in place of the raw request body.
+ */
+public final class HawkServer
+{
+  /**
+   * The default allowed difference between client and server clocks, in seconds
+   */
+  public static final long DEFAULT_TIMESTAMP_SKEW = 60L;
+
+  private final HawkCredentialsSource credentialsSource;
+  private final HawkClientConfiguration configuration;
+  private final long timestampSkew;
+  private final NonceStore nonceStore;
+  private final HawkAuditLog auditLog;
+  private final HawkGrantSource grantSource;
+  private final KeyRateLimiter rateLimiter;
+
+  private HawkServer(final HawkCredentialsSource credentialsSource,
+                     final HawkClientConfiguration configuration,
+                     final Long timestampSkew,
+                     final NonceStore nonceStore,
+                     final HawkAuditLog auditLog,
+                     final HawkGrantSource grantSource,
+                     final KeyRateLimiter rateLimiter)
+  {
+    this.credentialsSource = credentialsSource;
+    this.grantSource = grantSource;
+    this.rateLimiter = rateLimiter;
+    this.auditLog = auditLog;
+    if (configuration == null)
+    {
+      this.configuration = new HawkClientConfiguration();
+    }
+    else
+    {
+      this.configuration = configuration;
+    }
+    if (timestampSkew == null)
+    {
+      this.timestampSkew = DEFAULT_TIMESTAMP_SKEW;
+    }
+    else
+    {
+      this.timestampSkew = timestampSkew;
+    }
+    if (nonceStore == null)
+    {
+      this.nonceStore = new InMemoryNonceStore(this.timestampSkew);
+    }
+    else
+    {
+      this.nonceStore = nonceStore;
+    }
+    validate();
+  }
+
+  private void validate()
+  {
+    if (this.credentialsSource == null) {
+      throw new NullPointerException("The credentials source is required");
+    }
+    if (this.timestampSkew < 0) {
+      throw new IllegalArgumentException("The timestamp skew must not be negative");
+    }
+  }
+
+  /**
+   * Authenticate a request.
+   *
+   * @param uri the URI of the request
+   * @param method the HTTP method of the request
+   * @param header the parsed authorization header of the request
+   * @return the credentials of the authenticated requestor
+   * @throws HawkError if the request fails authentication
+   */
+  public HawkCredentials authenticate(final URI uri,
+                                      final String method,
+                                      final HawkAuthorizationHeader header) throws HawkError
+  {
+    final HawkAuthResult result = verify(uri, method, header);
+    if (!result.isAuthenticated()) {
+      throw new HawkError(result.getStatus().getMessage());
+    }
+    return result.getCredentials();
+  }
+
+  /**
+   * Verify a request without throwing on rejection.
+   *
+   * @param uri the URI of the request
+   * @param method the HTTP method of the request
+   * @param authorizationHeader the raw authorization header of the request, or
+   *          <code>null</code> if there is none
+   * @return the result of the verification
+   */
+  public HawkAuthResult verify(final URI uri,
+                               final String method,
+                               final String authorizationHeader)
+  {
+    if (authorizationHeader == null)
+    {
+      return audit(HawkAuditLog.Operation.VERIFY_REQUEST, null, 0L, null,
+                   HawkAuthResult.failure(HawkAuthResult.Status.MISSING_HEADER));
+    }
+    final HawkAuthorizationHeader header = HawkAuthorizationHeader.tryParse(authorizationHeader);
+    if (header == null)
+    {
+      return audit(HawkAuditLog.Operation.VERIFY_REQUEST, null, 0L, null,
+                   HawkAuthResult.failure(HawkAuthResult.Status.MALFORMED_HEADER));
+    }
+    return verify(uri, method, header);
+  }
+
+  /**
+   * Verify a request without throwing on rejection. The checks run cheapest
+   * first, so that the credential lookup and the MAC are only paid for by
+   * requests that are fresh and not obviously replayed.
+   *
+   * @param uri the URI of the request
+   * @param method the HTTP method of the request
+   * @param header the parsed authorization header of the request
+   * @return the result of the verification
+   */
+  public HawkAuthResult verify(final URI uri,
+                               final String method,
+                               final HawkAuthorizationHeader header)
+  {
+    if (header == null)
+    {
+      return audit(HawkAuditLog.Operation.VERIFY_REQUEST, null, 0L, null,
+                   HawkAuthResult.failure(HawkAuthResult.Status.MISSING_HEADER));
+    }
+    return audit(HawkAuditLog.Operation.VERIFY_REQUEST, header.getId(), header.getTs(), header.getNonce(),
+                 check(uri, method, header, null));
+  }
+
+  /**
+   * Verify a batch of requests, such as a captured request log or a batch of
+   * RPCs, splitting large batches across an executor. The requests are
+   * grouped by key ID and a key's requests are never split across tasks, so
+   * the credentials of a key are resolved and its MAC engine initialized once
+   * for all of its requests. Requests with the same key ID are verified in
+   * the order given, so of two requests with the same nonce it is the later
+   * one that is rejected.
+   *
+   * @param uris the URIs of the requests
+   * @param methods the HTTP methods of the requests
+   * @param authorizationHeaders the raw authorization headers of the
+   *          requests, with <code>null</code> for a request without one
+   * @param executor the executor, or <code>null</code> to verify on the calling thread
+   * @return the results of the verifications, in the same order as the requests
+   */
+  public HawkAuthResult[] verify(final URI[] uris,
+                                 final String[] methods,
+                                 final String[] authorizationHeaders,
+                                 final ExecutorService executor)
+  {
+    if (uris.length != authorizationHeaders.length || methods.length != authorizationHeaders.length) {
+      throw new IllegalArgumentException("There must be one URI and method per authorization header");
+    }
+    final int count = authorizationHeaders.length;
+    final HawkAuthResult[] results = new HawkAuthResult[count];
+    final HawkAuthorizationHeader[] headers = new HawkAuthorizationHeader[count];
+    Batches.run(count, Batches.DEFAULT_CHUNK_SIZE, executor, new Batches.Chunk()
+    {
+      @Override
+      public void run(final int from, final int to)
+      {
+        for (int i = from; i < to; i++)
+        {
+          if (authorizationHeaders[i] == null)
+          {
+            results[i] = audit(HawkAuditLog.Operation.VERIFY_REQUEST, null, 0L, null,
+                               HawkAuthResult.failure(HawkAuthResult.Status.MISSING_HEADER));
+          }
+          else if ((headers[i] = HawkAuthorizationHeader.tryParse(authorizationHeaders[i])) == null)
+          {
+            results[i] = audit(HawkAuditLog.Operation.VERIFY_REQUEST, null, 0L, null,
+                               HawkAuthResult.failure(HawkAuthResult.Status.MALFORMED_HEADER));
+          }
+        }
+      }
+    });
+
+    // The sort is stable, so each key's requests keep their order
+    int parsed = 0;
+    final Integer[] order = new Integer[count];
+    for (int i = 0; i < count; i++)
+    {
+      if (headers[i] != null)
+      {
+        order[parsed++] = i;
+      }
+    }
+    Arrays.sort(order, 0, parsed, new Comparator<Integer>()
+    {
+      @Override
+      public int compare(final Integer a, final Integer b)
+      {
+        return headers[a].getId().compareTo(headers[b].getId());
+      }
+    });
+
+    // Chunks end on key boundaries, so that each key is verified in order by
+    // a single task; small keys are packed together, and a large key gets a
+    // chunk of its own however many requests it has
+    final int[] starts = new int[parsed + 1];
+    int chunks = 0;
+    int chunkStart = 0;
+    for (int i = 1; i <= parsed; i++)
+    {
+      if (i == parsed || !headers[order[i]].getId().equals(headers[order[i - 1]].getId()))
+      {
+        if (i - starts[chunks] > Batches.DEFAULT_CHUNK_SIZE && chunkStart > starts[chunks])
+        {
+          starts[++chunks] = chunkStart;
+        }
+        chunkStart = i;
+      }
+    }
+    final int[] bounds = Arrays.copyOf(starts, parsed == 0 ? 1 : chunks + 2);
+    bounds[bounds.length - 1] = parsed;
+
+    Batches.run(bounds, executor, new Batches.Chunk()
+    {
+      @Override
+      public void run(final int from, final int to)
+      {
+        final Engines engines = new Engines();
+        for (int i = from; i < to; i++)
+        {
+          final int index = order[i];
+          final HawkAuthorizationHeader header = headers[index];
+          results[index] = audit(HawkAuditLog.Operation.VERIFY_REQUEST, header.getId(), header.getTs(), header.getNonce(),
+                                 check(uris[index], methods[index], header, engines));
+        }
+      }
+    });
+    return results;
+  }
+
+  private HawkAuthResult check(final URI uri,
+                               final String method,
+                               final HawkAuthorizationHeader header,
+                               final Engines engines)
+  {
+    final long now = System.currentTimeMillis() / Hawk.MILLISECONDS_IN_SECONDS;
+    if (Math.abs(now - header.getTs()) > this.timestampSkew)
+    {
+      return HawkAuthResult.failure(HawkAuthResult.Status.STALE_TIMESTAMP);
+    }
+
+    // Reject known replays before doing any real work; the nonce is only
+    // recorded once the MAC proves the request genuine
+    final HawkNonce nonce = new HawkNonce(header.getId(), header.getNonce(), header.getTs());
+    if (this.nonceStore.contains(nonce))
+    {
+      return HawkAuthResult.failure(HawkAuthResult.Status.DUPLICATE_NONCE);
+    }
+
+    // Throttled clients cost neither a credential lookup nor a MAC
+    if (this.rateLimiter != null && !this.rateLimiter.tryAcquire(header.getId()))
+    {
+      return HawkAuthResult.failure(HawkAuthResult.Status.THROTTLED);
+    }
+
+    final HawkCredentials credentials = engines == null ? this.credentialsSource.getCredentials(header.getId())
+                                                        : engines.getCredentials(header.getId());
+    if (credentials == null)
+    {
+      return HawkAuthResult.failure(HawkAuthResult.Status.UNKNOWN_CREDENTIALS);
+    }
+
+    final byte[] mac;
+    if (engines == null)
+    {
+      mac = Hawk.calculateRawMAC(credentials, Hawk.AuthType.HEADER, header.getTs(), uri, header.getNonce(), method,
+                                 header.getHash(), header.getExt(), header.getApp(), header.getDlg());
+    }
+    else
+    {
+      final HawkTracer tracer = HawkTracing.tracer;
+      final long start = tracer == null ? 0L : System.nanoTime();
+      final String text = Hawk.normalize(Hawk.AuthType.HEADER, header.getTs(), uri, header.getNonce(), method,
+                                         header.getHash(), header.getExt(), header.getApp(), header.getDlg());
+      if (tracer != null)
+      {
+        tracer.phase(HawkTracer.Phase.NORMALIZE, header.getId(), Hawk.AuthType.HEADER, text.length(), System.nanoTime() - start, true);
+      }
+      mac = Hawk.rawMac(engines.getMac(credentials), text);
+    }
+    if (!HawkBuffers.macEquals(mac, header.getMac()))
+    {
+      return HawkAuthResult.failure(HawkAuthResult.Status.BAD_MAC);
+    }
+
+    // Only genuine requests get as far as resolving a grant
+    if (header.getApp() != null && this.grantSource != null)
+    {
+      final HawkGrant grant = this.grantSource.getGrant(header.getId(), header.getApp(), header.getDlg());
+      if (grant == null || !grant.covers(header.getId(), header.getApp(), header.getDlg(), now))
+      {
+        return HawkAuthResult.failure(HawkAuthResult.Status.INVALID_GRANT);
+      }
+    }
+
+    // Concurrent copies of the same request can all get this far, but only
+    // one of them can record the nonce
+    try
+    {
+      if (!this.nonceStore.add(nonce))
+      {
+        return HawkAuthResult.failure(HawkAuthResult.Status.DUPLICATE_NONCE);
+      }
+    }
+    catch (HawkError he)
+    {
+      // Without replay protection the request cannot be trusted
+      return HawkAuthResult.failure(HawkAuthResult.Status.NONCE_STORE_UNAVAILABLE);
+    }
+
+    return HawkAuthResult.success(credentials, header);
+  }
+
+  /**
+   * Verify a message, such as one received over a queue or a WebSocket.
+   *
+   * @param host the host of the channel
+   * @param port the port of the channel
+   * @param message the message
+   * @param authorization the authorization sent with the message
+   * @return the result of the verification
+   */
+  public HawkAuthResult verifyMessage(final String host,
+                                      final int port,
+                                      final String message,
+                                      final HawkMessageAuthorization authorization)
+  {
+    return verifyMessage(host, port, message, authorization, null);
+  }
+
+  /**
+   * Verify a batch of messages received over one channel, splitting large
+   * batches across an executor. Each task initializes one MAC engine per
+   * sender and reuses it for all of that sender's messages.
+   *
+   * @param host the host of the channel
+   * @param port the port of the channel
+   * @param messages the messages
+   * @param authorizations the authorizations sent with the messages, in the
+   *          same order as the messages
+   * @param executor the executor, or <code>null</code> to verify on the calling thread
+   * @return the results of the verifications, in the same order as the messages
+   */
+  public HawkAuthResult[] verifyMessages(final String host,
+                                         final int port,
+                                         final String[] messages,
+                                         final HawkMessageAuthorization[] authorizations,
+                                         final ExecutorService executor)
+  {
+    if (messages.length != authorizations.length) {
+      throw new IllegalArgumentException("There must be one authorization per message");
+    }
+    final HawkAuthResult[] results = new HawkAuthResult[messages.length];
+    Batches.run(messages.length, Batches.DEFAULT_CHUNK_SIZE, executor, new Batches.Chunk()
+    {
+      @Override
+      public void run(final int from, final int to)
+      {
+        final Engines engines = new Engines();
+        for (int i = from; i < to; i++)
+        {
+          results[i] = verifyMessage(host, port, messages[i], authorizations[i], engines);
+        }
+      }
+    });
+    return results;
+  }
+
+  private HawkAuthResult verifyMessage(final String host,
+                                       final int port,
+                                       final String message,
+                                       final HawkMessageAuthorization authorization,
+                                       final Engines engines)
+  {
+    if (authorization == null)
+    {
+      return audit(HawkAuditLog.Operation.VERIFY_MESSAGE, null, 0L, null,
+                   HawkAuthResult.failure(HawkAuthResult.Status.MISSING_HEADER));
+    }
+    return audit(HawkAuditLog.Operation.VERIFY_MESSAGE, authorization.getId(), authorization.getTs(), authorization.getNonce(),
+                 checkMessage(host, port, message, authorization, engines));
+  }
+
+  private HawkAuthResult checkMessage(final String host,
+                                      final int port,
+                                      final String message,
+                                      final HawkMessageAuthorization authorization,
+                                      final Engines engines)
+  {
+    final long now = System.currentTimeMillis() / Hawk.MILLISECONDS_IN_SECONDS;
+    if (Math.abs(now - authorization.getTs()) > this.timestampSkew)
+    {
+      return HawkAuthResult.failure(HawkAuthResult.Status.STALE_TIMESTAMP);
+    }
+
+    final HawkNonce nonce = new HawkNonce(authorization.getId(), authorization.getNonce(), authorization.getTs());
+    if (this.nonceStore.contains(nonce))
+    {
+      return HawkAuthResult.failure(HawkAuthResult.Status.DUPLICATE_NONCE);
+    }
+
+    if (this.rateLimiter != null && !this.rateLimiter.tryAcquire(authorization.getId()))
+    {
+      return HawkAuthResult.failure(HawkAuthResult.Status.THROTTLED);
+    }
+
+    final HawkCredentials credentials = engines == null ? this.credentialsSource.getCredentials(authorization.getId())
+                                                        : engines.getCredentials(authorization.getId());
+    if (credentials == null)
+    {
+      return HawkAuthResult.failure(HawkAuthResult.Status.UNKNOWN_CREDENTIALS);
+    }
+
+    final Mac mac = engines == null ? Hawk.initMac(credentials) : engines.getMac(credentials);
+
+    // The MAC covers the hash, and is cheaper to check than hashing the message
+    final HawkTracer tracer = HawkTracing.tracer;
+    long start = tracer == null ? 0L : System.nanoTime();
+    final String text = Hawk.normalizeMessage(authorization.getTs(), authorization.getNonce(), host, port, authorization.getHash());
+    if (tracer != null)
+    {
+      tracer.phase(HawkTracer.Phase.NORMALIZE, authorization.getId(), Hawk.AuthType.MESSAGE, text.length(), System.nanoTime() - start, true);
+    }
+    if (!HawkBuffers.macEquals(Hawk.rawMac(mac, text), authorization.getMac()))
+    {
+      return HawkAuthResult.failure(HawkAuthResult.Status.BAD_MAC);
+    }
+    start = tracer == null ? 0L : System.nanoTime();
+    final boolean hashMatched = HawkBuffers.macEquals(Hawk.rawMac(mac, Hawk.normalizeBody("", message)), authorization.getHash());
+    if (tracer != null)
+    {
+      tracer.phase(HawkTracer.Phase.PAYLOAD_HASH, authorization.getId(), Hawk.AuthType.MESSAGE, message.length(), System.nanoTime() - start, hashMatched);
+    }
+    if (!hashMatched)
+    {
+      return HawkAuthResult.failure(HawkAuthResult.Status.BAD_HASH);
+    }
+
+    try
+    {
+      if (!this.nonceStore.add(nonce))
+      {
+        return HawkAuthResult.failure(HawkAuthResult.Status.DUPLICATE_NONCE);
+      }
+    }
+    catch (HawkError he)
+    {
+      return HawkAuthResult.failure(HawkAuthResult.Status.NONCE_STORE_UNAVAILABLE);
+    }
+
+    return HawkAuthResult.success(credentials, null);
+  }
+
+  /**
+   * The credentials and MAC engines resolved by one task of a batch.
+   */
+  private final class Engines
+  {
+    private final Map<String, HawkCredentials> credentials = new HashMap<String, HawkCredentials>();
+    private final Map<HawkCredentials, Mac> macs = new HashMap<HawkCredentials, Mac>();
+
+    HawkCredentials getCredentials(final String keyId)
+    {
+      // Unknown key IDs are remembered too
+      if (this.credentials.containsKey(keyId))
+      {
+        return this.credentials.get(keyId);
+      }
+      final HawkCredentials resolved = credentialsSource.getCredentials(keyId);
+      this.credentials.put(keyId, resolved);
+      return resolved;
+    }
+
+    Mac getMac(final HawkCredentials credentials)
+    {
+      Mac mac = this.macs.get(credentials);
+      if (mac == null)
+      {
+        mac = Hawk.initMac(credentials);
+        this.macs.put(credentials, mac);
+      }
+      return mac;
+    }
+  }
+
+  /**
+   * Record a decision in the audit log, if there is one.
+   */
+  private HawkAuthResult audit(final HawkAuditLog.Operation operation,
+                               final String keyId,
+                               final long timestamp,
+                               final String nonce,
+                               final HawkAuthResult result)
+  {
+    if (this.auditLog != null)
+    {
+      this.auditLog.record(operation, keyId, timestamp, nonce, result.getStatus());
+    }
+    return result;
+  }
+
+  /**
+   * Obtain the request body that the application should read, enforcing the
+   * payload validation policy of the configuration. When the payload has to
+   * be validated the returned stream checks the hash as it is read, failing
+   * the read that reaches the end of the body if the hash does not match.
+   * Otherwise the raw body is returned, and validation costs nothing.
+   * <p>
+   * A validated body can only be trusted once it has been read to the end
+   * or the stream has been closed without error, as closing reads the rest
+   * of the body, up to {@link PayloadVerifyingInputStream#DEFAULT_MAX_CLOSE_DRAIN}
+   * bytes, and fails if the hash does not match or more was left unread.
+   *
+   * @param body the raw request body
+   * @param contentType the MIME content type of the request body
+   * @param credentials the credentials returned by authentication
+   * @param header the parsed authorization header of the request
+   * @return the request body to hand to the application
+   * @throws HawkError if the payload validation policy rejects the request
+   */
+  public InputStream verifyPayload(final InputStream body,
+                                   final String contentType,
+                                   final HawkCredentials credentials,
+                                   final HawkAuthorizationHeader header) throws HawkError
+  {
+    final PayloadValidation payloadValidation = this.configuration.getPayloadValidation();
+    if (payloadValidation == PayloadValidation.NEVER)
+    {
+      return body;
+    }
+    if (header.getHash() == null)
+    {
+      if (payloadValidation == PayloadValidation.MANDATORY) {
+        throw new HawkError("Payload hash is required but not supplied");
+      }
+      return body;
+    }
+    if (contentType == null) {
+      throw new HawkError("Content type is required to validate the payload");
+    }
+    return new PayloadVerifyingInputStream(body, credentials, contentType, header.getHash());
+  }
+
+  /**
+   * Obtain the request body that the application should read, as
+   * {@link #verifyPayload(InputStream, String, HawkCredentials, HawkAuthorizationHeader)}
+   * for an authenticated request.
+   *
+   * @param body the raw request body
+   * @param contentType the MIME content type of the request body
+   * @param result the result of verifying the request
+   * @return the request body to hand to the application
+   * @throws HawkError if the request was not authenticated or the payload
+   *           validation policy rejects it
+   */
+  public InputStream verifyPayload(final InputStream body,
+                                   final String contentType,
+                                   final HawkAuthResult result) throws HawkError
+  {
+    if (!result.isAuthenticated() || result.getHeader() == null) {
+      throw new HawkError("Payloads can only be verified for authenticated requests");
+    }
+    return verifyPayload(body, contentType, result.getCredentials(), result.getHeader());
+  }
+
+  public HawkClientConfiguration getConfiguration()
+  {
+    return this.configuration;
+  }
+
+  public long getTimestampSkew()
+  {
+    return this.timestampSkew;
+  }
+
+  public NonceStore getNonceStore()
+  {
+    return this.nonceStore;
+  }
+
+  public HawkAuditLog getAuditLog()
+  {
+    return this.auditLog;
+  }
+
+  public HawkGrantSource getGrantSource()
+  {
+    return this.grantSource;
+  }
+
+  public KeyRateLimiter getRateLimiter()
+  {
+    return this.rateLimiter;
+  }
+
+  // Standard object methods follow
+  @Override
+  public String toString()
+  {
+    return super.toString() + '{' +
+        "configuration=" + this.configuration + ' ' +
+        "timestampSkew=" + this.timestampSkew + '}';
+  }
+
+  public static class Builder
+  {
+    private HawkCredentialsSource credentialsSource;
+    private HawkClientConfiguration configuration;
+    private Long timestampSkew;
+    private NonceStore nonceStore;
+    private HawkAuditLog auditLog;
+    private HawkGrantSource grantSource;
+    private KeyRateLimiter rateLimiter;
+
+    /**
+     * Generate a new builder.
+     */
+    public Builder()
+    {
+    }
+
+    /**
+     * Override the existing credentials source.
+     * @param credentialsSource the new credentials source
+     * @return The builder
+     */
+    public Builder credentialsSource(final HawkCredentialsSource credentialsSource)
+    {
+      this.credentialsSource = credentialsSource;
+      return this;
+    }
+
+    /**
+     * Override the existing configuration.
+     * @param configuration the new configuration
+     * @return The builder
+     */
+    public Builder configuration(final HawkClientConfiguration configuration)
+    {
+      this.configuration = configuration;
+      return this;
+    }
+
+    /**
+     * Override the default timestamp skew.
+     * @param timestampSkew the allowed clock difference, in seconds
+     * @return The builder
+     */
+    public Builder timestampSkew(final Long timestampSkew)
+    {
+      this.timestampSkew = timestampSkew;
+      return this;
+    }
+
+    /**
+     * Override the default in-memory nonce store, for example to share
+     * replay protection between servers.
+     * @param nonceStore the new nonce store
+     * @return The builder
+     */
+    public Builder nonceStore(final NonceStore nonceStore)
+    {
+      this.nonceStore = nonceStore;
+      return this;
+    }
+
+    /**
+     * Record every authentication decision in an audit log.
+     * @param auditLog the audit log
+     * @return The builder
+     */
+    public Builder auditLog(final HawkAuditLog auditLog)
+    {
+      this.auditLog = auditLog;
+      return this;
+    }
+
+    /**
+     * Check requests made on behalf of an application, with the
+     * <code>app</code> attribute, against the application's grants. Wrap
+     * the source in a {@link CachingGrantSource} to avoid resolving the
+     * same grant on every request.
+     * @param grantSource the grant source, or <code>null</code> to accept
+     *          any application whose request has a valid MAC
+     * @return The builder
+     */
+    public Builder grantSource(final HawkGrantSource grantSource)
+    {
+      this.grantSource = grantSource;
+      return this;
+    }
+
+    /**
+     * Limit the rate of requests and messages from each key ID. Limits are
+     * applied before the MAC is checked, so that throttling costs no
+     * cryptography; as a result, requests that claim a key ID count
+     * against its limit whether or not they are genuine.
+     * @param rateLimiter the rate limiter, or <code>null</code> for no limit
+     * @return The builder
+     */
+    public Builder rateLimiter(final KeyRateLimiter rateLimiter)
+    {
+      this.rateLimiter = rateLimiter;
+      return this;
+    }
+
+    /**
+     * Build the server
+     * @return a new server
+     */
+    public HawkServer build()
+    {
+      return new HawkServer(this.credentialsSource, this.configuration, this.timestampSkew, this.nonceStore, this.auditLog, this.grantSource, this.rateLimiter);
+    }
+  }
+}
@@ -0,0 +1,68 @@
+/*
+ *    Copyright 2013 Weald Technology Trading Limited
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ */
+
+package li.vin.hawk;
+
+/**
+ * Receives the timing of each phase of signing and verification, to find
+ * out which phase is to blame when authentication slows down.
+ * <p>
+ * Tracing is off until a tracer is installed with
+ * {@link HawkTracing#setTracer(HawkTracer)}. Tracers are called on the
+ * request thread, so they should hand the timings off, for example to a
+ * profiler's event API or to counters, rather than doing any I/O.
+ */
+public interface HawkTracer
+{
+  public enum Phase
+  {
+    /**
+     * Parsing an authorization header; the size is the length of the header
+     */
+    PARSE_HEADER,
+    /**
+     * Building the normalized string for a MAC; the size is its length
+     */
+    NORMALIZE,
+    /**
+     * Obtaining and keying a MAC engine; the size is 0
+     */
+    MAC_INIT,
+    /**
+     * Hashing a payload, including its MAC engine; the size is the length of
+     * the payload
+     */
+    PAYLOAD_HASH,
+    /**
+     * Generating a nonce; the size is the length of the nonce
+     */
+    NONCE_GENERATION
+  }
+
+  /**
+   * Called when a phase completes.
+   *
+   * @param phase the phase
+   * @param keyId the key ID involved, or <code>null</code> if not known
+   * @param authType the type of authentication, or <code>null</code> if not
+   *          applicable
+   * @param size the size of the input of the phase, as described for each phase
+   * @param durationNanos how long the phase took, in nanoseconds
+   * @param success <code>false</code> if the phase failed, such as a header
+   *          that could not be parsed
+   */
+  void phase(Phase phase, String keyId, Hawk.AuthType authType, long size, long durationNanos, boolean success);
+}
@@ -0,0 +1,43 @@
+/*
+ *    Copyright 2013 Weald Technology Trading Limited
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ */
+
+package li.vin.hawk;
+
+/**
+ * Switches phase tracing on and off for the whole process. While no tracer
+ * is installed, each traced phase costs one volatile read.
+ */
+public final class HawkTracing
+{
+  static volatile HawkTracer tracer = null;
+
+  /**
+   * Install a tracer.
+   *
+   * @param tracer the tracer, or <code>null</code> to switch tracing off
+   */
+  public static void setTracer(final HawkTracer tracer)
+  {
+    HawkTracing.tracer = tracer;
+  }
+
+  public static HawkTracer getTracer()
+  {
+    return tracer;
+  }
+
+  private HawkTracing() {}
+}
@@ -0,0 +1,172 @@
+/*
+ *    Copyright 2013 Weald Technology Trading Limited
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ */
+
+package li.vin.hawk;
+
+import java.net.URI;
+import java.net.URISyntaxException;
+import java.nio.ByteBuffer;
+import java.security.NoSuchAlgorithmException;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Map;
+
+import javax.crypto.Mac;
+
+/**
+ * Warms up the signing and verification paths, so that the first real
+ * requests after startup do not pay for cryptography provider discovery,
+ * class loading and interpreted code.
+ * <p>
+ * The exercise runs against a private server, with throwaway credentials and
+ * its own nonce store, so it leaves no trace in the application's state.
+ */
+public final class HawkWarmup
+{
+  /**
+   * Default number of sign and verify round trips per algorithm, enough for
+   * the hot paths to be compiled
+   */
+  public static final int DEFAULT_ITERATIONS = 10000;
+
+  private static final String WARMUP_KEY_ID = "hawk-warmup-";
+  private static final String WARMUP_HOST = "warmup.invalid";
+  private static final String WARMUP_CONTENT_TYPE = "application/json";
+  private static final String WARMUP_BODY = "{\"warmup\":true}";
+
+  /**
+   * Warm up with the default number of iterations.
+   *
+   * @param credentials the credentials the application will use, whose MAC
+   *          engines are initialized to check that they are usable; may be
+   *          empty
+   * @return the time taken, in milliseconds
+   * @throws HawkError if any of the credentials cannot be used or the
+   *           exercise fails
+   */
+  public static long warmUp(final Collection<HawkCredentials> credentials)
+  {
+    return warmUp(credentials, DEFAULT_ITERATIONS);
+  }
+
+  /**
+   * Warm up.
+   *
+   * @param credentials the credentials the application will use, whose MAC
+   *          engines are initialized to check that they are usable; may be
+   *          empty
+   * @param iterations the number of sign and verify round trips per algorithm
+   * @return the time taken, in milliseconds
+   * @throws HawkError if any of the credentials cannot be used or the
+   *           exercise fails
+   */
+  public static long warmUp(final Collection<HawkCredentials> credentials, final int iterations)
+  {
+    if (credentials == null) {
+      throw new NullPointerException("Credentials are required but not supplied");
+    }
+    if (iterations < 0) {
+      throw new IllegalArgumentException("The number of iterations must not be negative");
+    }
+
+    final long start = System.nanoTime();
+
+    // Provider discovery for every supported algorithm
+    for (final HawkCredentials.Algorithm algorithm : HawkCredentials.Algorithm.values())
+    {
+      try
+      {
+        Mac.getInstance(algorithm.getJavaAlgorithm());
+      }
+      catch (NoSuchAlgorithmException nsae)
+      {
+        throw new HawkError("Unknown algorithm " + algorithm.getJavaAlgorithm(), nsae);
+      }
+    }
+
+    // Key setup for the application's credentials
+    for (final HawkCredentials credential : credentials)
+    {
+      Hawk.initMac(credential);
+    }
+
+    for (final HawkCredentials.Algorithm algorithm : HawkCredentials.Algorithm.values())
+    {
+      exercise(algorithm, iterations);
+    }
+
+    return (System.nanoTime() - start) / 1000000L;
+  }
+
+  private static void exercise(final HawkCredentials.Algorithm algorithm, final int iterations)
+  {
+    final HawkCredentials credentials = new HawkCredentials.Builder()
+                                                           .keyId(WARMUP_KEY_ID + algorithm)
+                                                           .key(StringUtils.generateRandomString(32))
+                                                           .algorithm(algorithm)
+                                                           .build();
+    final Map<String, HawkCredentials> credentialsMap =
+        Collections.singletonMap(credentials.getKeyId(), credentials);
+    final HawkServer server = new HawkServer.Builder()
+                                            .credentialsSource(new HawkCredentialsSource()
+                                            {
+                                              @Override
+                                              public HawkCredentials getCredentials(final String keyId)
+                                              {
+                                                return credentialsMap.get(keyId);
+                                              }
+                                            })
+                                            .build();
+    final HawkClient client = new HawkClient.Builder().credentials(credentials).build();
+    final HawkMessageSigner signer = new HawkMessageSigner(credentials, WARMUP_HOST, 443);
+
+    final URI uri;
+    try
+    {
+      uri = new URI("https://" + WARMUP_HOST + "/warmup?iteration=0");
+    }
+    catch (URISyntaxException use)
+    {
+      throw new HawkError("Invalid warm-up URI", use);
+    }
+    final byte[] body = WARMUP_BODY.getBytes(Hawk.UTF8);
+    final ByteBuffer out = ByteBuffer.allocate(HawkBuffers.MAX_BASE64_MAC_LENGTH);
+
+    for (int i = 0; i < iterations; i++)
+    {
+      final String hash = Hawk.calculateBodyMac(credentials, WARMUP_CONTENT_TYPE, WARMUP_BODY);
+      final String header = client.generateAuthorizationHeader(uri, "POST", hash, "warmup", null, null);
+      check(server.verify(uri, "POST", header));
+
+      final HawkMessageAuthorization authorization = signer.sign(WARMUP_BODY);
+      check(server.verifyMessage(WARMUP_HOST, 443, WARMUP_BODY, authorization));
+
+      out.clear();
+      HawkBuffers.calculateBodyMac(credentials, WARMUP_CONTENT_TYPE, ByteBuffer.wrap(body), out, true);
+      Hawk.generateBewit(credentials, uri, 60L, null);
+    }
+  }
+
+  private static void check(final HawkAuthResult result)
+  {
+    // A nonce repeated by chance is the only acceptable failure
+    if (!result.isAuthenticated() && result.getStatus() != HawkAuthResult.Status.DUPLICATE_NONCE) {
+      throw new HawkError("Warm-up verification failed: " + result.getStatus().getMessage());
+    }
+  }
+
+  private HawkWarmup() {}
+}
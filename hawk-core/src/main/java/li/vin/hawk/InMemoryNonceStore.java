@@ -0,0 +1,127 @@
+/*
+ *    Copyright 2013 Weald Technology Trading Limited
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ */
+
+package li.vin.hawk;
+
+import java.util.Iterator;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A nonce store held in the memory of a single process, for single-node
+ * servers and for tests.
+ * <p>
+ * Nonces that have fallen outside of the window are purged as nonces are
+ * added, a few at a time, so that no request pays for a pass over the whole
+ * store. {@link #purgeExpired()} purges them all at once, for example on a
+ * schedule.
+ */
+public class InMemoryNonceStore implements NonceStore
+{
+  // The most nonces an add looks at when it purges the store
+  private static final int PURGE_BUDGET = 64;
+
+  private final long window;
+  private final ConcurrentHashMap<HawkNonce, Boolean> nonces = new ConcurrentHashMap<HawkNonce, Boolean>();
+  private final AtomicLong nextPurge = new AtomicLong();
+  // The position of the purge in progress; guarded by this
+  private Iterator<HawkNonce> cursor;
+
+  /**
+   * Create a nonce store.
+   *
+   * @param window how long to remember a nonce either side of its timestamp,
+   *          in seconds; this should be the server's timestamp skew
+   */
+  public InMemoryNonceStore(final long window)
+  {
+    if (window < 0) {
+      throw new IllegalArgumentException("The window must not be negative");
+    }
+    this.window = window;
+  }
+
+  @Override
+  public boolean contains(final HawkNonce nonce)
+  {
+    return this.nonces.containsKey(nonce);
+  }
+
+  @Override
+  public boolean add(final HawkNonce nonce)
+  {
+    final long now = System.currentTimeMillis() / Hawk.MILLISECONDS_IN_SECONDS;
+    final long due = this.nextPurge.get();
+    if (now >= due && this.nextPurge.compareAndSet(due, Long.MAX_VALUE))
+    {
+      // Until the pass is complete the next add carries it on
+      this.nextPurge.set(purge(now, PURGE_BUDGET) ? now + this.window + 1 : now);
+    }
+    return this.nonces.putIfAbsent(nonce, Boolean.TRUE) == null;
+  }
+
+  /**
+   * Forget all of the nonces that have fallen outside of the window.
+   */
+  public void purgeExpired()
+  {
+    final long now = System.currentTimeMillis() / Hawk.MILLISECONDS_IN_SECONDS;
+    synchronized (this)
+    {
+      this.cursor = null;
+      purge(now, Integer.MAX_VALUE);
+    }
+    this.nextPurge.set(now + this.window + 1);
+  }
+
+  /**
+   * Obtain the number of nonces currently held.
+   *
+   * @return the number of nonces
+   */
+  public int size()
+  {
+    return this.nonces.size();
+  }
+
+  /**
+   * Carry on a pass over the store, forgetting the nonces that have fallen
+   * outside of the window.
+   *
+   * @return <code>true</code> if the pass is complete
+   */
+  private synchronized boolean purge(final long now, final int budget)
+  {
+    if (this.cursor == null)
+    {
+      this.cursor = this.nonces.keySet().iterator();
+    }
+    final Iterator<HawkNonce> it = this.cursor;
+    for (int i = 0; i < budget && it.hasNext(); i++)
+    {
+      if (Math.abs(now - it.next().getTimestamp()) > this.window)
+      {
+        it.remove();
+      }
+    }
+    if (it.hasNext())
+    {
+      return false;
+    }
+    this.cursor = null;
+    return true;
+  }
+}
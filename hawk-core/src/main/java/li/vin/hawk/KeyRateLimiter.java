@@ -0,0 +1,324 @@
+/*
+ *    Copyright 2013 Weald Technology Trading Limited
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ */
+
+package li.vin.hawk;
+
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A token bucket per key ID, so that one client retrying in a tight loop
+ * cannot use up the capacity of a server.
+ * <p>
+ * Each bucket is a single <code>long</code>, holding the time it was last
+ * refilled and the tokens left, and is updated by compare-and-set without
+ * locking. Buckets are spread over independently swept shards. A bucket that
+ * has been idle long enough to refill completely is the same as no bucket at
+ * all, so such buckets are evicted as their shard is used, or by
+ * {@link #evictIdle()}. Sweeping as the shard is used is incremental: a
+ * request looks at no more than a few buckets, so that its latency does not
+ * grow with the number of key IDs. With many key IDs, idle buckets may then
+ * take a while to go; call {@link #evictIdle()} on a schedule to evict them
+ * all at once, off the request path.
+ * <p>
+ * A request that races with the eviction of its bucket may be let through
+ * by a fresh bucket; this is at most one extra request per eviction.
+ */
+public class KeyRateLimiter
+{
+  /**
+   * A monotonic source of time.
+   */
+  public interface Clock
+  {
+    /**
+     * Obtain the time in milliseconds from an arbitrary origin. The time must
+     * never go backwards.
+     *
+     * @return the time in milliseconds
+     */
+    long millis();
+  }
+
+  /**
+   * The system's monotonic clock, which unlike the wall clock is not stepped
+   * by NTP or an administrator.
+   */
+  public static final Clock SYSTEM_CLOCK = new Clock()
+  {
+    @Override
+    public long millis()
+    {
+      return System.nanoTime() / 1000000L;
+    }
+  };
+
+  // Tokens are counted in fractions so that slow rates refill smoothly
+  private static final int TOKEN_SCALE = 256;
+  private static final int TOKEN_BITS = 24;
+  private static final long TOKEN_MASK = (1L << TOKEN_BITS) - 1;
+
+  /**
+   * The largest burst a bucket can hold
+   */
+  public static final int MAX_BURST = (int)(TOKEN_MASK / TOKEN_SCALE);
+
+  private static final int SHARDS = 16;
+  // The most buckets a request looks at when it sweeps its shard
+  private static final int SWEEP_BUDGET = 64;
+
+  private final double ratePerSecond;
+  private final int burst;
+  private final long capacity;
+  private final double refillPerMilli;
+  private final long idleMillis;
+  private final Clock clock;
+  // Times are held relative to this, so that they fit beside the tokens
+  private final long origin;
+  private final Shard[] shards;
+
+  private final AtomicLong throttledCount = new AtomicLong();
+
+  /**
+   * Create a rate limiter.
+   *
+   * @param ratePerSecond the sustained number of requests allowed per key ID
+   *          per second
+   * @param burst the number of requests a key ID may make at once after
+   *          being idle, at most {@link #MAX_BURST}
+   */
+  public KeyRateLimiter(final double ratePerSecond, final int burst)
+  {
+    this(ratePerSecond, burst, SYSTEM_CLOCK);
+  }
+
+  /**
+   * Create a rate limiter with its own clock.
+   *
+   * @param ratePerSecond the sustained number of requests allowed per key ID
+   *          per second
+   * @param burst the number of requests a key ID may make at once after
+   *          being idle, at most {@link #MAX_BURST}
+   * @param clock the clock
+   */
+  public KeyRateLimiter(final double ratePerSecond, final int burst, final Clock clock)
+  {
+    if (!(ratePerSecond > 0)) {
+      throw new IllegalArgumentException("The rate must be positive");
+    }
+    if (burst < 1 || burst > MAX_BURST) {
+      throw new IllegalArgumentException("The burst must be between 1 and " + MAX_BURST);
+    }
+    if (clock == null) {
+      throw new NullPointerException("The clock is required");
+    }
+    this.clock = clock;
+    this.origin = clock.millis();
+    this.ratePerSecond = ratePerSecond;
+    this.burst = burst;
+    this.capacity = (long)burst * TOKEN_SCALE;
+    this.refillPerMilli = ratePerSecond * TOKEN_SCALE / 1000;
+    this.idleMillis = Math.max(1L, (long)Math.ceil(this.capacity / this.refillPerMilli));
+    this.shards = new Shard[SHARDS];
+    for (int i = 0; i < SHARDS; i++)
+    {
+      this.shards[i] = new Shard();
+    }
+  }
+
+  /**
+   * Take a token from the bucket of a key ID.
+   *
+   * @param keyId the key ID
+   * @return <code>true</code> if the request may go ahead, or
+   *         <code>false</code> if the key ID is being throttled
+   */
+  public boolean tryAcquire(final String keyId)
+  {
+    final long now = now();
+    final Shard shard = shard(keyId);
+    final long due = shard.nextSweep.get();
+    if (now >= due && shard.nextSweep.compareAndSet(due, Long.MAX_VALUE))
+    {
+      // Until the pass is complete the next request carries it on
+      shard.nextSweep.set(sweep(shard, now, SWEEP_BUDGET) ? now + this.idleMillis : now);
+    }
+
+    AtomicLong bucket = shard.buckets.get(keyId);
+    if (bucket == null)
+    {
+      // A new bucket starts full, less this request
+      bucket = shard.buckets.putIfAbsent(keyId, new AtomicLong(pack(now, this.capacity - TOKEN_SCALE)));
+      if (bucket == null)
+      {
+        return true;
+      }
+    }
+
+    while (true)
+    {
+      final long state = bucket.get();
+      final long last = time(state);
+      // Another thread may have stored a later time since this one read the clock
+      final long at = Math.max(now, last);
+      // Whole fractions are counted against a grid fixed to the origin, so
+      // the part of a fraction that has accrued by now is credited by the
+      // next refill rather than lost, however often requests arrive
+      final long refill = refill(at) - refill(last);
+      final long tokens = Math.min(this.capacity, tokens(state) + refill);
+      if (tokens < TOKEN_SCALE)
+      {
+        this.throttledCount.incrementAndGet();
+        return false;
+      }
+      if (bucket.compareAndSet(state, pack(at, tokens - TOKEN_SCALE)))
+      {
+        return true;
+      }
+    }
+  }
+
+  /**
+   * Evict the buckets of all key IDs that have been idle long enough to
+   * refill completely.
+   */
+  public void evictIdle()
+  {
+    final long now = now();
+    for (final Shard shard : this.shards)
+    {
+      synchronized (shard)
+      {
+        shard.cursor = null;
+        sweep(shard, now, Integer.MAX_VALUE);
+      }
+      shard.nextSweep.set(now + this.idleMillis);
+    }
+  }
+
+  /**
+   * Obtain the number of requests throttled.
+   *
+   * @return the number of requests throttled
+   */
+  public long getThrottledCount()
+  {
+    return this.throttledCount.get();
+  }
+
+  /**
+   * Obtain the number of buckets held.
+   *
+   * @return the number of buckets
+   */
+  public int size()
+  {
+    int size = 0;
+    for (final Shard shard : this.shards)
+    {
+      size += shard.buckets.size();
+    }
+    return size;
+  }
+
+  /**
+   * Carry on a pass over the buckets of a shard, evicting the idle ones.
+   *
+   * @return <code>true</code> if the pass is complete
+   */
+  private boolean sweep(final Shard shard, final long now, final int budget)
+  {
+    synchronized (shard)
+    {
+      if (shard.cursor == null)
+      {
+        shard.cursor = shard.buckets.entrySet().iterator();
+      }
+      final Iterator<Map.Entry<String, AtomicLong>> entries = shard.cursor;
+      for (int i = 0; i < budget && entries.hasNext(); i++)
+      {
+        if (now - time(entries.next().getValue().get()) >= this.idleMillis)
+        {
+          entries.remove();
+        }
+      }
+      if (entries.hasNext())
+      {
+        return false;
+      }
+      shard.cursor = null;
+      return true;
+    }
+  }
+
+  /**
+   * The time since the origin, never negative even if the clock misbehaves,
+   * as a negative time would not pack beside the tokens.
+   */
+  private long now()
+  {
+    return Math.max(0L, this.clock.millis() - this.origin);
+  }
+
+  /**
+   * The whole fractions of a token accrued from the origin to a time.
+   */
+  private long refill(final long time)
+  {
+    return (long)(time * this.refillPerMilli);
+  }
+
+  private Shard shard(final String keyId)
+  {
+    final int hash = keyId.hashCode();
+    return this.shards[(hash ^ (hash >>> 16)) & (SHARDS - 1)];
+  }
+
+  private static long pack(final long time, final long tokens)
+  {
+    return (time << TOKEN_BITS) | tokens;
+  }
+
+  private static long time(final long state)
+  {
+    return state >>> TOKEN_BITS;
+  }
+
+  private static long tokens(final long state)
+  {
+    return state & TOKEN_MASK;
+  }
+
+  private static final class Shard
+  {
+    final ConcurrentHashMap<String, AtomicLong> buckets = new ConcurrentHashMap<String, AtomicLong>();
+    final AtomicLong nextSweep = new AtomicLong();
+    // The position of the sweep in progress; guarded by the shard
+    Iterator<Map.Entry<String, AtomicLong>> cursor;
+  }
+
+  // Standard object methods follow
+  @Override
+  public String toString()
+  {
+    return super.toString() + '{' +
+        "ratePerSecond=" + this.ratePerSecond + ' ' +
+        "burst=" + this.burst + ' ' +
+        "throttled=" + this.throttledCount.get() + '}';
+  }
+}
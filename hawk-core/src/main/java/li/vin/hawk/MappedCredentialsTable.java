@@ -0,0 +1,337 @@
+/*
+ *    Copyright 2013 Weald Technology Trading Limited
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ */
+
+package li.vin.hawk;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.util.Iterator;
+
+/**
+ * A read-only table of credentials, memory-mapped from a file, for servers
+ * that have to resolve very large numbers of key IDs.
+ * <p>
+ * The credentials live in the file rather than on the heap, and opening a
+ * table only maps the file, so a restart does not parse or rebuild anything.
+ * Lookups hash the key ID into an open-addressed slot table and read the
+ * matching record; only the credentials returned are allocated.
+ * <p>
+ * Tables are built offline with {@link #write(File, Iterator, int)}, which
+ * replaces a table atomically, so a table can be rebuilt while servers map
+ * it. The file layout is a header, then the slot table, then the records:
+ * <pre>
+ * header: int magic, int version, int slot count, int entry count
+ * slot:   long key ID hash (0 if empty), int record offset
+ * record: short key ID length, key ID (UTF-8), byte algorithm,
+ *         short key length, key (UTF-8)
+ * </pre>
+ * A table is limited to 2GB, which holds tens of millions of credentials.
+ */
+public class MappedCredentialsTable implements HawkCredentialsSource
+{
+  private static final int MAGIC = 0x48574b43;
+  private static final int VERSION = 1;
+  private static final int HEADER_SIZE = 16;
+  private static final int SLOT_SIZE = 12;
+
+  private static final long FNV_OFFSET_BASIS = 0xcbf29ce484222325L;
+  private static final long FNV_PRIME = 0x100000001b3L;
+
+  private final MappedByteBuffer table;
+  private final int slotMask;
+  private final int count;
+
+  /**
+   * Map a table.
+   *
+   * @param file the file written by {@link #write(File, Iterator, int)}
+   * @throws IOException if the file cannot be mapped or is not a table
+   */
+  public MappedCredentialsTable(final File file) throws IOException
+  {
+    final RandomAccessFile raf = new RandomAccessFile(file, "r");
+    try
+    {
+      final long length = raf.length();
+      if (length < HEADER_SIZE || length > Integer.MAX_VALUE) {
+        throw new IOException("File " + file + " is not a credentials table");
+      }
+      // The mapping remains valid once the file is closed
+      this.table = raf.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, length);
+    }
+    finally
+    {
+      raf.close();
+    }
+
+    if (this.table.getInt(0) != MAGIC) {
+      throw new IOException("File " + file + " is not a credentials table");
+    }
+    if (this.table.getInt(4) != VERSION) {
+      throw new IOException("Credentials table " + file + " has unsupported version " + this.table.getInt(4));
+    }
+    final int slotCount = this.table.getInt(8);
+    if (slotCount < 1 || Integer.bitCount(slotCount) != 1 ||
+        HEADER_SIZE + (long)slotCount * SLOT_SIZE > this.table.capacity()) {
+      throw new IOException("Credentials table " + file + " is corrupt");
+    }
+    this.slotMask = slotCount - 1;
+    this.count = this.table.getInt(12);
+  }
+
+  @Override
+  public HawkCredentials getCredentials(final String keyId)
+  {
+    if (keyId == null)
+    {
+      return null;
+    }
+    final long hash = hash(keyId);
+    int slot = (int)hash & this.slotMask;
+    while (true)
+    {
+      final int slotOffset = HEADER_SIZE + slot * SLOT_SIZE;
+      final long slotHash = this.table.getLong(slotOffset);
+      if (slotHash == 0L)
+      {
+        return null;
+      }
+      if (slotHash == hash)
+      {
+        final int recordOffset = this.table.getInt(slotOffset + 8);
+        final int keyIdLength = this.table.getShort(recordOffset) & 0xffff;
+        if (keyIdMatches(recordOffset + 2, keyIdLength, keyId))
+        {
+          return read(keyId, recordOffset + 2 + keyIdLength);
+        }
+      }
+      slot = (slot + 1) & this.slotMask;
+    }
+  }
+
+  /**
+   * Obtain the number of credentials in the table.
+   *
+   * @return the number of credentials
+   */
+  public int size()
+  {
+    return this.count;
+  }
+
+  /**
+   * Write a table. The table is written to a temporary file beside the
+   * target, its magic number last, and renamed over the target once it is
+   * complete and on disk, so that a reader never maps a partial table even
+   * if the writer crashes.
+   *
+   * @param file the file to write
+   * @param credentials the credentials to put in the table
+   * @param count the number of credentials
+   * @throws IOException if the file cannot be written
+   * @throws IllegalArgumentException if a key ID appears more than once or
+   *           the table would be too large
+   */
+  public static void write(final File file, final Iterator<HawkCredentials> credentials, final int count) throws IOException
+  {
+    if (credentials == null) {
+      throw new NullPointerException("Credentials are required but not supplied");
+    }
+    if (count < 0) {
+      throw new IllegalArgumentException("The count must not be negative");
+    }
+
+    // Keep the table at most half full, so that probes stay short
+    final long slotCount = Long.highestOneBit(Math.max(1L, count) * 2L - 1L) << 1;
+    if (HEADER_SIZE + slotCount * SLOT_SIZE > Integer.MAX_VALUE) {
+      throw new IllegalArgumentException("Too many credentials for one table");
+    }
+    final int dataOffset = HEADER_SIZE + (int)slotCount * SLOT_SIZE;
+    final int slotMask = (int)slotCount - 1;
+
+    final File directory = file.getAbsoluteFile().getParentFile();
+    final File temporary = File.createTempFile(file.getName(), ".tmp", directory);
+    boolean renamed = false;
+    final RandomAccessFile raf = new RandomAccessFile(temporary, "rw");
+    try
+    {
+      final FileChannel channel = raf.getChannel();
+      final MappedByteBuffer slots = channel.map(FileChannel.MapMode.READ_WRITE, 0, dataOffset);
+      slots.putInt(4, VERSION);
+      slots.putInt(8, (int)slotCount);
+
+      channel.position(dataOffset);
+      final DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Channels.newOutputStream(channel), 65536));
+      long recordOffset = dataOffset;
+      int written = 0;
+      while (credentials.hasNext())
+      {
+        if (written == count) {
+          throw new IllegalArgumentException("More than " + count + " credentials supplied");
+        }
+        final HawkCredentials credential = credentials.next();
+        final byte[] keyId = credential.getKeyId().getBytes(Hawk.UTF8);
+        final byte[] key = credential.getKey().getBytes(Hawk.UTF8);
+        if (keyId.length > 0xffff || key.length > 0xffff) {
+          throw new IllegalArgumentException("Key ID or key of " + credential.getKeyId() + " is too long");
+        }
+        if (recordOffset > Integer.MAX_VALUE - (5 + keyId.length + key.length)) {
+          throw new IllegalArgumentException("Too many credentials for one table");
+        }
+
+        final long hash = hash(credential.getKeyId());
+        int slot = (int)hash & slotMask;
+        while (slots.getLong(HEADER_SIZE + slot * SLOT_SIZE) != 0L)
+        {
+          if (slots.getLong(HEADER_SIZE + slot * SLOT_SIZE) == hash) {
+            // Lookups verify the key ID, but one hash must lead to one record
+            throw new IllegalArgumentException("Key ID " + credential.getKeyId() + " is a duplicate or collides with another");
+          }
+          slot = (slot + 1) & slotMask;
+        }
+        slots.putLong(HEADER_SIZE + slot * SLOT_SIZE, hash);
+        slots.putInt(HEADER_SIZE + slot * SLOT_SIZE + 8, (int)recordOffset);
+
+        out.writeShort(keyId.length);
+        out.write(keyId);
+        out.writeByte(algorithmCode(credential.getAlgorithm()));
+        out.writeShort(key.length);
+        out.write(key);
+        recordOffset += 5 + keyId.length + key.length;
+        written++;
+      }
+      out.flush();
+      slots.putInt(12, written);
+      slots.force();
+      channel.force(true);
+
+      // Only a complete table on disk is marked as one
+      slots.putInt(0, MAGIC);
+      slots.force();
+      raf.close();
+      if (!temporary.renameTo(file)) {
+        throw new IOException("Failed to replace " + file + " with " + temporary);
+      }
+      renamed = true;
+    }
+    finally
+    {
+      raf.close();
+      if (!renamed)
+      {
+        temporary.delete();
+      }
+    }
+  }
+
+  private HawkCredentials read(final String keyId, final int offset)
+  {
+    final HawkCredentials.Algorithm algorithm = algorithm(this.table.get(offset));
+    final int keyLength = this.table.getShort(offset + 1) & 0xffff;
+    final byte[] key = new byte[keyLength];
+    for (int i = 0; i < keyLength; i++)
+    {
+      key[i] = this.table.get(offset + 3 + i);
+    }
+    return new HawkCredentials.Builder()
+                              .keyId(keyId)
+                              .key(new String(key, Hawk.UTF8))
+                              .algorithm(algorithm)
+                              .build();
+  }
+
+  private boolean keyIdMatches(final int offset, final int length, final String keyId)
+  {
+    // ASCII key IDs, the usual case, compare without decoding
+    if (length == keyId.length())
+    {
+      int i = 0;
+      while (i < length && keyId.charAt(i) < 0x80 && this.table.get(offset + i) == keyId.charAt(i))
+      {
+        i++;
+      }
+      if (i == length)
+      {
+        return true;
+      }
+      if (keyId.charAt(i) < 0x80)
+      {
+        return false;
+      }
+    }
+    final byte[] stored = new byte[length];
+    for (int i = 0; i < length; i++)
+    {
+      stored[i] = this.table.get(offset + i);
+    }
+    return keyId.equals(new String(stored, Hawk.UTF8));
+  }
+
+  private static int algorithmCode(final HawkCredentials.Algorithm algorithm)
+  {
+    switch (algorithm)
+    {
+      case SHA1:
+        return 1;
+      case SHA256:
+        return 2;
+      default:
+        throw new IllegalArgumentException("Algorithm " + algorithm + " has no table code");
+    }
+  }
+
+  private static HawkCredentials.Algorithm algorithm(final byte code)
+  {
+    switch (code)
+    {
+      case 1:
+        return HawkCredentials.Algorithm.SHA1;
+      case 2:
+        return HawkCredentials.Algorithm.SHA256;
+      default:
+        throw new HawkError("Credentials table holds unknown algorithm code " + code);
+    }
+  }
+
+  /**
+   * 64-bit FNV-1a over the characters of a key ID, never 0 so that 0 can
+   * mark an empty slot.
+   */
+  private static long hash(final String keyId)
+  {
+    long hash = FNV_OFFSET_BASIS;
+    for (int i = 0; i < keyId.length(); i++)
+    {
+      hash = (hash ^ keyId.charAt(i)) * FNV_PRIME;
+    }
+    return hash == 0L ? 1L : hash;
+  }
+
+  // Standard object methods follow
+  @Override
+  public String toString()
+  {
+    return super.toString() + '{' +
+        "size=" + this.count + ' ' +
+        "slots=" + (this.slotMask + 1) + '}';
+  }
+}
@@ -0,0 +1,267 @@
+/*
+ *    Copyright 2013 Weald Technology Trading Limited
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ */
+
+package li.vin.hawk;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * A nonce store held in a memory-mapped file, so that a restarted server
+ * carries on with the nonces seen before the restart instead of opening a
+ * replay gap.
+ * <p>
+ * Nonces are held as 64-bit fingerprints in fixed-size hash tables, one set
+ * of tables per slice of timestamps. A slice is discarded when its tables
+ * are reused for a newer slice, so the file never grows and stale nonces left
+ * in it by an earlier process are ignored by timestamp. Reopening the file
+ * maps it and nothing more.
+ * <p>
+ * Two different nonces with the same fingerprint would be taken for a
+ * replay; with 64-bit fingerprints and the nonces of one time slice, the
+ * chance of this is negligible. Writes reach the file when the operating
+ * system flushes them, which survives a process restart but not necessarily
+ * a machine crash; call {@link #force()} to flush explicitly.
+ */
+public class MappedNonceStore implements NonceStore
+{
+  private static final int MAGIC = 0x48574b4e;
+  private static final int VERSION = 1;
+  private static final int HEADER_SIZE = 64;
+
+  // Slices covering the window, as for the Bloom filter front
+  private static final int SLICES_PER_WINDOW = 6;
+
+  // Independently locked tables per slice
+  private static final int SEGMENTS_PER_SLICE = 64;
+
+  private final MappedByteBuffer buffer;
+  private final long sliceSeconds;
+  private final int sliceCount;
+  private final int segmentSlots;
+  private final int segmentSize;
+  private final Object[] locks;
+
+  /**
+   * Open a nonce store, creating its file if necessary.
+   *
+   * @param file the file to hold the nonces
+   * @param window how long to remember a nonce either side of its timestamp,
+   *          in seconds; this should be the server's timestamp skew
+   * @param expectedRate the expected number of requests per second; the store
+   *          holds twice this many nonces per second of timestamps
+   * @throws IOException if the file cannot be mapped, or holds a store with
+   *           a different window or capacity
+   */
+  public MappedNonceStore(final File file, final long window, final long expectedRate) throws IOException
+  {
+    if (file == null) {
+      throw new NullPointerException("The file is required");
+    }
+    if (window < 0) {
+      throw new IllegalArgumentException("The window must not be negative");
+    }
+    if (expectedRate < 1) {
+      throw new IllegalArgumentException("The expected rate must be positive");
+    }
+
+    this.sliceSeconds = Math.max(1L, (2 * window + SLICES_PER_WINDOW - 1) / SLICES_PER_WINDOW);
+    this.sliceCount = (int)((2 * window) / this.sliceSeconds) + 2;
+
+    // Keep each table at most half full at the expected rate
+    final long slotsNeeded = Math.max(2L, expectedRate * this.sliceSeconds * 2 / SEGMENTS_PER_SLICE);
+    this.segmentSlots = (int)Math.min(Long.highestOneBit(slotsNeeded * 2 - 1), 1 << 24);
+    this.segmentSize = 8 + this.segmentSlots * 8;
+    final long length = HEADER_SIZE + (long)this.sliceCount * SEGMENTS_PER_SLICE * this.segmentSize;
+    if (length > Integer.MAX_VALUE) {
+      throw new IllegalArgumentException("The window and rate need a store larger than 2GB");
+    }
+
+    final RandomAccessFile raf = new RandomAccessFile(file, "rw");
+    try
+    {
+      if (raf.length() > 0 && raf.length() != length) {
+        throw new IOException("Nonce store " + file + " was created with a different window or rate");
+      }
+      // The mapping remains valid once the file is closed
+      this.buffer = raf.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, length);
+      if (this.buffer.getInt(0) != 0)
+      {
+        if (this.buffer.getInt(0) != MAGIC || this.buffer.getInt(4) != VERSION) {
+          throw new IOException("File " + file + " is not a nonce store");
+        }
+        if (this.buffer.getLong(8) != this.sliceSeconds || this.buffer.getInt(16) != this.sliceCount ||
+            this.buffer.getInt(20) != SEGMENTS_PER_SLICE || this.buffer.getInt(24) != this.segmentSlots) {
+          throw new IOException("Nonce store " + file + " was created with a different window or rate");
+        }
+      }
+      else
+      {
+        for (int segment = 0; segment < this.sliceCount * SEGMENTS_PER_SLICE; segment++)
+        {
+          this.buffer.putLong(HEADER_SIZE + segment * this.segmentSize, -1L);
+        }
+        this.buffer.putLong(8, this.sliceSeconds);
+        this.buffer.putInt(16, this.sliceCount);
+        this.buffer.putInt(20, SEGMENTS_PER_SLICE);
+        this.buffer.putInt(24, this.segmentSlots);
+        this.buffer.putInt(4, VERSION);
+        // Written last, so that a partly initialized file is not accepted
+        this.buffer.putInt(0, MAGIC);
+      }
+    }
+    finally
+    {
+      raf.close();
+    }
+
+    this.locks = new Object[this.sliceCount * SEGMENTS_PER_SLICE];
+    for (int i = 0; i < this.locks.length; i++)
+    {
+      this.locks[i] = new Object();
+    }
+  }
+
+  @Override
+  public boolean contains(final HawkNonce nonce)
+  {
+    final long epoch = nonce.getTimestamp() / this.sliceSeconds;
+    final long fingerprint = fingerprint(nonce);
+    final int segment = segment(epoch, fingerprint);
+    final int base = HEADER_SIZE + segment * this.segmentSize;
+    synchronized (this.locks[segment])
+    {
+      final long segmentEpoch = this.buffer.getLong(base);
+      if (segmentEpoch > epoch)
+      {
+        // Too old to tell, so treat as seen
+        return true;
+      }
+      return segmentEpoch == epoch && find(base, fingerprint) < 0;
+    }
+  }
+
+  @Override
+  public boolean add(final HawkNonce nonce) throws HawkError
+  {
+    final long epoch = nonce.getTimestamp() / this.sliceSeconds;
+    final long fingerprint = fingerprint(nonce);
+    final int segment = segment(epoch, fingerprint);
+    final int base = HEADER_SIZE + segment * this.segmentSize;
+    synchronized (this.locks[segment])
+    {
+      final long segmentEpoch = this.buffer.getLong(base);
+      if (segmentEpoch > epoch)
+      {
+        return false;
+      }
+      if (segmentEpoch < epoch)
+      {
+        // Discard the nonces of the slice that last used this table
+        for (int slot = 0; slot < this.segmentSlots; slot++)
+        {
+          this.buffer.putLong(base + 8 + slot * 8, 0L);
+        }
+        this.buffer.putLong(base, epoch);
+      }
+
+      final int slot = find(base, fingerprint);
+      if (slot < 0)
+      {
+        return false;
+      }
+      if (slot == this.segmentSlots) {
+        throw new HawkError("Nonce store is full");
+      }
+      this.buffer.putLong(base + 8 + slot * 8, fingerprint);
+      return true;
+    }
+  }
+
+  /**
+   * Flush recorded nonces to the file.
+   */
+  public void force()
+  {
+    this.buffer.force();
+  }
+
+  /**
+   * Obtain the number of nonces each table can hold.
+   *
+   * @return the number of slots per table
+   */
+  public int getSegmentSlots()
+  {
+    return this.segmentSlots;
+  }
+
+  /**
+   * Find a fingerprint in a table.
+   *
+   * @return the slot to put the fingerprint in if it is not present, the
+   *         number of slots if the table is full, or -1 if it is present
+   */
+  private int find(final int base, final long fingerprint)
+  {
+    final int mask = this.segmentSlots - 1;
+    int slot = (int)fingerprint & mask;
+    for (int probes = 0; probes < this.segmentSlots; probes++)
+    {
+      final long stored = this.buffer.getLong(base + 8 + slot * 8);
+      if (stored == 0L)
+      {
+        return slot;
+      }
+      if (stored == fingerprint)
+      {
+        return -1;
+      }
+      slot = (slot + 1) & mask;
+    }
+    return this.segmentSlots;
+  }
+
+  private int segment(final long epoch, final long fingerprint)
+  {
+    int slice = (int)(epoch % this.sliceCount);
+    if (slice < 0)
+    {
+      slice += this.sliceCount;
+    }
+    return slice * SEGMENTS_PER_SLICE + ((int)(fingerprint >>> 48) & (SEGMENTS_PER_SLICE - 1));
+  }
+
+  private static long fingerprint(final HawkNonce nonce)
+  {
+    // 0 marks an empty slot
+    final long fingerprint = nonce.fingerprint();
+    return fingerprint == 0L ? 1L : fingerprint;
+  }
+
+  // Standard object methods follow
+  @Override
+  public String toString()
+  {
+    return super.toString() + '{' +
+        "sliceSeconds=" + this.sliceSeconds + ' ' +
+        "slices=" + this.sliceCount + ' ' +
+        "segmentSlots=" + this.segmentSlots + '}';
+  }
+}
@@ -0,0 +1,48 @@
+/*
+ *    Copyright 2013 Weald Technology Trading Limited
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ */
+
+package li.vin.hawk;
+
+/**
+ * Storage for the nonces a server has accepted, used to reject replayed
+ * requests. A nonce only needs to be remembered while its timestamp is
+ * inside the server's timestamp window, as requests outside of the window
+ * are rejected regardless.
+ * <p>
+ * Implementations must be safe for use by concurrent request threads.
+ */
+public interface NonceStore
+{
+  /**
+   * Check if a nonce has been seen, without recording it. This is used to
+   * reject replays before any expensive checks and is only a hint: an
+   * implementation may return <code>false</code> whenever an exact answer
+   * would be costly, as {@link #add(HawkNonce)} is the authoritative check.
+   *
+   * @param nonce the nonce
+   * @return <code>true</code> if the nonce is known to have been seen
+   */
+  boolean contains(HawkNonce nonce);
+
+  /**
+   * Record a nonce, atomically with respect to other callers.
+   *
+   * @param nonce the nonce
+   * @return <code>true</code> if the nonce had not been seen before
+   * @throws HawkError if the store cannot be reached
+   */
+  boolean add(HawkNonce nonce) throws HawkError;
+}
@@ -0,0 +1,257 @@
+/*
+ *    Copyright 2013 Weald Technology Trading Limited
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ */
+
+package li.vin.hawk;
+
+import java.io.IOException;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A bounded cache of payload hashes, so that retried requests and requests
+ * fanned out to several endpoints with the same body do not hash the body
+ * again.
+ * <p>
+ * String bodies are cached by content: a lookup costs the string's hash code,
+ * which Java caches in the string itself, plus a comparison on a hit, both far
+ * cheaper than a MAC. Payloads are cached by identity, as re-sending the same
+ * {@link HawkPayload} object is how a client retries or fans out a request.
+ * <p>
+ * The cache holds on to the string bodies it has hashed, so it is bounded
+ * both by number of entries and by the total size of the string bodies held,
+ * and evicts the least recently used entries first. A payload is only held
+ * by reference, by a caller that keeps it to retry anyway, so it is charged
+ * a small fixed size whatever its length; this way the large uploads whose
+ * retries gain the most from the cache are cached too.
+ */
+public class PayloadHashCache
+{
+  public static final int DEFAULT_MAX_ENTRIES = 256;
+  public static final long DEFAULT_MAX_BODY_SIZE = 16L * 1024 * 1024;
+
+  // What a payload entry is charged against the body size bound
+  private static final long PAYLOAD_ENTRY_SIZE = 64L;
+
+  private final int maxEntries;
+  private final long maxBodySize;
+  private final LinkedHashMap<Key, String> hashes = new LinkedHashMap<Key, String>(16, 0.75f, true);
+  private long bodySize = 0L;
+
+  private final AtomicLong hitCount = new AtomicLong();
+  private final AtomicLong missCount = new AtomicLong();
+
+  /**
+   * Create a cache with default bounds.
+   */
+  public PayloadHashCache()
+  {
+    this(DEFAULT_MAX_ENTRIES, DEFAULT_MAX_BODY_SIZE);
+  }
+
+  /**
+   * Create a cache.
+   *
+   * @param maxEntries the largest number of hashes to hold
+   * @param maxBodySize the largest total size of the string bodies held, in
+   *          characters, with each payload counting as a small fixed size
+   */
+  public PayloadHashCache(final int maxEntries, final long maxBodySize)
+  {
+    if (maxEntries < 1) {
+      throw new IllegalArgumentException("The maximum number of entries must be positive");
+    }
+    if (maxBodySize < 0) {
+      throw new IllegalArgumentException("The maximum body size must not be negative");
+    }
+    this.maxEntries = maxEntries;
+    this.maxBodySize = maxBodySize;
+  }
+
+  /**
+   * Obtain the MAC for a body, as
+   * {@link Hawk#calculateBodyMac(HawkCredentials, String, String)}.
+   *
+   * @param credentials Hawk credentials of the requestor
+   * @param contentType the MIME content type
+   * @param body the body
+   * @return the MAC
+   */
+  public String calculateBodyMac(final HawkCredentials credentials, final String contentType, final String body)
+  {
+    if (body == null) {
+      throw new NullPointerException("Body is required but not supplied");
+    }
+    final Key key = new Key(credentials, contentType, body, body.length(), body.length(), false);
+    String hash = get(key);
+    if (hash == null)
+    {
+      hash = Hawk.calculateBodyMac(credentials, contentType, body);
+      put(key, hash);
+    }
+    return hash;
+  }
+
+  /**
+   * Obtain the hash of a payload, as
+   * {@link HawkPayload#calculateHash(HawkCredentials)}.
+   *
+   * @param credentials Hawk credentials of the requestor
+   * @param payload the payload
+   * @return the payload hash
+   * @throws IOException if the payload has to be hashed and cannot be read
+   */
+  public String calculateHash(final HawkCredentials credentials, final HawkPayload payload) throws IOException
+  {
+    final Key key = new Key(credentials, payload.getContentType(), payload, payload.getLength(), PAYLOAD_ENTRY_SIZE, true);
+    String hash = get(key);
+    if (hash == null)
+    {
+      hash = payload.calculateHash(credentials);
+      put(key, hash);
+    }
+    return hash;
+  }
+
+  /**
+   * Obtain the number of lookups answered from the cache.
+   *
+   * @return the number of hits
+   */
+  public long getHitCount()
+  {
+    return this.hitCount.get();
+  }
+
+  /**
+   * Obtain the number of lookups that had to hash the body.
+   *
+   * @return the number of misses
+   */
+  public long getMissCount()
+  {
+    return this.missCount.get();
+  }
+
+  /**
+   * Obtain the number of hashes held.
+   *
+   * @return the number of hashes
+   */
+  public synchronized int size()
+  {
+    return this.hashes.size();
+  }
+
+  /**
+   * Forget all hashes.
+   */
+  public synchronized void clear()
+  {
+    this.hashes.clear();
+    this.bodySize = 0L;
+  }
+
+  private synchronized String get(final Key key)
+  {
+    final String hash = this.hashes.get(key);
+    if (hash == null)
+    {
+      this.missCount.incrementAndGet();
+    }
+    else
+    {
+      this.hitCount.incrementAndGet();
+    }
+    return hash;
+  }
+
+  private synchronized void put(final Key key, final String hash)
+  {
+    if (key.size > this.maxBodySize)
+    {
+      // Would evict everything else and still not fit
+      return;
+    }
+    if (this.hashes.put(key, hash) == null)
+    {
+      this.bodySize += key.size;
+    }
+    final Iterator<Map.Entry<Key, String>> it = this.hashes.entrySet().iterator();
+    while ((this.hashes.size() > this.maxEntries || this.bodySize > this.maxBodySize) && it.hasNext())
+    {
+      this.bodySize -= it.next().getKey().size;
+      it.remove();
+    }
+  }
+
+  private static final class Key
+  {
+    private final HawkCredentials credentials;
+    private final String contentType;
+    private final Object body;
+    private final long length;
+    // What the entry is charged against the body size bound
+    private final long size;
+    private final boolean byIdentity;
+    private final int hashCode;
+
+    Key(final HawkCredentials credentials,
+        final String contentType,
+        final Object body,
+        final long length,
+        final long size,
+        final boolean byIdentity)
+    {
+      if (credentials == null) {
+        throw new NullPointerException("Credentials are required but not supplied");
+      }
+      if (contentType == null) {
+        throw new NullPointerException("Content type is required but not supplied");
+      }
+      this.credentials = credentials;
+      this.contentType = contentType;
+      this.body = body;
+      this.length = length;
+      this.size = size;
+      this.byIdentity = byIdentity;
+      final int bodyHash = byIdentity ? System.identityHashCode(body) : body.hashCode();
+      this.hashCode = (credentials.getKeyId().hashCode() * 31 + contentType.hashCode()) * 31 + bodyHash;
+    }
+
+    @Override
+    public boolean equals(final Object that)
+    {
+      if (!(that instanceof Key)) {
+        return false;
+      }
+      final Key other = (Key)that;
+      return this.hashCode == other.hashCode &&
+             this.byIdentity == other.byIdentity &&
+             this.length == other.length &&
+             (this.byIdentity ? this.body == other.body : this.body.equals(other.body)) &&
+             this.contentType.equals(other.contentType) &&
+             this.credentials.equals(other.credentials);
+    }
+
+    @Override
+    public int hashCode()
+    {
+      return this.hashCode;
+    }
+  }
+}
@@ -0,0 +1,124 @@
+/*
+ *    Copyright 2013 Weald Technology Trading Limited
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ */
+
+package li.vin.hawk;
+
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+
+import javax.crypto.Mac;
+
+/**
+ * An output stream that calculates the Hawk payload hash of a response body
+ * as the body is written. Every byte passed to the underlying stream is also
+ * fed to a MAC engine, so a streamed response never has to be buffered to be
+ * hashed.
+ * <p>
+ * The hash is only known once the whole body has been written, so it has to
+ * be sent after the body, for example in an HTTP trailer: call
+ * {@link #finish()} once the body is written, send the hash, then close the
+ * stream. For a channel, wrap this stream with
+ * {@link java.nio.channels.Channels#newChannel(OutputStream)}.
+ */
+public class PayloadHashingOutputStream extends FilterOutputStream
+{
+  private final Mac mac;
+  private String hash;
+
+  /**
+   * Create a hashing stream.
+   *
+   * @param out
+   *          the stream the response body is written to
+   * @param credentials
+   *          Hawk credentials of the requestor
+   * @param contentType
+   *          the MIME content type of the body
+   */
+  public PayloadHashingOutputStream(final OutputStream out,
+                                    final HawkCredentials credentials,
+                                    final String contentType)
+  {
+    super(out);
+    if (credentials == null) {
+      throw new NullPointerException("Credentials are required but not supplied");
+    }
+    this.mac = Hawk.startBodyMac(credentials, contentType);
+  }
+
+  @Override
+  public void write(final int b) throws IOException
+  {
+    checkNotFinished();
+    this.out.write(b);
+    this.mac.update((byte)b);
+  }
+
+  @Override
+  public void write(final byte[] b, final int off, final int len) throws IOException
+  {
+    // Passed on whole, where the superclass would write a byte at a time
+    checkNotFinished();
+    this.out.write(b, off, len);
+    this.mac.update(b, off, len);
+  }
+
+  /**
+   * Complete the body, flushing it to the underlying stream without
+   * closing it, and obtain its hash. Nothing more can be written.
+   *
+   * @return the payload hash of the body
+   * @throws IOException if the body cannot be flushed
+   */
+  public String finish() throws IOException
+  {
+    if (this.hash == null)
+    {
+      this.hash = Hawk.finishBodyMac(this.mac);
+    }
+    flush();
+    return this.hash;
+  }
+
+  @Override
+  public void close() throws IOException
+  {
+    if (this.hash == null)
+    {
+      this.hash = Hawk.finishBodyMac(this.mac);
+    }
+    super.close();
+  }
+
+  /**
+   * Obtain the payload hash of the body.
+   *
+   * @return the hash, or <code>null</code> if the stream has been neither
+   *         finished nor closed
+   */
+  public String getHash()
+  {
+    return this.hash;
+  }
+
+  private void checkNotFinished() throws IOException
+  {
+    if (this.hash != null) {
+      throw new IOException("Payload has already been hashed");
+    }
+  }
+}
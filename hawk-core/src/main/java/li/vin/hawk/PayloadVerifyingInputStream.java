@@ -0,0 +1,288 @@
+/*
+ *    Copyright 2013 Weald Technology Trading Limited
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ */
+
+package li.vin.hawk;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+
+import javax.crypto.Mac;
+
+/**
+ * An input stream that verifies the Hawk payload hash of a request or
+ * response body as the body is read. Every byte handed to the reader is also
+ * fed to a MAC engine, and when the end of the body is reached the result is
+ * compared against the hash supplied with the body. A mismatch is
+ * reported as an {@link IOException} from the read that reached the end of
+ * the stream, so the body never has to be buffered.
+ * <p>
+ * A reader that stops before the end, for example at the end of a JSON
+ * document, has not had the body verified. Closing the stream reads the
+ * rest of the body and verifies it, so the body can be trusted once it has
+ * been read to the end or the stream has been closed without error. So that
+ * a client cannot make a server read and hash a body of any size by sending
+ * it to a handler that closes early, closing reads no more than a limit,
+ * {@link #DEFAULT_MAX_CLOSE_DRAIN} bytes by default. A body with more than
+ * that left unread is not verified and the close fails.
+ * <p>
+ * The MAC engine is only created by the first read or the close, so a body
+ * that the application never reads or closes costs nothing to verify.
+ * <p>
+ * If a tracer is installed when the stream is created, the body is reported
+ * as a {@link HawkTracer.Phase#PAYLOAD_HASH} phase once it has been verified.
+ * Only the time spent hashing is counted, not the time spent waiting for the
+ * body to arrive.
+ */
+public class PayloadVerifyingInputStream extends FilterInputStream
+{
+  /**
+   * Default number of unread bytes that closing the stream will read and
+   * verify
+   */
+  public static final long DEFAULT_MAX_CLOSE_DRAIN = 64L * 1024L;
+
+  private static final int SKIP_BUFFER_SIZE = 2048;
+
+  private final HawkCredentials credentials;
+  private final String contentType;
+  private final String expectedHash;
+  private final long maxCloseDrain;
+  private final HawkTracer tracer;
+  private Mac mac;
+  private long hashed = 0L;
+  private long hashNanos = 0L;
+  private boolean finished = false;
+  private boolean matched = false;
+  private boolean closed = false;
+
+  /**
+   * Create a verifying stream.
+   *
+   * @param in
+   *          the request body
+   * @param credentials
+   *          Hawk credentials of the requestor
+   * @param contentType
+   *          the MIME content type of the body
+   * @param expectedHash
+   *          the payload hash supplied with the body
+   */
+  public PayloadVerifyingInputStream(final InputStream in,
+                                     final HawkCredentials credentials,
+                                     final String contentType,
+                                     final String expectedHash)
+  {
+    this(in, credentials, contentType, expectedHash, DEFAULT_MAX_CLOSE_DRAIN);
+  }
+
+  /**
+   * Create a verifying stream.
+   *
+   * @param in
+   *          the request body
+   * @param credentials
+   *          Hawk credentials of the requestor
+   * @param contentType
+   *          the MIME content type of the body
+   * @param expectedHash
+   *          the payload hash supplied with the body
+   * @param maxCloseDrain
+   *          the most unread bytes that closing the stream will read to
+   *          verify the body
+   */
+  public PayloadVerifyingInputStream(final InputStream in,
+                                     final HawkCredentials credentials,
+                                     final String contentType,
+                                     final String expectedHash,
+                                     final long maxCloseDrain)
+  {
+    super(in);
+    if (expectedHash == null) {
+      throw new NullPointerException("Expected hash is required but not supplied");
+    }
+    if (credentials == null) {
+      throw new NullPointerException("Credentials are required but not supplied");
+    }
+    if (contentType == null) {
+      throw new NullPointerException("Content type is required but not supplied");
+    }
+    if (maxCloseDrain < 0) {
+      throw new IllegalArgumentException("The close drain limit must not be negative");
+    }
+    this.credentials = credentials;
+    this.contentType = contentType;
+    this.expectedHash = expectedHash;
+    this.maxCloseDrain = maxCloseDrain;
+    this.tracer = HawkTracing.tracer;
+  }
+
+  @Override
+  public int read() throws IOException
+  {
+    final int b = super.read();
+    if (b == -1)
+    {
+      verify();
+    }
+    else
+    {
+      final long start = this.tracer == null ? 0L : System.nanoTime();
+      mac().update((byte)b);
+      traced(1, start);
+    }
+    return b;
+  }
+
+  @Override
+  public int read(final byte[] b, final int off, final int len) throws IOException
+  {
+    final int count = super.read(b, off, len);
+    if (count == -1)
+    {
+      verify();
+    }
+    else
+    {
+      final long start = this.tracer == null ? 0L : System.nanoTime();
+      mac().update(b, off, count);
+      traced(count, start);
+    }
+    return count;
+  }
+
+  @Override
+  public long skip(final long n) throws IOException
+  {
+    // Skipped bytes still have to go through the MAC
+    if (n <= 0)
+    {
+      return 0;
+    }
+    final byte[] buffer = new byte[(int)Math.min(SKIP_BUFFER_SIZE, n)];
+    long remaining = n;
+    while (remaining > 0)
+    {
+      final int count = read(buffer, 0, (int)Math.min(buffer.length, remaining));
+      if (count == -1)
+      {
+        break;
+      }
+      remaining -= count;
+    }
+    return n - remaining;
+  }
+
+  /**
+   * Read the rest of the body, verify it and close the underlying stream.
+   *
+   * @throws IOException if the body does not match its hash, or more of it
+   *           than the close drain limit was left unread
+   */
+  @Override
+  public void close() throws IOException
+  {
+    if (this.closed)
+    {
+      return;
+    }
+    this.closed = true;
+    try
+    {
+      // The read that reaches the end verifies the body; one byte past the
+      // limit shows whether the end was within it
+      final byte[] buffer = new byte[SKIP_BUFFER_SIZE];
+      long remaining = this.maxCloseDrain + 1;
+      while (!this.finished)
+      {
+        final int count = read(buffer, 0, (int)Math.min(buffer.length, remaining));
+        if (count > 0 && (remaining -= count) == 0)
+        {
+          throw new IOException("Payload not verified: more than " + this.maxCloseDrain + " bytes left unread");
+        }
+      }
+      verify();
+    }
+    finally
+    {
+      super.close();
+    }
+  }
+
+  @Override
+  public boolean markSupported()
+  {
+    return false;
+  }
+
+  @Override
+  public synchronized void mark(final int readlimit)
+  {
+  }
+
+  @Override
+  public synchronized void reset() throws IOException
+  {
+    throw new IOException("mark/reset not supported");
+  }
+
+  /**
+   * Whether the whole body has been read and matched the expected hash.
+   *
+   * @return <code>true</code> if the body has been verified
+   */
+  public boolean isVerified()
+  {
+    return this.finished && this.matched;
+  }
+
+  private Mac mac()
+  {
+    if (this.mac == null)
+    {
+      this.mac = Hawk.startBodyMac(this.credentials, this.contentType);
+    }
+    return this.mac;
+  }
+
+  private void traced(final int count, final long start)
+  {
+    if (this.tracer != null)
+    {
+      this.hashed += count;
+      this.hashNanos += System.nanoTime() - start;
+    }
+  }
+
+  private void verify() throws IOException
+  {
+    if (!this.finished)
+    {
+      this.finished = true;
+      final long start = this.tracer == null ? 0L : System.nanoTime();
+      this.matched = HawkBuffers.macEquals(Hawk.finishRawBodyMac(mac()), this.expectedHash);
+      if (this.tracer != null)
+      {
+        this.tracer.phase(HawkTracer.Phase.PAYLOAD_HASH, this.credentials.getKeyId(), null, this.hashed,
+                          this.hashNanos + System.nanoTime() - start, this.matched);
+      }
+    }
+    if (!this.matched)
+    {
+      throw new IOException("Payload does not match its hash");
+    }
+  }
+}
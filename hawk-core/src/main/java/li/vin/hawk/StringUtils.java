@@ -34,6 +34,19 @@ import java.security.SecureRandom;
    * @return a string of random alphanumeric characters of the requested length
    */
   public static final String generateRandomString(int length)
+  {
+    final HawkTracer tracer = HawkTracing.tracer;
+    if (tracer == null)
+    {
+      return randomString(length);
+    }
+    final long start = System.nanoTime();
+    final String result = randomString(length);
+    tracer.phase(HawkTracer.Phase.NONCE_GENERATION, null, null, length, System.nanoTime() - start, true);
+    return result;
+  }
+
+  private static String randomString(final int length)
   {
     final StringBuffer sb = new StringBuffer(length);
     for (int i = 0; i < length; i++)
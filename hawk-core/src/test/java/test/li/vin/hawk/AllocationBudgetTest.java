@@ -0,0 +1,216 @@
+/*
+ *    Copyright 2013 Weald Technology Trading Limited
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ */
+
+package test.li.vin.hawk;
+
+import static org.testng.Assert.*;
+
+import java.lang.management.ManagementFactory;
+import java.net.URI;
+import java.nio.ByteBuffer;
+
+import org.testng.annotations.BeforeClass;
+import org.testng.annotations.Test;
+
+import li.vin.hawk.Hawk;
+import li.vin.hawk.HawkBuffers;
+import li.vin.hawk.HawkClient;
+import li.vin.hawk.HawkCredentials;
+import li.vin.hawk.HawkCredentialsSource;
+import li.vin.hawk.HawkServer;
+
+/**
+ * Measures the bytes allocated per call on the signing and verification
+ * paths, and fails if a path goes over its budget. The budgets have some
+ * headroom over what the paths allocate today, so that only a real
+ * regression fails; lower a budget when a path is made leaner.
+ * <p>
+ * Allocation is measured with the HotSpot thread MXBean, so nothing is
+ * checked on JVMs that do not support it.
+ * <p>
+ * The tests are in the benchmark group, and only run when the
+ * hawk.benchmarks system property is true.
+ */
+public class AllocationBudgetTest
+{
+  private static final int WARMUP_ITERATIONS = 20000;
+  private static final int ITERATIONS = 10000;
+
+  private com.sun.management.ThreadMXBean threads;
+  private HawkCredentials testcredentials1;
+  private HawkClient testclient1;
+  private URI validuri1;
+
+  // Helper
+  private interface Call
+  {
+    void run() throws Exception;
+  }
+
+  // Helper
+  private void assertBudget(final String name, final long budget, final Call call) throws Exception
+  {
+    if (this.threads == null)
+    {
+      return;
+    }
+    for (int i = 0; i < WARMUP_ITERATIONS; i++)
+    {
+      call.run();
+    }
+    final long thread = Thread.currentThread().getId();
+    final long before = this.threads.getThreadAllocatedBytes(thread);
+    for (int i = 0; i < ITERATIONS; i++)
+    {
+      call.run();
+    }
+    final long perCall = (this.threads.getThreadAllocatedBytes(thread) - before) / ITERATIONS;
+    assertTrue(perCall <= budget, name + " allocated " + perCall + " bytes per call, over its budget of " + budget);
+  }
+
+  @BeforeClass
+  public void setUp() throws Exception
+  {
+    if (Boolean.getBoolean("hawk.benchmarks") && ManagementFactory.getThreadMXBean() instanceof com.sun.management.ThreadMXBean)
+    {
+      this.threads = (com.sun.management.ThreadMXBean)ManagementFactory.getThreadMXBean();
+      if (this.threads.isThreadAllocatedMemorySupported())
+      {
+        this.threads.setThreadAllocatedMemoryEnabled(true);
+      }
+      else
+      {
+        this.threads = null;
+      }
+    }
+    this.testcredentials1 = new HawkCredentials.Builder()
+                                               .keyId("dh37fgj492je")
+                                               .key("werxhqb98rpaxn39848xrunpaw3489ruxnpa98w4rxn")
+                                               .algorithm(HawkCredentials.Algorithm.SHA256)
+                                               .build();
+    this.testclient1 = new HawkClient.Builder().credentials(this.testcredentials1).build();
+    this.validuri1 = new URI("http://localhost:18234/testpath/subpath?param1=val1&param2=val2");
+  }
+
+  @Test(groups = "benchmark")
+  public void testCalculateMAC() throws Exception
+  {
+    assertBudget("calculateMAC", 5120, new Call()
+    {
+      @Override
+      public void run()
+      {
+        Hawk.calculateMAC(testcredentials1, Hawk.AuthType.HEADER, 1353832234L, validuri1, "j4h3g2", "GET", null, "some-app-ext-data", null, null);
+      }
+    });
+  }
+
+  @Test(groups = "benchmark")
+  public void testCalculateBodyMac() throws Exception
+  {
+    final StringBuilder sb = new StringBuilder();
+    for (int i = 0; i < 100; i++)
+    {
+      sb.append("Text body ");
+    }
+    final String body = sb.toString();
+    assertBudget("calculateBodyMac", 9216, new Call()
+    {
+      @Override
+      public void run()
+      {
+        Hawk.calculateBodyMac(testcredentials1, "text/plain; charset=utf-8", body);
+      }
+    });
+  }
+
+  @Test(groups = "benchmark")
+  public void testByteBufferMAC() throws Exception
+  {
+    final ByteBuffer ext = ByteBuffer.wrap("some-app-ext-data".getBytes("UTF-8"));
+    final ByteBuffer out = ByteBuffer.allocate(HawkBuffers.MAX_BASE64_MAC_LENGTH);
+    assertBudget("HawkBuffers.calculateMAC", 2048, new Call()
+    {
+      @Override
+      public void run()
+      {
+        out.clear();
+        HawkBuffers.calculateMAC(testcredentials1, Hawk.AuthType.HEADER, 1353832234L, validuri1, "j4h3g2", "GET",
+                                 null, ext, null, null, out, true);
+      }
+    });
+  }
+
+  @Test(groups = "benchmark")
+  public void testMacEquals() throws Exception
+  {
+    final byte[] raw = new byte[32];
+    final String encoded = "AAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAA=";
+    assertBudget("macEquals", 0, new Call()
+    {
+      @Override
+      public void run()
+      {
+        if (!HawkBuffers.macEquals(raw, encoded)) {
+          throw new AssertionError("MACs differ");
+        }
+      }
+    });
+  }
+
+  @Test(groups = "benchmark")
+  public void testGenerateAuthorizationHeader() throws Exception
+  {
+    assertBudget("generateAuthorizationHeader", 6144, new Call()
+    {
+      @Override
+      public void run()
+      {
+        testclient1.generateAuthorizationHeader(validuri1, "GET", null, "some-app-ext-data", null, null);
+      }
+    });
+  }
+
+  @Test(groups = "benchmark")
+  public void testVerify() throws Exception
+  {
+    final HawkServer testServer = new HawkServer.Builder().credentialsSource(new HawkCredentialsSource()
+    {
+      @Override
+      public HawkCredentials getCredentials(final String keyId)
+      {
+        return testcredentials1;
+      }
+    }).build();
+    // Signed up front, so that only verification is measured
+    final String[] headers = new String[WARMUP_ITERATIONS + ITERATIONS];
+    for (int i = 0; i < headers.length; i++)
+    {
+      headers[i] = this.testclient1.generateAuthorizationHeader(this.validuri1, "GET", null, null, null, null);
+    }
+    final int[] next = new int[1];
+    assertBudget("verify", 6144, new Call()
+    {
+      @Override
+      public void run()
+      {
+        if (!testServer.verify(validuri1, "GET", headers[next[0]++]).isAuthenticated()) {
+          throw new AssertionError("Request not authenticated");
+        }
+      }
+    });
+  }
+}
@@ -0,0 +1,310 @@
+/*
+ *    Copyright 2013 Weald Technology Trading Limited
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ */
+
+package test.li.vin.hawk;
+
+import static org.testng.Assert.*;
+
+import java.io.File;
+import java.net.URI;
+import java.util.Collections;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CyclicBarrier;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.testng.annotations.BeforeClass;
+import org.testng.annotations.Test;
+
+import li.vin.hawk.BatchingNonceStore;
+import li.vin.hawk.BloomFilterNonceStore;
+import li.vin.hawk.CachingGrantSource;
+import li.vin.hawk.DerivedCredentialsSource;
+import li.vin.hawk.HawkAuthResult;
+import li.vin.hawk.HawkAuthorizationHeader;
+import li.vin.hawk.HawkClient;
+import li.vin.hawk.HawkCredentials;
+import li.vin.hawk.HawkCredentialsSource;
+import li.vin.hawk.HawkGrant;
+import li.vin.hawk.HawkGrantSource;
+import li.vin.hawk.HawkMessageAuthorization;
+import li.vin.hawk.HawkMessageSigner;
+import li.vin.hawk.HawkNonce;
+import li.vin.hawk.HawkPreparedRequest;
+import li.vin.hawk.HawkServer;
+import li.vin.hawk.InMemoryNonceStore;
+import li.vin.hawk.MappedNonceStore;
+import li.vin.hawk.NonceStore;
+
+/**
+ * Races threads against the state that requests share: nonce stores,
+ * credential and grant caches, and MAC engines. Each race starts all of its
+ * threads together at a barrier and is repeated many times, so that the
+ * interleavings that break an invariant have a chance to turn up.
+ */
+public class ConcurrencyStressTest
+{
+  private static final int THREADS = 8;
+  private static final int ROUNDS = 200;
+
+  private HawkCredentials testcredentials1;
+  private HawkClient testclient1;
+  private HawkCredentialsSource testsource1;
+  private URI validuri1;
+
+  // Helper
+  private interface Racer
+  {
+    void run(int thread) throws Exception;
+  }
+
+  // Helper
+  private static void race(final Racer racer) throws Exception
+  {
+    final CyclicBarrier start = new CyclicBarrier(THREADS);
+    final AtomicReference<Throwable> failure = new AtomicReference<Throwable>();
+    final Thread[] threads = new Thread[THREADS];
+    for (int t = 0; t < THREADS; t++)
+    {
+      final int thread = t;
+      threads[t] = new Thread(new Runnable()
+      {
+        @Override
+        public void run()
+        {
+          try
+          {
+            start.await();
+            racer.run(thread);
+          }
+          catch (Throwable th)
+          {
+            failure.compareAndSet(null, th);
+          }
+        }
+      });
+      threads[t].start();
+    }
+    for (final Thread thread : threads)
+    {
+      thread.join();
+    }
+    if (failure.get() instanceof Exception) {
+      throw (Exception)failure.get();
+    }
+    if (failure.get() != null) {
+      throw new AssertionError(failure.get());
+    }
+  }
+
+  // Helper
+  private static void assertAddedOnce(final NonceStore store) throws Exception
+  {
+    final long ts = System.currentTimeMillis() / 1000L;
+    for (int round = 0; round < ROUNDS; round++)
+    {
+      final HawkNonce nonce = new HawkNonce("dh37fgj492je", "nonce" + round, ts);
+      final AtomicInteger added = new AtomicInteger();
+      race(new Racer()
+      {
+        @Override
+        public void run(final int thread) throws Exception
+        {
+          if (store.add(nonce))
+          {
+            added.incrementAndGet();
+          }
+        }
+      });
+      assertEquals(added.get(), 1, store + " recorded a nonce more than once");
+      assertFalse(store.add(nonce));
+    }
+  }
+
+  @BeforeClass
+  public void setUp() throws Exception
+  {
+    this.testcredentials1 = new HawkCredentials.Builder()
+                                               .keyId("dh37fgj492je")
+                                               .key("werxhqb98rpaxn39848xrunpaw3489ruxnpa98w4rxn")
+                                               .algorithm(HawkCredentials.Algorithm.SHA256)
+                                               .build();
+    this.testclient1 = new HawkClient.Builder().credentials(this.testcredentials1).build();
+    this.testsource1 = new HawkCredentialsSource()
+    {
+      @Override
+      public HawkCredentials getCredentials(final String keyId)
+      {
+        return testcredentials1.getKeyId().equals(keyId) ? testcredentials1 : null;
+      }
+    };
+    this.validuri1 = new URI("http://localhost:18234/testpath/subpath?param1=val1&param2=val2");
+  }
+
+  @Test
+  public void testNonceStores() throws Exception
+  {
+    assertAddedOnce(new InMemoryNonceStore(60L));
+    assertAddedOnce(new BloomFilterNonceStore(new InMemoryNonceStore(60L), 60L, 1000L, 0.01));
+
+    final File file = File.createTempFile("nonces", ".store");
+    try
+    {
+      file.delete();
+      assertAddedOnce(new MappedNonceStore(file, 60L, 1000L));
+    }
+    finally
+    {
+      file.delete();
+    }
+
+    final BatchingNonceStore batching = new BatchingNonceStore(new FakeNonceServer(0L));
+    try
+    {
+      assertAddedOnce(batching);
+    }
+    finally
+    {
+      batching.close();
+    }
+  }
+
+  @Test
+  public void testReplays() throws Exception
+  {
+    final HawkServer testServer = new HawkServer.Builder().credentialsSource(this.testsource1).build();
+    for (int round = 0; round < ROUNDS; round++)
+    {
+      final String header = this.testclient1.generateAuthorizationHeader(this.validuri1, "GET", null, null, null, null);
+      final AtomicInteger authenticated = new AtomicInteger();
+      race(new Racer()
+      {
+        @Override
+        public void run(final int thread) throws Exception
+        {
+          final HawkAuthResult result = testServer.verify(validuri1, "GET", header);
+          if (result.isAuthenticated())
+          {
+            authenticated.incrementAndGet();
+          }
+          else
+          {
+            assertEquals(result.getStatus(), HawkAuthResult.Status.DUPLICATE_NONCE);
+          }
+        }
+      });
+      assertEquals(authenticated.get(), 1, "Replayed request authenticated");
+    }
+  }
+
+  @Test
+  public void testCaches() throws Exception
+  {
+    // Small caches, so that eviction races with lookups
+    final DerivedCredentialsSource credentials = new DerivedCredentialsSource("master secret".getBytes("UTF-8"), HawkCredentials.Algorithm.SHA256, 8);
+    final CachingGrantSource grants = new CachingGrantSource(new HawkGrantSource()
+    {
+      @Override
+      public HawkGrant getGrant(final String keyId, final String app, final String dlg)
+      {
+        return new HawkGrant(keyId, app, dlg, Long.MAX_VALUE);
+      }
+    }, 8);
+    final int lookups = 2000;
+    race(new Racer()
+    {
+      @Override
+      public void run(final int thread) throws Exception
+      {
+        for (int i = 0; i < lookups; i++)
+        {
+          final String keyId = "device-" + (i * (thread + 1)) % 32;
+          assertEquals(credentials.getCredentials(keyId), credentials.deriveCredentials(keyId));
+          final HawkGrant grant = grants.getGrant(keyId, "app", null);
+          assertEquals(grant.getKeyId(), keyId);
+        }
+      }
+    });
+    assertEquals(credentials.getHitCount() + credentials.getMissCount(), (long)THREADS * lookups);
+    assertEquals(grants.getHitCount() + grants.getMissCount(), (long)THREADS * lookups);
+    assertTrue(credentials.size() <= 8);
+    assertTrue(grants.size() <= 8);
+  }
+
+  @Test
+  public void testSharedMacEngines() throws Exception
+  {
+    final HawkServer testServer = new HawkServer.Builder().credentialsSource(this.testsource1).build();
+    final HawkMessageSigner signer = new HawkMessageSigner(this.testcredentials1, "example.com", 8080);
+    final int messages = 500;
+    final String[][] sent = new String[THREADS][messages];
+    final HawkMessageAuthorization[][] authorizations = new HawkMessageAuthorization[THREADS][messages];
+    final HawkPreparedRequest prepared = this.testclient1.prepare(this.validuri1, "GET", null, null, null, null, null);
+    final Set<String> headers = Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+    race(new Racer()
+    {
+      @Override
+      public void run(final int thread) throws Exception
+      {
+        for (int i = 0; i < messages; i++)
+        {
+          sent[thread][i] = "message " + thread + ' ' + i;
+          authorizations[thread][i] = signer.sign(sent[thread][i]);
+        }
+        headers.add(prepared.getAuthorizationHeader());
+      }
+    });
+
+    // Every MAC made on a shared engine is the one a fresh engine makes
+    for (int t = 0; t < THREADS; t++)
+    {
+      for (final HawkAuthResult result : testServer.verifyMessages("example.com", 8080, sent[t], authorizations[t], null))
+      {
+        assertEquals(result.getStatus(), HawkAuthResult.Status.OK);
+      }
+    }
+    // At most one header per second the threads ran in
+    assertTrue(headers.size() <= 2);
+    assertTrue(testServer.verify(this.validuri1, "GET", headers.iterator().next()).isAuthenticated());
+  }
+
+  @Test
+  public void testNonceGeneration() throws Exception
+  {
+    final int headers = 5000;
+    final Set<String> nonces = Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+    final AtomicInteger duplicates = new AtomicInteger();
+    race(new Racer()
+    {
+      @Override
+      public void run(final int thread) throws Exception
+      {
+        for (int i = 0; i < headers; i++)
+        {
+          final String nonce = HawkAuthorizationHeader.parse(testclient1.generateAuthorizationHeader(validuri1, "GET", null, null, null, null)).getNonce();
+          assertEquals(nonce.length(), 6);
+          if (!nonces.add(nonce))
+          {
+            duplicates.incrementAndGet();
+          }
+        }
+      }
+    });
+    // Even one collision between this many random nonces is unlikely
+    assertTrue(duplicates.get() < 5, duplicates.get() + " duplicate nonces");
+  }
+}
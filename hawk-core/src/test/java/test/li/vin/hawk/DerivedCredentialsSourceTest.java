@@ -0,0 +1,133 @@
+/*
+ *    Copyright 2013 Weald Technology Trading Limited
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ */
+
+package test.li.vin.hawk;
+
+import static org.testng.Assert.*;
+
+import java.net.URI;
+
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+
+import org.testng.annotations.Test;
+
+import android.util.Base64;
+import li.vin.hawk.DerivedCredentialsSource;
+import li.vin.hawk.HawkClient;
+import li.vin.hawk.HawkCredentials;
+import li.vin.hawk.HawkServer;
+
+public class DerivedCredentialsSourceTest
+{
+  private static final byte[] MASTER_SECRET = "a master secret that is long enough".getBytes();
+  private static final int LOOKUPS = 10000;
+
+  // Helper, following RFC 5869 step by step
+  private static String hkdf(final String algorithm, final int hashLength, final byte[] ikm, final byte[] info) throws Exception
+  {
+    final Mac extract = Mac.getInstance(algorithm);
+    extract.init(new SecretKeySpec(new byte[hashLength], algorithm));
+    final byte[] prk = extract.doFinal(ikm);
+    final Mac expand = Mac.getInstance(algorithm);
+    expand.init(new SecretKeySpec(prk, algorithm));
+    expand.update(info);
+    expand.update((byte)1);
+    return new String(Base64.encode(expand.doFinal(), Base64.NO_WRAP), "UTF-8");
+  }
+
+  @Test
+  public void testDerivation() throws Exception
+  {
+    final DerivedCredentialsSource source = new DerivedCredentialsSource(MASTER_SECRET, HawkCredentials.Algorithm.SHA256);
+    final HawkCredentials credentials = source.deriveCredentials("device-1");
+    assertEquals(credentials.getKeyId(), "device-1");
+    assertEquals(credentials.getAlgorithm(), HawkCredentials.Algorithm.SHA256);
+    assertEquals(credentials.getKey(), hkdf("HmacSHA256", 32, MASTER_SECRET, "hawk-device-key\u0000device-1".getBytes("UTF-8")));
+
+    // Deterministic, and distinct per key ID, secret and algorithm
+    assertEquals(new DerivedCredentialsSource(MASTER_SECRET, HawkCredentials.Algorithm.SHA256).deriveCredentials("device-1"), credentials);
+    assertFalse(source.deriveCredentials("device-2").getKey().equals(credentials.getKey()));
+    assertFalse(new DerivedCredentialsSource("another master secret".getBytes(), HawkCredentials.Algorithm.SHA256)
+                    .deriveCredentials("device-1").getKey().equals(credentials.getKey()));
+    final HawkCredentials sha1 = new DerivedCredentialsSource(MASTER_SECRET, HawkCredentials.Algorithm.SHA1).deriveCredentials("device-1");
+    assertEquals(sha1.getAlgorithm(), HawkCredentials.Algorithm.SHA1);
+    assertEquals(sha1.getKey(), hkdf("HmacSHA1", 20, MASTER_SECRET, "hawk-device-key\u0000device-1".getBytes("UTF-8")));
+  }
+
+  @Test
+  public void testAuthentication() throws Exception
+  {
+    final DerivedCredentialsSource source = new DerivedCredentialsSource(MASTER_SECRET, HawkCredentials.Algorithm.SHA256);
+    final HawkServer server = new HawkServer.Builder().credentialsSource(source).build();
+    final URI uri = new URI("http://example.com:8080/resource");
+
+    final HawkClient device = new HawkClient.Builder().credentials(source.deriveCredentials("device-42")).build();
+    assertTrue(server.verify(uri, "GET", device.generateAuthorizationHeader(uri, "GET", null, null, null, null)).isAuthenticated());
+
+    // A device cannot present its own key under another key ID
+    final HawkCredentials forged = new HawkCredentials.Builder(source.deriveCredentials("device-42")).keyId("device-43").build();
+    final HawkClient forger = new HawkClient.Builder().credentials(forged).build();
+    assertFalse(server.verify(uri, "GET", forger.generateAuthorizationHeader(uri, "GET", null, null, null, null)).isAuthenticated());
+  }
+
+  @Test
+  public void testCache() throws Exception
+  {
+    final DerivedCredentialsSource source = new DerivedCredentialsSource(MASTER_SECRET, HawkCredentials.Algorithm.SHA256, 2);
+    assertNull(source.getCredentials(null));
+    final HawkCredentials first = source.getCredentials("device-1");
+    assertSame(source.getCredentials("device-1"), first);
+    assertEquals(source.getHitCount(), 1L);
+    assertEquals(source.getMissCount(), 1L);
+
+    source.getCredentials("device-2");
+    source.getCredentials("device-1");
+    source.getCredentials("device-3");
+    assertEquals(source.size(), 2);
+    // The least recently used was evicted
+    source.getCredentials("device-1");
+    assertEquals(source.getMissCount(), 3L);
+    source.getCredentials("device-2");
+    assertEquals(source.getMissCount(), 4L);
+  }
+
+  /**
+   * Count hits and derivations for a working set that fits in the cache and
+   * one that does not.
+   */
+  @Test
+  public void testWorkingSets() throws Exception
+  {
+    final DerivedCredentialsSource source = new DerivedCredentialsSource(MASTER_SECRET, HawkCredentials.Algorithm.SHA256, 1000);
+    for (int i = 0; i < LOOKUPS; i++)
+    {
+      assertEquals(source.getCredentials("device-" + i % 500), source.deriveCredentials("device-" + i % 500));
+    }
+    assertEquals(source.getMissCount(), 500L);
+    assertEquals(source.getHitCount(), LOOKUPS - 500L);
+
+    // Cycling through more keys than the cache holds derives every time, once
+    // the keys already cached have been used
+    for (int i = 0; i < LOOKUPS; i++)
+    {
+      assertNotNull(source.getCredentials("device-" + i % 2000));
+    }
+    assertEquals(source.getMissCount(), (long)LOOKUPS);
+    assertEquals(source.getHitCount(), (long)LOOKUPS);
+    assertEquals(source.size(), 1000);
+  }
+}
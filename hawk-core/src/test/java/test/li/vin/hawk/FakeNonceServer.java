@@ -0,0 +1,76 @@
+/*
+ *    Copyright 2013 Weald Technology Trading Limited
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ */
+
+package test.li.vin.hawk;
+
+import java.io.IOException;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import li.vin.hawk.BatchingNonceStore;
+import li.vin.hawk.HawkNonce;
+
+/**
+ * A stand-in for a networked nonce store, charging a fixed round trip per
+ * call so that the effect of batching can be measured locally.
+ */
+public class FakeNonceServer implements BatchingNonceStore.Backend
+{
+  private final long roundTripMillis;
+  private final ConcurrentHashMap<HawkNonce, Boolean> nonces = new ConcurrentHashMap<HawkNonce, Boolean>();
+  private final AtomicInteger calls = new AtomicInteger();
+  private volatile boolean available = true;
+
+  public FakeNonceServer(final long roundTripMillis)
+  {
+    this.roundTripMillis = roundTripMillis;
+  }
+
+  @Override
+  public boolean[] addAll(final List<HawkNonce> batch) throws IOException
+  {
+    this.calls.incrementAndGet();
+    if (!this.available)
+    {
+      throw new IOException("Fake nonce server is down");
+    }
+    try
+    {
+      Thread.sleep(this.roundTripMillis);
+    }
+    catch (InterruptedException ie)
+    {
+      throw new IOException("Interrupted", ie);
+    }
+    final boolean[] results = new boolean[batch.size()];
+    for (int i = 0; i < results.length; i++)
+    {
+      results[i] = this.nonces.putIfAbsent(batch.get(i), Boolean.TRUE) == null;
+    }
+    return results;
+  }
+
+  public int getCalls()
+  {
+    return this.calls.get();
+  }
+
+  public void setAvailable(final boolean available)
+  {
+    this.available = available;
+  }
+}
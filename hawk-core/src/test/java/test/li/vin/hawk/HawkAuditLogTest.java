@@ -0,0 +1,181 @@
+/*
+ *    Copyright 2013 Weald Technology Trading Limited
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ */
+
+package test.li.vin.hawk;
+
+import static org.testng.Assert.*;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.InputStreamReader;
+import java.net.URI;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.testng.annotations.BeforeClass;
+import org.testng.annotations.Test;
+
+import li.vin.hawk.HawkAuditLog;
+import li.vin.hawk.HawkAuthResult;
+import li.vin.hawk.HawkClient;
+import li.vin.hawk.HawkCredentials;
+import li.vin.hawk.HawkCredentialsSource;
+import li.vin.hawk.HawkServer;
+
+public class HawkAuditLogTest
+{
+  private static final int RECORDS = 100000;
+
+  private HawkCredentials testcredentials1;
+  private HawkCredentialsSource testsource1;
+  private URI validuri1;
+
+  // Helper
+  private static List<String[]> readRecords(final File file) throws Exception
+  {
+    final List<String[]> records = new ArrayList<String[]>();
+    final BufferedReader in = new BufferedReader(new InputStreamReader(new FileInputStream(file), "US-ASCII"));
+    try
+    {
+      String line;
+      while ((line = in.readLine()) != null)
+      {
+        records.add(line.split("\t", -1));
+      }
+    }
+    finally
+    {
+      in.close();
+    }
+    return records;
+  }
+
+  @BeforeClass
+  public void setUp() throws Exception
+  {
+    this.testcredentials1 = new HawkCredentials.Builder()
+                                               .keyId("dh37fgj492je")
+                                               .key("werxhqb98rpaxn39848xrunpaw3489ruxnpa98w4rxn")
+                                               .algorithm(HawkCredentials.Algorithm.SHA256)
+                                               .build();
+    this.testsource1 = new HawkCredentialsSource()
+    {
+      @Override
+      public HawkCredentials getCredentials(final String keyId)
+      {
+        return testcredentials1.getKeyId().equals(keyId) ? testcredentials1 : null;
+      }
+    };
+    this.validuri1 = new URI("http://localhost:18234/testpath/subpath?param1=val1&param2=val2");
+  }
+
+  @Test
+  public void testDecisions() throws Exception
+  {
+    final File file = File.createTempFile("audit", ".log");
+    try
+    {
+      final HawkAuditLog auditLog = new HawkAuditLog(file);
+      final HawkClient client = new HawkClient.Builder().credentials(this.testcredentials1).auditLog(auditLog).build();
+      final HawkServer server = new HawkServer.Builder().credentialsSource(this.testsource1).auditLog(auditLog).build();
+
+      assertEquals(server.verify(this.validuri1, "GET", (String)null).getStatus(), HawkAuthResult.Status.MISSING_HEADER);
+      final String header = client.generateAuthorizationHeader(this.validuri1, "GET", null, null, null, null);
+      assertTrue(server.verify(this.validuri1, "GET", header).isAuthenticated());
+      assertEquals(server.verify(this.validuri1, "GET", header).getStatus(), HawkAuthResult.Status.DUPLICATE_NONCE);
+      auditLog.close();
+
+      assertEquals(auditLog.getWrittenCount(), 4L);
+      assertEquals(auditLog.getDroppedCount(), 0L);
+      final List<String[]> records = readRecords(file);
+      assertEquals(records.size(), 4);
+      assertEquals(records.get(0)[1], "VERIFY_REQUEST");
+      assertEquals(records.get(0)[2], "MISSING_HEADER");
+      assertEquals(records.get(0)[3], "-");
+      assertEquals(records.get(1)[1], "SIGN_REQUEST");
+      assertEquals(records.get(2)[2], "OK");
+      assertEquals(records.get(2)[3], "dh37fgj492je");
+      assertEquals(records.get(3)[2], "DUPLICATE_NONCE");
+      // The same request throughout
+      assertEquals(records.get(2)[4], records.get(1)[4]);
+      assertEquals(records.get(3)[5], records.get(1)[5]);
+    }
+    finally
+    {
+      file.delete();
+    }
+  }
+
+  @Test
+  public void testDrop() throws Exception
+  {
+    final File file = File.createTempFile("audit", ".log");
+    try
+    {
+      final HawkAuditLog auditLog = new HawkAuditLog(file, 16, HawkAuditLog.Backpressure.DROP, 1);
+      for (int i = 0; i < RECORDS; i++)
+      {
+        auditLog.record(HawkAuditLog.Operation.VERIFY_REQUEST, "key" + i, i, "nonce", HawkAuthResult.Status.OK);
+      }
+      auditLog.close();
+      assertEquals(auditLog.getWrittenCount() + auditLog.getDroppedCount(), RECORDS);
+      assertEquals(readRecords(file).size(), auditLog.getWrittenCount());
+    }
+    finally
+    {
+      file.delete();
+    }
+  }
+
+  @Test
+  public void testBlock() throws Exception
+  {
+    final File file = File.createTempFile("audit", ".log");
+    try
+    {
+      final HawkAuditLog auditLog = new HawkAuditLog(file, 16, HawkAuditLog.Backpressure.BLOCK, 1);
+      final Thread[] threads = new Thread[4];
+      for (int t = 0; t < threads.length; t++)
+      {
+        threads[t] = new Thread(new Runnable()
+        {
+          @Override
+          public void run()
+          {
+            for (int i = 0; i < RECORDS / 40; i++)
+            {
+              auditLog.record(HawkAuditLog.Operation.VERIFY_MESSAGE, "key", i, "nonce", HawkAuthResult.Status.BAD_MAC);
+            }
+          }
+        });
+        threads[t].start();
+      }
+      for (final Thread thread : threads)
+      {
+        thread.join();
+      }
+      auditLog.close();
+      assertEquals(auditLog.getDroppedCount(), 0L);
+      assertEquals(auditLog.getWrittenCount(), RECORDS / 10);
+      assertEquals(readRecords(file).size(), RECORDS / 10);
+    }
+    finally
+    {
+      file.delete();
+    }
+  }
+}
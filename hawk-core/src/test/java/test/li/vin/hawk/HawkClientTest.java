@@ -18,16 +18,27 @@ package test.li.vin.hawk;
 
 import static org.testng.Assert.*;
 
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
 import java.net.HttpURLConnection;
 import java.net.URI;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 
 import org.testng.annotations.BeforeClass;
 import org.testng.annotations.Test;
 
+import li.vin.hawk.Hawk;
 import li.vin.hawk.Hawk.PayloadValidation;
+import li.vin.hawk.HawkAuthorizationHeader;
 import li.vin.hawk.HawkClient;
 import li.vin.hawk.HawkClientConfiguration;
 import li.vin.hawk.HawkCredentials;
+import li.vin.hawk.HawkCredentialsSource;
+import li.vin.hawk.HawkPayload;
+import li.vin.hawk.HawkPreparedRequest;
+import li.vin.hawk.HawkServer;
 
 public class HawkClientTest
 {
@@ -158,6 +169,110 @@ public class HawkClientTest
     assertFalse(testClient3.isValidFor("/testtest2"));
   }
 
+  @Test
+  public void testPayloadHash() throws Exception
+  {
+    // Streamed payload hashes must match the in-memory body MAC
+    final String contentType = "text/plain; charset=utf-8";
+    final String body = "Text body";
+    final String expected = Hawk.calculateBodyMac(this.testcredentials1, contentType, body);
+    assertEquals(HawkPayload.fromBytes(contentType, body.getBytes("UTF-8")).calculateHash(this.testcredentials1), expected);
+
+    final File file = File.createTempFile("hawk", ".txt");
+    try
+    {
+      final FileOutputStream out = new FileOutputStream(file);
+      out.write(body.getBytes("UTF-8"));
+      out.close();
+      final HawkPayload payload = HawkPayload.fromFile(contentType, file);
+      assertEquals(payload.getLength(), body.length());
+      assertEquals(payload.calculateHash(this.testcredentials1), expected);
+    }
+    finally
+    {
+      file.delete();
+    }
+  }
+
+  @Test
+  public void testPayloadAuthorizationHeader() throws Exception
+  {
+    final HawkPayload payload = HawkPayload.fromBytes("text/plain", "Text body".getBytes("UTF-8"));
+
+    // No payload validation means no hash
+    final HawkClient testClient1 = new HawkClient.Builder().credentials(this.testcredentials1).build();
+    final String header1 = testClient1.generatePayloadAuthorizationHeader(this.validuri1, "post", payload, null, null, null);
+    assertNull(HawkAuthorizationHeader.parse(header1).getHash());
+
+    final HawkClientConfiguration clientConfiguration = new HawkClientConfiguration.Builder()
+                                                                                   .payloadValidation(PayloadValidation.MANDATORY)
+                                                                                   .build();
+    final HawkClient testClient2 = new HawkClient.Builder()
+                                                 .credentials(this.testcredentials1)
+                                                 .configuration(clientConfiguration)
+                                                 .build();
+    final String header2 = testClient2.generatePayloadAuthorizationHeader(this.validuri1, "post", payload, null, null, null);
+    assertEquals(HawkAuthorizationHeader.parse(header2).getHash(), payload.calculateHash(this.testcredentials1));
+  }
+
+  @Test
+  public void testPreparedRequest() throws Exception
+  {
+    final HawkPayload payload = HawkPayload.fromBytes("text/plain", "Text body".getBytes("UTF-8"));
+    final HawkClientConfiguration clientConfiguration = new HawkClientConfiguration.Builder()
+                                                                                   .payloadValidation(PayloadValidation.MANDATORY)
+                                                                                   .build();
+    final HawkClient testClient = new HawkClient.Builder()
+                                                .credentials(this.testcredentials1)
+                                                .configuration(clientConfiguration)
+                                                .build();
+    final HawkServer testServer = new HawkServer.Builder().credentialsSource(new HawkCredentialsSource()
+    {
+      @Override
+      public HawkCredentials getCredentials(final String keyId)
+      {
+        return testcredentials1;
+      }
+    }).build();
+
+    final ExecutorService executor = Executors.newSingleThreadExecutor();
+    try
+    {
+      final HawkPreparedRequest prepared1 = testClient.prepare(this.validuri1, "post", payload, "some data", "app", "dlg", executor);
+      final HawkPreparedRequest prepared2 = testClient.prepare(this.validuri1, "post", payload, null, null, null, null);
+      final String header1 = prepared1.getAuthorizationHeader();
+      final HawkAuthorizationHeader parsed = HawkAuthorizationHeader.parse(header1);
+      assertEquals(parsed.getHash(), payload.calculateHash(this.testcredentials1));
+      assertEquals(parsed.getExt(), "some data");
+      assertEquals(parsed.getApp(), "app");
+      assertEquals(parsed.getDlg(), "dlg");
+      assertTrue(testServer.verify(this.validuri1, "POST", header1).isAuthenticated());
+
+      // Sent in a later second, so the header is re-signed
+      Thread.sleep(1100);
+      final String header2 = prepared2.getAuthorizationHeader();
+      assertTrue(HawkAuthorizationHeader.parse(header2).getTs() > parsed.getTs());
+      assertTrue(testServer.verify(this.validuri1, "POST", header2).isAuthenticated());
+
+      // Failures to read the payload surface when the header is needed
+      final HawkPreparedRequest missing = testClient.prepare(this.validuri1, "post", HawkPayload.fromFile("text/plain", new File("/nonexistent/hawk")),
+                                                             null, null, null, executor);
+      try
+      {
+        missing.getAuthorizationHeader();
+        fail("Prepared a request with an unreadable payload");
+      }
+      catch (IOException ioe)
+      {
+        // Good
+      }
+    }
+    finally
+    {
+      executor.shutdown();
+    }
+  }
+
   @Test
   public void testConfigurationModel() throws Exception
   {
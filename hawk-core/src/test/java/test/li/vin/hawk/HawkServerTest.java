@@ -0,0 +1,854 @@
+/*
+ *    Copyright 2013 Weald Technology Trading Limited
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ */
+
+package test.li.vin.hawk;
+
+import static org.testng.Assert.*;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.URI;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.EnumSet;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import javax.crypto.Mac;
+
+import org.testng.annotations.BeforeClass;
+import org.testng.annotations.Test;
+
+import li.vin.hawk.CachingGrantSource;
+import li.vin.hawk.Hawk;
+import li.vin.hawk.Hawk.PayloadValidation;
+import li.vin.hawk.HawkAuthResult;
+import li.vin.hawk.HawkAuthorizationHeader;
+import li.vin.hawk.HawkClient;
+import li.vin.hawk.HawkClientConfiguration;
+import li.vin.hawk.HawkCredentials;
+import li.vin.hawk.HawkCredentialsSource;
+import li.vin.hawk.HawkError;
+import li.vin.hawk.HawkGrant;
+import li.vin.hawk.HawkGrantSource;
+import li.vin.hawk.HawkMessageAuthorization;
+import li.vin.hawk.HawkMessageSigner;
+import li.vin.hawk.HawkServer;
+import li.vin.hawk.HawkTracer;
+import li.vin.hawk.HawkTracing;
+import li.vin.hawk.PayloadHashingOutputStream;
+import li.vin.hawk.PayloadVerifyingInputStream;
+
+public class HawkServerTest
+{
+  private static final String CONTENT_TYPE = "text/plain; charset=utf-8";
+  private static final String BODY = "Text body";
+
+  private HawkCredentials testcredentials1;
+  private HawkClient testclient1;
+  private HawkCredentialsSource testsource1;
+  private URI validuri1;
+
+  // Helper
+  private static String readFully(final InputStream in) throws IOException
+  {
+    final StringBuilder sb = new StringBuilder();
+    final byte[] buffer = new byte[3];
+    int count;
+    while ((count = in.read(buffer)) != -1)
+    {
+      sb.append(new String(buffer, 0, count, "UTF-8"));
+    }
+    return sb.toString();
+  }
+
+  @BeforeClass
+  public void setUp() throws Exception
+  {
+    this.testcredentials1 = new HawkCredentials.Builder()
+                                               .keyId("dh37fgj492je")
+                                               .key("werxhqb98rpaxn39848xrunpaw3489ruxnpa98w4rxn")
+                                               .algorithm(HawkCredentials.Algorithm.SHA256)
+                                               .build();
+    this.testclient1 = new HawkClient.Builder().credentials(this.testcredentials1).build();
+    this.testsource1 = new HawkCredentialsSource()
+    {
+      @Override
+      public HawkCredentials getCredentials(final String keyId)
+      {
+        return testcredentials1.getKeyId().equals(keyId) ? testcredentials1 : null;
+      }
+    };
+    this.validuri1 = new URI("http://localhost:18234/testpath/subpath?param1=val1&param2=val2");
+  }
+
+  @Test
+  public void testParseHeader() throws Exception
+  {
+    final HawkAuthorizationHeader header = HawkAuthorizationHeader.parse("Hawk id=\"dh37fgj492je\", ts=\"1353832234\", nonce=\"j4h3g2\", ext=\"some-app-ext-data\", mac=\"6R4rV5iE+NPoym+WwjeHzjAGXUtLNIxmo1vpMofpLAE=\"");
+    assertEquals(header.getId(), "dh37fgj492je");
+    assertEquals(header.getTs(), Long.valueOf(1353832234L));
+    assertEquals(header.getNonce(), "j4h3g2");
+    assertEquals(header.getExt(), "some-app-ext-data");
+    assertEquals(header.getMac(), "6R4rV5iE+NPoym+WwjeHzjAGXUtLNIxmo1vpMofpLAE=");
+    assertNull(header.getHash());
+  }
+
+  @Test
+  public void testParseInvalidHeader() throws Exception
+  {
+    final String[] invalidHeaders = {
+        "Basic dXNlcjpwYXNz",
+        "Hawk id=\"dh37fgj492je\", ts=\"1353832234\", nonce=\"j4h3g2\"",
+        "Hawk id=\"dh37fgj492je\", ts=\"notanumber\", nonce=\"j4h3g2\", mac=\"abc\"",
+        "Hawk id=\"dh37fgj492je\", id=\"other\", ts=\"1353832234\", nonce=\"j4h3g2\", mac=\"abc\"",
+        "Hawk id=\"dh37fgj492je, ts=\"1353832234\"",
+    };
+    for (final String invalidHeader : invalidHeaders)
+    {
+      try
+      {
+        HawkAuthorizationHeader.parse(invalidHeader);
+        fail("Parsed invalid header " + invalidHeader);
+      }
+      catch (Exception de)
+      {
+        // Good
+      }
+    }
+  }
+
+  @Test
+  public void testValidRequest() throws Exception
+  {
+    final HawkServer testServer = new HawkServer.Builder().credentialsSource(this.testsource1).build();
+    final String authorizationHeader = this.testclient1.generateAuthorizationHeader(this.validuri1, "get", null, "some data", null, null);
+    final HawkCredentials credentials = testServer.authenticate(this.validuri1, "GET", HawkAuthorizationHeader.parse(authorizationHeader));
+    assertEquals(credentials, this.testcredentials1);
+  }
+
+  @Test
+  public void testIncorrectMethod() throws Exception
+  {
+    final HawkServer testServer = new HawkServer.Builder().credentialsSource(this.testsource1).build();
+    final String authorizationHeader = this.testclient1.generateAuthorizationHeader(this.validuri1, "post", null, null, null, null);
+    try
+    {
+      testServer.authenticate(this.validuri1, "GET", HawkAuthorizationHeader.parse(authorizationHeader));
+      fail("Authenticated request with incorrect method");
+    }
+    catch (Exception de)
+    {
+      // Good
+    }
+  }
+
+  @Test
+  public void testDuplicateNonce() throws Exception
+  {
+    final HawkServer testServer = new HawkServer.Builder().credentialsSource(this.testsource1).build();
+    final String authorizationHeader = this.testclient1.generateAuthorizationHeader(this.validuri1, "get", null, null, null, null);
+    testServer.authenticate(this.validuri1, "GET", HawkAuthorizationHeader.parse(authorizationHeader));
+    try
+    {
+      testServer.authenticate(this.validuri1, "GET", HawkAuthorizationHeader.parse(authorizationHeader));
+      fail("Authenticated replayed request");
+    }
+    catch (Exception de)
+    {
+      // Good
+    }
+  }
+
+  @Test
+  public void testVerifyResults() throws Exception
+  {
+    final HawkServer testServer = new HawkServer.Builder().credentialsSource(this.testsource1).build();
+    assertEquals(testServer.verify(this.validuri1, "GET", (String)null).getStatus(), HawkAuthResult.Status.MISSING_HEADER);
+    assertEquals(testServer.verify(this.validuri1, "GET", "Hawk id=\"dh37fgj492je").getStatus(), HawkAuthResult.Status.MALFORMED_HEADER);
+    assertEquals(testServer.verify(this.validuri1, "GET", "Hawk id=\"dh37fgj492je\", ts=\"1353832234\", nonce=\"j4h3g2\", mac=\"abc\"").getStatus(),
+                 HawkAuthResult.Status.STALE_TIMESTAMP);
+
+    final HawkCredentials unknownCredentials = new HawkCredentials.Builder(this.testcredentials1).keyId("unknown").build();
+    final HawkClient unknownClient = new HawkClient.Builder().credentials(unknownCredentials).build();
+    final String unknownHeader = unknownClient.generateAuthorizationHeader(this.validuri1, "get", null, null, null, null);
+    assertEquals(testServer.verify(this.validuri1, "GET", unknownHeader).getStatus(), HawkAuthResult.Status.UNKNOWN_CREDENTIALS);
+
+    final String authorizationHeader = this.testclient1.generateAuthorizationHeader(this.validuri1, "get", null, null, null, null);
+    assertEquals(testServer.verify(this.validuri1, "POST", authorizationHeader).getStatus(), HawkAuthResult.Status.BAD_MAC);
+    final HawkAuthResult result = testServer.verify(this.validuri1, "GET", authorizationHeader);
+    assertTrue(result.isAuthenticated());
+    assertEquals(result.getCredentials(), this.testcredentials1);
+
+    // Rejections are shared rather than allocated per request
+    final HawkAuthResult replay1 = testServer.verify(this.validuri1, "GET", authorizationHeader);
+    final HawkAuthResult replay2 = testServer.verify(this.validuri1, "GET", authorizationHeader);
+    assertEquals(replay1.getStatus(), HawkAuthResult.Status.DUPLICATE_NONCE);
+    assertSame(replay1, replay2);
+  }
+
+  @Test
+  public void testTracing() throws Exception
+  {
+    final Set<HawkTracer.Phase> phases = Collections.synchronizedSet(EnumSet.noneOf(HawkTracer.Phase.class));
+    HawkTracing.setTracer(new HawkTracer()
+    {
+      @Override
+      public void phase(final Phase phase, final String keyId, final Hawk.AuthType authType,
+                        final long size, final long durationNanos, final boolean success)
+      {
+        assertTrue(durationNanos >= 0L);
+        if (phase == Phase.PARSE_HEADER || phase == Phase.PAYLOAD_HASH)
+        {
+          assertEquals(keyId, "dh37fgj492je");
+          assertTrue(size > 0L);
+        }
+        phases.add(phase);
+      }
+    });
+    try
+    {
+      final HawkServer testServer = new HawkServer.Builder().credentialsSource(this.testsource1).build();
+      final String hash = Hawk.calculateBodyMac(this.testcredentials1, CONTENT_TYPE, BODY);
+      final String authorizationHeader = this.testclient1.generateAuthorizationHeader(this.validuri1, "POST", hash, null, null, null);
+      assertTrue(testServer.verify(this.validuri1, "POST", authorizationHeader).isAuthenticated());
+    }
+    finally
+    {
+      HawkTracing.setTracer(null);
+    }
+    assertEquals(phases, EnumSet.allOf(HawkTracer.Phase.class));
+  }
+
+  @Test
+  public void testBatchTracing() throws Exception
+  {
+    final HawkServer testServer = new HawkServer.Builder().credentialsSource(this.testsource1).build();
+    final URI[] uris = new URI[10];
+    final String[] methods = new String[uris.length];
+    final String[] authorizationHeaders = new String[uris.length];
+    for (int i = 0; i < uris.length; i++)
+    {
+      uris[i] = this.validuri1;
+      methods[i] = "GET";
+      authorizationHeaders[i] = this.testclient1.generateAuthorizationHeader(this.validuri1, "GET", null, null, null, null);
+    }
+    final HawkMessageSigner signer = new HawkMessageSigner(this.testcredentials1, "example.com", 8080);
+    final String[] messages = new String[10];
+    final HawkMessageAuthorization[] authorizations = new HawkMessageAuthorization[messages.length];
+    long messageLength = 0L;
+    for (int i = 0; i < messages.length; i++)
+    {
+      messages[i] = "message " + i;
+      authorizations[i] = signer.sign(messages[i]);
+      messageLength += messages[i].length();
+    }
+    final HawkServer payloadServer = new HawkServer.Builder()
+                                                   .credentialsSource(this.testsource1)
+                                                   .configuration(new HawkClientConfiguration.Builder().payloadValidation(PayloadValidation.MANDATORY).build())
+                                                   .build();
+    final String hash = Hawk.calculateBodyMac(this.testcredentials1, CONTENT_TYPE, BODY);
+    final HawkAuthResult result =
+        payloadServer.verify(this.validuri1, "POST", this.testclient1.generateAuthorizationHeader(this.validuri1, "POST", hash, null, null, null));
+
+    final int[] counts = new int[HawkTracer.Phase.values().length];
+    final long[] hashed = new long[1];
+    HawkTracing.setTracer(new HawkTracer()
+    {
+      @Override
+      public void phase(final Phase phase, final String keyId, final Hawk.AuthType authType,
+                        final long size, final long durationNanos, final boolean success)
+      {
+        assertEquals(keyId, "dh37fgj492je");
+        assertTrue(durationNanos >= 0L);
+        assertTrue(success);
+        counts[phase.ordinal()]++;
+        if (phase == Phase.PAYLOAD_HASH)
+        {
+          hashed[0] += size;
+        }
+      }
+    });
+    try
+    {
+      // Each request is parsed and normalized, but the key's MAC engine is
+      // initialized once
+      for (final HawkAuthResult batchResult : testServer.verify(uris, methods, authorizationHeaders, null))
+      {
+        assertTrue(batchResult.isAuthenticated());
+      }
+      assertEquals(counts[HawkTracer.Phase.PARSE_HEADER.ordinal()], uris.length);
+      assertEquals(counts[HawkTracer.Phase.NORMALIZE.ordinal()], uris.length);
+      assertEquals(counts[HawkTracer.Phase.MAC_INIT.ordinal()], 1);
+
+      Arrays.fill(counts, 0);
+      for (final HawkAuthResult messageResult : testServer.verifyMessages("example.com", 8080, messages, authorizations, null))
+      {
+        assertTrue(messageResult.isAuthenticated());
+      }
+      assertEquals(counts[HawkTracer.Phase.NORMALIZE.ordinal()], messages.length);
+      assertEquals(counts[HawkTracer.Phase.PAYLOAD_HASH.ordinal()], messages.length);
+      assertEquals(counts[HawkTracer.Phase.MAC_INIT.ordinal()], 1);
+      assertEquals(hashed[0], messageLength);
+
+      // A streamed payload is reported once, when it has been verified
+      Arrays.fill(counts, 0);
+      hashed[0] = 0L;
+      final InputStream body = payloadServer.verifyPayload(new ByteArrayInputStream(BODY.getBytes("UTF-8")), CONTENT_TYPE, result);
+      assertEquals(readFully(body), BODY);
+      body.close();
+      assertEquals(counts[HawkTracer.Phase.PAYLOAD_HASH.ordinal()], 1);
+      assertEquals(counts[HawkTracer.Phase.MAC_INIT.ordinal()], 1);
+      assertEquals(hashed[0], (long)BODY.getBytes("UTF-8").length);
+    }
+    finally
+    {
+      HawkTracing.setTracer(null);
+    }
+  }
+
+  @Test
+  public void testMessages() throws Exception
+  {
+    final HawkServer testServer = new HawkServer.Builder().credentialsSource(this.testsource1).build();
+    final HawkMessageSigner signer = new HawkMessageSigner(this.testcredentials1, "example.com", 8080);
+
+    final HawkMessageAuthorization authorization = signer.sign("some message");
+    assertEquals(authorization.getHash(), Hawk.calculateMessageHash(this.testcredentials1, "some message"));
+    assertEquals(authorization.getMac(), Hawk.calculateMessageMAC(this.testcredentials1, authorization.getTs(), authorization.getNonce(),
+                                                                  "example.com", 8080, authorization.getHash()));
+    assertEquals(testServer.verifyMessage("example.com", 8080, "another message", authorization).getStatus(), HawkAuthResult.Status.BAD_HASH);
+    assertEquals(testServer.verifyMessage("example.com", 8081, "some message", authorization).getStatus(), HawkAuthResult.Status.BAD_MAC);
+    assertTrue(testServer.verifyMessage("example.com", 8080, "some message", authorization).isAuthenticated());
+    assertEquals(testServer.verifyMessage("example.com", 8080, "some message", authorization).getStatus(), HawkAuthResult.Status.DUPLICATE_NONCE);
+  }
+
+  @Test
+  public void testMessageBatches() throws Exception
+  {
+    final HawkServer testServer = new HawkServer.Builder().credentialsSource(this.testsource1).build();
+    final HawkMessageSigner signer = new HawkMessageSigner(this.testcredentials1, "example.com", 8080);
+    final String[] messages = new String[2000];
+    for (int i = 0; i < messages.length; i++)
+    {
+      messages[i] = "message " + i;
+    }
+
+    final ExecutorService executor = Executors.newFixedThreadPool(4);
+    try
+    {
+      final HawkMessageAuthorization[] authorizations = signer.signAll(messages, executor);
+      // Nonces are unique within a batch, which shares a timestamp
+      final Set<String> nonces = new HashSet<String>();
+      for (final HawkMessageAuthorization authorization : authorizations)
+      {
+        assertTrue(nonces.add(authorization.getNonce()), "Duplicate nonce " + authorization.getNonce());
+      }
+      messages[1234] = "tampered";
+      final HawkAuthResult[] results = testServer.verifyMessages("example.com", 8080, messages, authorizations, executor);
+      for (int i = 0; i < results.length; i++)
+      {
+        assertEquals(results[i].getStatus(), i == 1234 ? HawkAuthResult.Status.BAD_HASH : HawkAuthResult.Status.OK);
+      }
+    }
+    finally
+    {
+      executor.shutdown();
+    }
+  }
+
+  @Test
+  public void testRequestBatches() throws Exception
+  {
+    final HawkCredentials testcredentials2 = new HawkCredentials.Builder()
+                                                                .keyId("second-key")
+                                                                .key("xnpa98w4rxnwerxhqb98rpaxn39848xrunpaw3489ru")
+                                                                .algorithm(HawkCredentials.Algorithm.SHA1)
+                                                                .build();
+    final HawkClient testclient2 = new HawkClient.Builder().credentials(testcredentials2).build();
+    final int[] lookups = new int[1];
+    final HawkServer testServer = new HawkServer.Builder().credentialsSource(new HawkCredentialsSource()
+    {
+      @Override
+      public synchronized HawkCredentials getCredentials(final String keyId)
+      {
+        lookups[0]++;
+        return testcredentials1.getKeyId().equals(keyId) ? testcredentials1 : testcredentials2;
+      }
+    }).build();
+
+    final int count = 2000;
+    final URI[] uris = new URI[count];
+    final String[] methods = new String[count];
+    final String[] headers = new String[count];
+    for (int i = 0; i < count; i++)
+    {
+      uris[i] = new URI("http://example.com:8080/resource/" + i);
+      methods[i] = i % 2 == 0 ? "GET" : "POST";
+      headers[i] = (i % 3 == 0 ? testclient2 : this.testclient1).generateAuthorizationHeader(uris[i], methods[i], null, null, null, null);
+    }
+    headers[10] = null;
+    headers[11] = "Hawk garbage";
+    methods[12] = "PUT";
+    headers[13] = headers[14];
+
+    final ExecutorService executor = Executors.newFixedThreadPool(4);
+    try
+    {
+      final HawkAuthResult[] results = testServer.verify(uris, methods, headers, executor);
+      assertEquals(results[10].getStatus(), HawkAuthResult.Status.MISSING_HEADER);
+      assertEquals(results[11].getStatus(), HawkAuthResult.Status.MALFORMED_HEADER);
+      assertEquals(results[12].getStatus(), HawkAuthResult.Status.BAD_MAC);
+      assertEquals(results[13].getStatus(), HawkAuthResult.Status.BAD_MAC);
+      for (int i = 0; i < count; i++)
+      {
+        if (i < 10 || i > 13)
+        {
+          assertTrue(results[i].isAuthenticated());
+          assertEquals(results[i].getCredentials(), i % 3 == 0 ? testcredentials2 : this.testcredentials1);
+        }
+      }
+      // Credentials are resolved once per key, not once per request
+      assertEquals(lookups[0], 2);
+
+      // Replays of the whole batch are all rejected
+      for (final HawkAuthResult result : testServer.verify(uris, methods, headers, null))
+      {
+        assertFalse(result.isAuthenticated());
+      }
+    }
+    finally
+    {
+      executor.shutdown();
+    }
+  }
+
+  @Test
+  public void testRequestBatchKeyOrder() throws Exception
+  {
+    final HawkServer testServer = new HawkServer.Builder().credentialsSource(this.testsource1).build();
+
+    // More requests for one key than fit in a chunk, with a replay of an
+    // early request late in the batch
+    final int count = 600;
+    final URI[] uris = new URI[count];
+    final String[] methods = new String[count];
+    final String[] headers = new String[count];
+    for (int i = 0; i < count; i++)
+    {
+      uris[i] = new URI("http://example.com:8080/resource/" + i);
+      methods[i] = "GET";
+      headers[i] = this.testclient1.generateAuthorizationHeader(uris[i], methods[i], null, null, null, null);
+    }
+    uris[500] = uris[5];
+    headers[500] = headers[5];
+
+    final ExecutorService executor = Executors.newFixedThreadPool(4);
+    try
+    {
+      final HawkAuthResult[] results = testServer.verify(uris, methods, headers, executor);
+      assertTrue(results[5].isAuthenticated());
+      assertEquals(results[500].getStatus(), HawkAuthResult.Status.DUPLICATE_NONCE);
+      for (int i = 0; i < count; i++)
+      {
+        assertTrue(i == 500 || results[i].isAuthenticated());
+      }
+    }
+    finally
+    {
+      executor.shutdown();
+    }
+  }
+
+  @Test
+  public void testStreamedResponsePayload() throws Exception
+  {
+    final StringBuilder sb = new StringBuilder();
+    for (int i = 0; i < 20000; i++)
+    {
+      sb.append("line ").append(i).append('\n');
+    }
+    final byte[] response = sb.toString().getBytes("UTF-8");
+
+    final ByteArrayOutputStream sent = new ByteArrayOutputStream();
+    final PayloadHashingOutputStream out = new PayloadHashingOutputStream(sent, this.testcredentials1, CONTENT_TYPE);
+    out.write(response[0]);
+    for (int offset = 1; offset < response.length; offset += 1000)
+    {
+      out.write(response, offset, Math.min(1000, response.length - offset));
+    }
+    assertNull(out.getHash());
+    final String hash = out.finish();
+    out.close();
+    assertEquals(hash, Hawk.calculateBodyMac(this.testcredentials1, CONTENT_TYPE, sb.toString()));
+    assertEquals(out.getHash(), hash);
+    assertEquals(sent.toByteArray(), response);
+    try
+    {
+      out.write(0);
+      fail("Wrote to a stream after it was hashed");
+    }
+    catch (IOException ioe)
+    {
+      // Good
+    }
+
+    final PayloadVerifyingInputStream body = this.testclient1.verifyResponsePayload(new ByteArrayInputStream(sent.toByteArray()), CONTENT_TYPE, hash);
+    assertEquals(readFully(body), sb.toString());
+    assertTrue(body.isVerified());
+
+    response[100] = 'X';
+    try
+    {
+      readFully(this.testclient1.verifyResponsePayload(new ByteArrayInputStream(response), CONTENT_TYPE, hash));
+      fail("Read a response that does not match its hash");
+    }
+    catch (IOException ioe)
+    {
+      // Good
+    }
+  }
+
+  @Test
+  public void testValidPayload() throws Exception
+  {
+    final HawkClientConfiguration configuration = new HawkClientConfiguration.Builder()
+                                                                             .payloadValidation(PayloadValidation.MANDATORY)
+                                                                             .build();
+    final HawkServer testServer = new HawkServer.Builder().credentialsSource(this.testsource1).configuration(configuration).build();
+    final String hash = Hawk.calculateBodyMac(this.testcredentials1, CONTENT_TYPE, BODY);
+    final String authorizationHeader = this.testclient1.generateAuthorizationHeader(this.validuri1, "post", hash, null, null, null);
+    final HawkAuthorizationHeader header = HawkAuthorizationHeader.parse(authorizationHeader);
+    final HawkCredentials credentials = testServer.authenticate(this.validuri1, "POST", header);
+
+    final InputStream body = testServer.verifyPayload(new ByteArrayInputStream(BODY.getBytes("UTF-8")), CONTENT_TYPE, credentials, header);
+    assertEquals(readFully(body), BODY);
+    assertTrue(((PayloadVerifyingInputStream)body).isVerified());
+  }
+
+  @Test
+  public void testPayloadVerifiedOnClose() throws Exception
+  {
+    final String hash = Hawk.calculateBodyMac(this.testcredentials1, CONTENT_TYPE, BODY);
+    final byte[] genuine = BODY.getBytes("UTF-8");
+    final byte[] tampered = genuine.clone();
+    tampered[tampered.length - 1] ^= 1;
+
+    // The reader stops before the end, as one that knows the length would
+    final PayloadVerifyingInputStream body = new PayloadVerifyingInputStream(new ByteArrayInputStream(genuine), this.testcredentials1, CONTENT_TYPE, hash);
+    assertEquals(body.read(new byte[4]), 4);
+    assertFalse(body.isVerified());
+    body.close();
+    assertTrue(body.isVerified());
+
+    final PayloadVerifyingInputStream tamperedBody = new PayloadVerifyingInputStream(new ByteArrayInputStream(tampered), this.testcredentials1, CONTENT_TYPE, hash);
+    assertEquals(tamperedBody.read(new byte[4]), 4);
+    try
+    {
+      tamperedBody.close();
+      fail("Closed a body that does not match its hash");
+    }
+    catch (IOException ioe)
+    {
+      // Good
+    }
+    assertFalse(tamperedBody.isVerified());
+
+    // Closing reads no more than its limit, leaving a larger body unverified
+    final byte[] large = new byte[1024 * 1024];
+    final String largeHash = Hawk.finishBodyMac(updated(Hawk.startBodyMac(this.testcredentials1, CONTENT_TYPE), large));
+    final CountingInputStream largeIn = new CountingInputStream(new ByteArrayInputStream(large));
+    final PayloadVerifyingInputStream largeBody = new PayloadVerifyingInputStream(largeIn, this.testcredentials1, CONTENT_TYPE, largeHash);
+    try
+    {
+      largeBody.close();
+      fail("Closed a body without reading it all");
+    }
+    catch (IOException ioe)
+    {
+      // Good
+    }
+    assertFalse(largeBody.isVerified());
+    assertTrue(largeIn.count <= PayloadVerifyingInputStream.DEFAULT_MAX_CLOSE_DRAIN + 1, "read " + largeIn.count);
+
+    // A body within the limit is verified by the close alone
+    final PayloadVerifyingInputStream limitedBody =
+        new PayloadVerifyingInputStream(new ByteArrayInputStream(large), this.testcredentials1, CONTENT_TYPE, largeHash, large.length);
+    limitedBody.close();
+    assertTrue(limitedBody.isVerified());
+  }
+
+  // Helper
+  private static Mac updated(final Mac mac, final byte[] data)
+  {
+    mac.update(data);
+    return mac;
+  }
+
+  /**
+   * Counts the bytes read through it.
+   */
+  private static final class CountingInputStream extends FilterInputStream
+  {
+    private long count = 0;
+
+    CountingInputStream(final InputStream in)
+    {
+      super(in);
+    }
+
+    @Override
+    public int read(final byte[] b, final int off, final int len) throws IOException
+    {
+      final int read = super.read(b, off, len);
+      if (read > 0)
+      {
+        this.count += read;
+      }
+      return read;
+    }
+  }
+
+  @Test
+  public void testDeferredPayloadValidation() throws Exception
+  {
+    final String hash = Hawk.calculateBodyMac(this.testcredentials1, CONTENT_TYPE, BODY);
+    final InputStream raw = new ByteArrayInputStream(BODY.getBytes("UTF-8"));
+
+    // Policies that do not validate this request hand back the raw body
+    final HawkServer neverServer = new HawkServer.Builder()
+                                                 .credentialsSource(this.testsource1)
+                                                 .configuration(new HawkClientConfiguration.Builder().payloadValidation(PayloadValidation.NEVER).build())
+                                                 .build();
+    final HawkAuthResult neverResult =
+        neverServer.verify(this.validuri1, "POST", this.testclient1.generateAuthorizationHeader(this.validuri1, "post", hash, null, null, null));
+    assertSame(neverServer.verifyPayload(raw, CONTENT_TYPE, neverResult), raw);
+
+    final HawkServer testServer = new HawkServer.Builder()
+                                                .credentialsSource(this.testsource1)
+                                                .configuration(new HawkClientConfiguration.Builder().payloadValidation(PayloadValidation.IFPRESENT).build())
+                                                .build();
+    final HawkAuthResult noHashResult =
+        testServer.verify(this.validuri1, "POST", this.testclient1.generateAuthorizationHeader(this.validuri1, "post", null, null, null, null));
+    assertSame(testServer.verifyPayload(raw, CONTENT_TYPE, noHashResult), raw);
+
+    // The body is only hashed as it is read
+    final int[] macInits = new int[1];
+    HawkTracing.setTracer(new HawkTracer()
+    {
+      @Override
+      public void phase(final Phase phase, final String keyId, final Hawk.AuthType authType,
+                        final long size, final long durationNanos, final boolean success)
+      {
+        if (phase == Phase.MAC_INIT)
+        {
+          macInits[0]++;
+        }
+      }
+    });
+    try
+    {
+      final HawkAuthResult result =
+          testServer.verify(this.validuri1, "POST", this.testclient1.generateAuthorizationHeader(this.validuri1, "post", hash, null, null, null));
+      assertTrue(result.isAuthenticated());
+      macInits[0] = 0;
+      final InputStream body = testServer.verifyPayload(raw, CONTENT_TYPE, result);
+      assertEquals(macInits[0], 0);
+      assertEquals(readFully(body), BODY);
+      assertEquals(macInits[0], 1);
+      assertTrue(((PayloadVerifyingInputStream)body).isVerified());
+    }
+    finally
+    {
+      HawkTracing.setTracer(null);
+    }
+
+    try
+    {
+      testServer.verifyPayload(raw, CONTENT_TYPE, testServer.verify(this.validuri1, "POST", (String)null));
+      fail("Verified the payload of an unauthenticated request");
+    }
+    catch (HawkError he)
+    {
+      // Good
+    }
+  }
+
+  @Test
+  public void testTamperedPayload() throws Exception
+  {
+    final HawkClientConfiguration configuration = new HawkClientConfiguration.Builder()
+                                                                             .payloadValidation(PayloadValidation.IFPRESENT)
+                                                                             .build();
+    final HawkServer testServer = new HawkServer.Builder().credentialsSource(this.testsource1).configuration(configuration).build();
+    final String hash = Hawk.calculateBodyMac(this.testcredentials1, CONTENT_TYPE, BODY);
+    final String authorizationHeader = this.testclient1.generateAuthorizationHeader(this.validuri1, "post", hash, null, null, null);
+    final HawkAuthorizationHeader header = HawkAuthorizationHeader.parse(authorizationHeader);
+    final HawkCredentials credentials = testServer.authenticate(this.validuri1, "POST", header);
+
+    final InputStream body = testServer.verifyPayload(new ByteArrayInputStream("Tampered body".getBytes("UTF-8")), CONTENT_TYPE, credentials, header);
+    try
+    {
+      readFully(body);
+      fail("Read tampered payload to completion");
+    }
+    catch (IOException ioe)
+    {
+      // Good
+    }
+  }
+
+  @Test
+  public void testMissingPayloadHash() throws Exception
+  {
+    final HawkClientConfiguration configuration = new HawkClientConfiguration.Builder()
+                                                                             .payloadValidation(PayloadValidation.MANDATORY)
+                                                                             .build();
+    final HawkServer testServer = new HawkServer.Builder().credentialsSource(this.testsource1).configuration(configuration).build();
+    final String authorizationHeader = this.testclient1.generateAuthorizationHeader(this.validuri1, "post", null, null, null, null);
+    final HawkAuthorizationHeader header = HawkAuthorizationHeader.parse(authorizationHeader);
+    final HawkCredentials credentials = testServer.authenticate(this.validuri1, "POST", header);
+    try
+    {
+      testServer.verifyPayload(new ByteArrayInputStream(BODY.getBytes("UTF-8")), CONTENT_TYPE, credentials, header);
+      fail("Accepted missing payload hash");
+    }
+    catch (Exception de)
+    {
+      // Good
+    }
+  }
+
+  @Test
+  public void testGrants() throws Exception
+  {
+    final long expires = System.currentTimeMillis() / 1000 + 3600;
+    final int[] lookups = new int[1];
+    final HawkGrantSource backing = new HawkGrantSource()
+    {
+      @Override
+      public HawkGrant getGrant(final String keyId, final String app, final String dlg)
+      {
+        lookups[0]++;
+        return "app1".equals(app) ? new HawkGrant(keyId, app, dlg, expires) : null;
+      }
+    };
+    final CachingGrantSource grants = new CachingGrantSource(backing, 2);
+    final HawkServer testServer = new HawkServer.Builder().credentialsSource(this.testsource1).grantSource(grants).build();
+
+    // Requests without an application do not need a grant
+    assertTrue(testServer.verify(this.validuri1, "GET", this.testclient1.generateAuthorizationHeader(this.validuri1, "GET", null, null, null, null)).isAuthenticated());
+    assertEquals(lookups[0], 0);
+
+    for (int i = 0; i < 3; i++)
+    {
+      assertTrue(testServer.verify(this.validuri1, "GET", this.testclient1.generateAuthorizationHeader(this.validuri1, "GET", null, null, "app1", "dlg1")).isAuthenticated());
+    }
+    assertEquals(lookups[0], 1);
+    assertEquals(grants.getHitCount(), 2L);
+    assertEquals(grants.getMissCount(), 1L);
+
+    // Unknown grants are never cached
+    for (int i = 0; i < 2; i++)
+    {
+      assertEquals(testServer.verify(this.validuri1, "GET", this.testclient1.generateAuthorizationHeader(this.validuri1, "GET", null, null, "app2", null)).getStatus(),
+                   HawkAuthResult.Status.INVALID_GRANT);
+    }
+    assertEquals(lookups[0], 3);
+    assertEquals(grants.size(), 1);
+
+    grants.invalidate(this.testcredentials1.getKeyId(), "app1", "dlg1");
+    assertEquals(grants.size(), 0);
+    assertTrue(testServer.verify(this.validuri1, "GET", this.testclient1.generateAuthorizationHeader(this.validuri1, "GET", null, null, "app1", "dlg1")).isAuthenticated());
+    assertEquals(lookups[0], 4);
+
+    // Bounded, evicting the least recently used grant
+    grants.getGrant("key1", "app1", null);
+    grants.getGrant("key2", "app1", null);
+    assertEquals(grants.size(), 2);
+    grants.getGrant("key1", "app1", null);
+    assertEquals(lookups[0], 6);
+
+    // Expired grants are refused
+    final HawkServer expiredServer = new HawkServer.Builder().credentialsSource(this.testsource1).grantSource(new HawkGrantSource()
+    {
+      @Override
+      public HawkGrant getGrant(final String keyId, final String app, final String dlg)
+      {
+        return new HawkGrant(keyId, app, dlg, expires - 7200);
+      }
+    }).build();
+    assertEquals(expiredServer.verify(this.validuri1, "GET", this.testclient1.generateAuthorizationHeader(this.validuri1, "GET", null, null, "app1", null)).getStatus(),
+                 HawkAuthResult.Status.INVALID_GRANT);
+  }
+
+  @Test
+  public void testGrantRevokedDuringLookup() throws Exception
+  {
+    final long expires = System.currentTimeMillis() / 1000 + 3600;
+    final CountDownLatch looking = new CountDownLatch(1);
+    final CountDownLatch revoked = new CountDownLatch(1);
+    final int[] lookups = new int[1];
+    final CachingGrantSource grants = new CachingGrantSource(new HawkGrantSource()
+    {
+      @Override
+      public synchronized HawkGrant getGrant(final String keyId, final String app, final String dlg)
+      {
+        lookups[0]++;
+        if (lookups[0] == 1)
+        {
+          // Resolves the grant, then stalls until it has been revoked
+          looking.countDown();
+          try
+          {
+            revoked.await();
+          }
+          catch (InterruptedException ie)
+          {
+            Thread.currentThread().interrupt();
+          }
+        }
+        return new HawkGrant(keyId, app, dlg, expires);
+      }
+    });
+
+    final Thread lookup = new Thread(new Runnable()
+    {
+      @Override
+      public void run()
+      {
+        grants.getGrant("key1", "app1", null);
+      }
+    });
+    lookup.start();
+    looking.await();
+    grants.invalidate("key1", "app1", null);
+    revoked.countDown();
+    lookup.join();
+
+    // The grant resolved before the revocation was not cached
+    assertEquals(grants.size(), 0);
+    grants.getGrant("key1", "app1", null);
+    assertEquals(lookups[0], 2);
+    assertEquals(grants.size(), 1);
+  }
+}
@@ -18,15 +18,30 @@ package test.li.vin.hawk;
 
 import static org.testng.Assert.*;
 
+import java.io.StringWriter;
 import java.net.URI;
+import java.net.URLDecoder;
+import java.security.MessageDigest;
+import java.nio.BufferOverflowException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 
 import org.testng.annotations.BeforeClass;
 import org.testng.annotations.Test;
 
+import android.util.Base64;
+
 import li.vin.hawk.Hawk;
 import li.vin.hawk.Hawk.AuthType;
+import li.vin.hawk.HawkBewitGenerator;
+import li.vin.hawk.HawkBuffers;
 import li.vin.hawk.HawkCredentials;
 import li.vin.hawk.HawkCredentials.Algorithm;
+import li.vin.hawk.HawkWarmup;
 
 public class HawkTest
 {
@@ -135,6 +150,160 @@ public class HawkTest
     }
   }
 
+  @Test
+  public void testBulkBewits() throws Exception
+  {
+    final List<URI> uris = new ArrayList<URI>();
+    for (int i = 0; i < 1000; i++)
+    {
+      uris.add(new URI("https://www.example.com/downloads/" + i + (i % 2 == 0 ? "?format=zip" : "")));
+    }
+
+    final ExecutorService executor = Executors.newFixedThreadPool(4);
+    final StringWriter out = new StringWriter();
+    try
+    {
+      final HawkBewitGenerator generator = new HawkBewitGenerator(this.testhc1, executor, 16, 4);
+      assertEquals(generator.generate(uris.iterator(), 240L, "extdata", out), 1000L);
+    }
+    finally
+    {
+      executor.shutdown();
+    }
+
+    final String[] lines = out.toString().split("\n");
+    assertEquals(lines.length, 1000);
+    for (int i = 0; i < lines.length; i++)
+    {
+      final String uri = uris.get(i).toString();
+      assertTrue(lines[i].startsWith(uri + (i % 2 == 0 ? "&bewit=" : "?bewit=")));
+      final String bewit = URLDecoder.decode(lines[i].substring(lines[i].indexOf("bewit=") + 6), "UTF-8");
+      final String[] parts = new String(Base64.decode(bewit, Base64.DEFAULT), "UTF-8").split("\\\\", -1);
+      assertEquals(parts[0], this.testhc1.getKeyId());
+      assertEquals(parts[2], Hawk.calculateMAC(this.testhc1, Hawk.AuthType.BEWIT, Long.valueOf(parts[1]), uris.get(i), null, null, null, "extdata", null, null));
+      assertEquals(parts[3], "extdata");
+    }
+  }
+
+  @Test
+  public void testByteMAC() throws Exception
+  {
+    final ByteBuffer out = ByteBuffer.allocate(HawkBuffers.MAX_BASE64_MAC_LENGTH);
+    final ByteBuffer ext = ByteBuffer.wrap("Extra data".getBytes("UTF-8"));
+    final int length = HawkBuffers.calculateMAC(this.testhc1, Hawk.AuthType.HEADER, 12345L, this.testuri1, "testnonce", "GET", null, ext,
+                                                ByteBuffer.wrap("12345".getBytes("UTF-8")), ByteBuffer.wrap("54321".getBytes("UTF-8")), out, true);
+    assertEquals(new String(out.array(), 0, length, "UTF-8"), "bH7bZlofGKZUW6oNLF8scxXfCwYiNmijELwGJPGI3Gs=");
+    assertEquals(ext.position(), 0);
+    assertEquals(ext.remaining(), 10);
+
+    // Escaped ext data and a payload hash
+    final String extData = "line one\nline\\two\\";
+    final String expected = Hawk.calculateMAC(this.testhc1, Hawk.AuthType.HEADER, 54321L, this.testuri2, "testnonce", "POST", "hash", extData, null, null);
+    out.clear();
+    HawkBuffers.calculateMAC(this.testhc1, Hawk.AuthType.HEADER, 54321L, this.testuri2, "testnonce", "POST",
+                             ByteBuffer.wrap("hash".getBytes("UTF-8")), ByteBuffer.wrap(extData.getBytes("UTF-8")), null, null, out, true);
+    assertEquals(new String(out.array(), 0, out.position(), "UTF-8"), expected);
+
+    // Non-ASCII nonces, including a supplementary character, an unpaired
+    // surrogate and one long enough to grow the head buffer
+    final StringBuilder longNonce = new StringBuilder();
+    for (int i = 0; i < 1000; i++)
+    {
+      longNonce.append("n\u00f6nce\u20ac");
+    }
+    for (final String nonce : new String[] {"n\u00f6nce\u20ac", "\ud83d\ude00", "\ud83d", "x\ude00y", longNonce.toString(), "testnonce"})
+    {
+      out.clear();
+      HawkBuffers.calculateMAC(this.testhc1, Hawk.AuthType.HEADER, 54321L, this.testuri2, nonce, "GET", null, null, null, null, out, true);
+      assertEquals(new String(out.array(), 0, out.position(), "UTF-8"),
+                   Hawk.calculateMAC(this.testhc1, Hawk.AuthType.HEADER, 54321L, this.testuri2, nonce, "GET", null, null, null, null), nonce);
+    }
+  }
+
+  @Test
+  public void testByteBodyMac() throws Exception
+  {
+    final HawkCredentials testCredentials = new HawkCredentials.Builder().keyId("test").key("mysecretkey").algorithm(Algorithm.SHA256).build();
+    final ByteBuffer body = ByteBuffer.allocateDirect(9);
+    body.put("Text body".getBytes("UTF-8")).flip();
+
+    final ByteBuffer base64 = ByteBuffer.allocate(HawkBuffers.MAX_BASE64_MAC_LENGTH);
+    HawkBuffers.calculateBodyMac(testCredentials, "text/plain; charset=utf-8", body, base64, true);
+    assertEquals(new String(base64.array(), 0, base64.position(), "UTF-8"), "w1rO8cxeoTwVmO1Weffal3VCYHBTcIxpjgQUZx01mRU=");
+
+    // Raw output into the middle of a buffer
+    final ByteBuffer raw = ByteBuffer.allocate(HawkBuffers.MAX_RAW_MAC_LENGTH + 1);
+    raw.put((byte)0);
+    assertEquals(HawkBuffers.calculateBodyMac(testCredentials, "text/plain", body, raw, false), 32);
+    final ByteBuffer encoded = ByteBuffer.allocate(HawkBuffers.MAX_BASE64_MAC_LENGTH);
+    HawkBuffers.encodeBase64(raw.array(), 1, 32, encoded);
+    assertEquals(new String(encoded.array(), 0, encoded.position(), "UTF-8"), "w1rO8cxeoTwVmO1Weffal3VCYHBTcIxpjgQUZx01mRU=");
+
+    try
+    {
+      HawkBuffers.calculateBodyMac(testCredentials, "text/plain", body, ByteBuffer.allocate(16), false);
+      fail("MAC written to a buffer that is too small");
+    }
+    catch (BufferOverflowException boe)
+    {
+      // Good
+    }
+  }
+
+  @Test
+  public void testMacEquals() throws Exception
+  {
+    // Every padding case
+    for (int length = 0; length <= HawkBuffers.MAX_RAW_MAC_LENGTH; length++)
+    {
+      final byte[] raw = new byte[length];
+      for (int i = 0; i < length; i++)
+      {
+        raw[i] = (byte)(i * 37 + length);
+      }
+      final String encoded = new String(Base64.encode(raw, Base64.NO_WRAP), "UTF-8");
+      assertTrue(HawkBuffers.macEquals(raw, encoded));
+      for (int i = 0; i < encoded.length(); i++)
+      {
+        final char[] tampered = encoded.toCharArray();
+        tampered[i] = tampered[i] == 'A' ? 'B' : 'A';
+        assertFalse(HawkBuffers.macEquals(raw, new String(tampered)));
+      }
+      assertFalse(HawkBuffers.macEquals(raw, encoded + "A"));
+    }
+    assertFalse(HawkBuffers.macEquals(new byte[32], null));
+    assertFalse(HawkBuffers.macEquals(new byte[32], ""));
+  }
+
+  /**
+   * Check a raw MAC against its encoding the same way as encoding it to a
+   * string and comparing the bytes of the strings.
+   */
+  @Test
+  public void testMacEqualsAgreesWithStrings() throws Exception
+  {
+    final byte[] raw = new byte[32];
+    for (int i = 0; i < raw.length; i++)
+    {
+      raw[i] = (byte)(i * 101);
+    }
+    final String expected = new String(Base64.encode(raw, Base64.NO_WRAP), "UTF-8");
+    final String[] received = {expected, "B" + expected.substring(1), expected.substring(0, expected.length() - 2) + "A=",
+                               expected.substring(1), expected + "=", ""};
+    for (final String candidate : received)
+    {
+      assertEquals(HawkBuffers.macEquals(raw, candidate),
+                   MessageDigest.isEqual(expected.getBytes("UTF-8"), candidate.getBytes("UTF-8")), candidate);
+    }
+  }
+
+  @Test
+  public void testWarmUp() throws Exception
+  {
+    assertTrue(HawkWarmup.warmUp(Collections.singletonList(this.testhc1), 100) >= 0L);
+    assertTrue(HawkWarmup.warmUp(Collections.<HawkCredentials>emptyList(), 0) >= 0L);
+  }
+
   @Test
   public void testValidAuthType() throws Exception
   {
@@ -0,0 +1,251 @@
+/*
+ *    Copyright 2013 Weald Technology Trading Limited
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ */
+
+package test.li.vin.hawk;
+
+import static org.testng.Assert.*;
+
+import java.net.URI;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.testng.annotations.Test;
+
+import li.vin.hawk.HawkAuthResult;
+import li.vin.hawk.HawkClient;
+import li.vin.hawk.HawkCredentials;
+import li.vin.hawk.HawkCredentialsSource;
+import li.vin.hawk.HawkServer;
+import li.vin.hawk.KeyRateLimiter;
+
+public class KeyRateLimiterTest
+{
+  /**
+   * A clock that only moves when told to.
+   */
+  private static final class FakeClock implements KeyRateLimiter.Clock
+  {
+    private long millis;
+
+    FakeClock(final long millis)
+    {
+      this.millis = millis;
+    }
+
+    @Override
+    public synchronized long millis()
+    {
+      return this.millis;
+    }
+
+    synchronized void set(final long millis)
+    {
+      this.millis = millis;
+    }
+  }
+
+  @Test
+  public void testBurstAndRefill() throws Exception
+  {
+    final KeyRateLimiter limiter = new KeyRateLimiter(100.0, 5);
+    for (int i = 0; i < 5; i++)
+    {
+      assertTrue(limiter.tryAcquire("device-1"));
+    }
+    assertFalse(limiter.tryAcquire("device-1"));
+    assertEquals(limiter.getThrottledCount(), 1L);
+
+    // Other key IDs have their own buckets
+    assertTrue(limiter.tryAcquire("device-2"));
+
+    // 100 per second is one every 10ms
+    Thread.sleep(50);
+    int allowed = 0;
+    while (limiter.tryAcquire("device-1"))
+    {
+      allowed++;
+    }
+    assertTrue(allowed >= 4 && allowed <= 5, "allowed " + allowed);
+  }
+
+  @Test
+  public void testSustainedRate() throws Exception
+  {
+    // Polled every millisecond, far more often than either refills a token,
+    // so any refill lost between polls would show as a lower rate
+    final FakeClock clock = new FakeClock(0L);
+    final KeyRateLimiter slow = new KeyRateLimiter(1.0, 1, clock);
+    final KeyRateLimiter fast = new KeyRateLimiter(10.0, 1, clock);
+    int slowAllowed = 0;
+    int fastAllowed = 0;
+    for (long millis = 0; millis < 3000; millis++)
+    {
+      clock.set(millis);
+      if (slow.tryAcquire("device-1"))
+      {
+        slowAllowed++;
+      }
+      if (fast.tryAcquire("device-1"))
+      {
+        fastAllowed++;
+      }
+    }
+    // The burst, then one per second or one per 100ms
+    assertEquals(slowAllowed, 3);
+    assertEquals(fastAllowed, 30);
+
+    // Rates that are not a whole number of fractions per millisecond
+    clock.set(3000L);
+    final KeyRateLimiter odd = new KeyRateLimiter(3.0, 1, clock);
+    int oddAllowed = 0;
+    for (long millis = 3000; millis < 13000; millis++)
+    {
+      clock.set(millis);
+      if (odd.tryAcquire("device-1"))
+      {
+        oddAllowed++;
+      }
+    }
+    assertEquals(oddAllowed, 30);
+  }
+
+  @Test
+  public void testConcurrentAcquire() throws Exception
+  {
+    // Slow enough that nothing refills during the test
+    final KeyRateLimiter limiter = new KeyRateLimiter(0.001, 1000);
+    final AtomicInteger allowed = new AtomicInteger();
+    final Thread[] threads = new Thread[8];
+    for (int t = 0; t < threads.length; t++)
+    {
+      threads[t] = new Thread(new Runnable()
+      {
+        @Override
+        public void run()
+        {
+          for (int i = 0; i < 500; i++)
+          {
+            if (limiter.tryAcquire("device-1"))
+            {
+              allowed.incrementAndGet();
+            }
+          }
+        }
+      });
+      threads[t].start();
+    }
+    for (final Thread thread : threads)
+    {
+      thread.join();
+    }
+    assertEquals(allowed.get(), 1000);
+    assertEquals(limiter.getThrottledCount(), 3000L);
+  }
+
+  @Test
+  public void testEviction() throws Exception
+  {
+    // Refills completely in 500ms
+    final KeyRateLimiter limiter = new KeyRateLimiter(10.0, 5);
+    for (int i = 0; i < 1000; i++)
+    {
+      limiter.tryAcquire("device-" + i);
+    }
+    assertEquals(limiter.size(), 1000);
+    Thread.sleep(600);
+    limiter.evictIdle();
+    assertEquals(limiter.size(), 0);
+    assertTrue(limiter.tryAcquire("device-1"));
+  }
+
+  @Test
+  public void testIncrementalSweep() throws Exception
+  {
+    // Refills completely in 500ms
+    final KeyRateLimiter limiter = new KeyRateLimiter(10.0, 5);
+    for (int i = 0; i < 10000; i++)
+    {
+      limiter.tryAcquire("device-" + i);
+    }
+    Thread.sleep(600);
+
+    // A request looks at a bounded number of buckets, however many are idle
+    assertTrue(limiter.tryAcquire("other-0"));
+    assertTrue(limiter.size() > 10000 - 100, "size " + limiter.size());
+
+    // Later requests carry the sweep on until every idle bucket is gone
+    for (int i = 1; i < 2000; i++)
+    {
+      limiter.tryAcquire("other-" + i);
+    }
+    assertEquals(limiter.size(), 2000);
+  }
+
+  @Test
+  public void testClockBeforeOrigin() throws Exception
+  {
+    // Refills completely in 500ms
+    final FakeClock clock = new FakeClock(1000000L);
+    final KeyRateLimiter limiter = new KeyRateLimiter(10.0, 5, clock);
+    for (int i = 0; i < 5; i++)
+    {
+      assertTrue(limiter.tryAcquire("device-1"));
+    }
+
+    // A clock behind the origin is held at the origin rather than wrapping
+    clock.set(0L);
+    assertFalse(limiter.tryAcquire("device-1"));
+    clock.set(1000000L + 500L);
+    limiter.evictIdle();
+    assertEquals(limiter.size(), 0);
+    assertTrue(limiter.tryAcquire("device-1"));
+  }
+
+  @Test
+  public void testServer() throws Exception
+  {
+    final HawkCredentials credentials = new HawkCredentials.Builder()
+                                                           .keyId("dh37fgj492je")
+                                                           .key("werxhqb98rpaxn39848xrunpaw3489ruxnpa98w4rxn")
+                                                           .algorithm(HawkCredentials.Algorithm.SHA256)
+                                                           .build();
+    final HawkClient client = new HawkClient.Builder().credentials(credentials).build();
+    final AtomicInteger lookups = new AtomicInteger();
+    final KeyRateLimiter limiter = new KeyRateLimiter(0.001, 3);
+    final HawkServer server = new HawkServer.Builder().credentialsSource(new HawkCredentialsSource()
+    {
+      @Override
+      public HawkCredentials getCredentials(final String keyId)
+      {
+        lookups.incrementAndGet();
+        return credentials;
+      }
+    }).rateLimiter(limiter).build();
+    final URI uri = new URI("http://example.com:8080/resource");
+
+    for (int i = 0; i < 3; i++)
+    {
+      assertTrue(server.verify(uri, "GET", client.generateAuthorizationHeader(uri, "GET", null, null, null, null)).isAuthenticated());
+    }
+    for (int i = 0; i < 10; i++)
+    {
+      assertEquals(server.verify(uri, "GET", client.generateAuthorizationHeader(uri, "GET", null, null, null, null)).getStatus(),
+                   HawkAuthResult.Status.THROTTLED);
+    }
+    // Throttled requests never got as far as the credentials
+    assertEquals(lookups.get(), 3);
+    assertEquals(limiter.getThrottledCount(), 10L);
+  }
+}
@@ -0,0 +1,368 @@
+/*
+ *    Copyright 2013 Weald Technology Trading Limited
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ */
+
+package test.li.vin.hawk;
+
+import static org.testng.Assert.*;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.InetSocketAddress;
+import java.net.URI;
+import java.util.Random;
+import java.util.concurrent.CyclicBarrier;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.testng.annotations.AfterClass;
+import org.testng.annotations.BeforeClass;
+import org.testng.annotations.Test;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+import li.vin.hawk.DerivedCredentialsSource;
+import li.vin.hawk.Hawk;
+import li.vin.hawk.Hawk.PayloadValidation;
+import li.vin.hawk.HawkAuthResult;
+import li.vin.hawk.HawkClient;
+import li.vin.hawk.HawkClientConfiguration;
+import li.vin.hawk.HawkCredentials;
+import li.vin.hawk.HawkError;
+import li.vin.hawk.HawkPayload;
+import li.vin.hawk.HawkServer;
+
+/**
+ * Drives an embedded HTTP server that authenticates with {@link HawkServer}
+ * from concurrent {@link HawkClient}s, with a realistic mix of requests:
+ * many key IDs, bodies of mixed sizes, clocks skewed within and beyond the
+ * allowed skew, and replays. Fails if any request gets an unexpected
+ * response.
+ * <p>
+ * The test is in the benchmark group, and only runs when the hawk.benchmarks
+ * system property is true.
+ * <p>
+ * The load is configured with system properties:
+ * <ul>
+ * <li>hawk.load.concurrency: the number of client threads, and of server threads.  Defaults to 8</li>
+ * <li>hawk.load.keys: the number of distinct key IDs.  Defaults to 1000</li>
+ * <li>hawk.load.requests: the number of measured requests.  Defaults to 4000</li>
+ * </ul>
+ * The defaults keep the test quick; raise them to size a node.
+ */
+public class LoadTest
+{
+  private static final boolean BENCHMARKS = Boolean.getBoolean("hawk.benchmarks");
+  private static final int CONCURRENCY = Integer.getInteger("hawk.load.concurrency", 8);
+  private static final int KEYS = Integer.getInteger("hawk.load.keys", 1000);
+  private static final int REQUESTS = Integer.getInteger("hawk.load.requests", 4000);
+
+  private static final int[] BODY_SIZES = {0, 0, 1024, 16 * 1024, 256 * 1024};
+  private static final String CONTENT_TYPE = "application/octet-stream";
+
+  // Nonces for the skewed requests, unique across runs
+  private final AtomicLong skewedNonces = new AtomicLong();
+  private HttpServer httpServer;
+  private ExecutorService serverThreads;
+  private DerivedCredentialsSource credentialsSource;
+  private HawkClientConfiguration configuration;
+  private HawkClient[] clients;
+  private byte[][] bodies;
+  private URI baseUri;
+
+  /**
+   * Authenticates each request and verifies its payload, answering 200 or
+   * 401.
+   */
+  private static final class HawkHandler implements HttpHandler
+  {
+    private final HawkServer server;
+    private final int port;
+
+    HawkHandler(final HawkServer server, final int port)
+    {
+      this.server = server;
+      this.port = port;
+    }
+
+    @Override
+    public void handle(final HttpExchange exchange) throws IOException
+    {
+      try
+      {
+        final URI uri = URI.create("http://localhost:" + this.port + exchange.getRequestURI());
+        final HawkAuthResult result = this.server.verify(uri, exchange.getRequestMethod(),
+                                                         exchange.getRequestHeaders().getFirst("Authorization"));
+        int status = 401;
+        if (result.isAuthenticated())
+        {
+          try
+          {
+            drain(this.server.verifyPayload(exchange.getRequestBody(),
+                                            exchange.getRequestHeaders().getFirst("Content-Type"), result));
+            status = 200;
+          }
+          catch (HawkError he)
+          {
+            // Rejected by the payload validation policy
+          }
+          catch (IOException ioe)
+          {
+            // Payload does not match its hash
+          }
+        }
+        drain(exchange.getRequestBody());
+        exchange.sendResponseHeaders(status, -1);
+      }
+      finally
+      {
+        exchange.close();
+      }
+    }
+  }
+
+  /**
+   * The outcome of a run.
+   */
+  private static final class Run
+  {
+    private final AtomicInteger unexpected = new AtomicInteger();
+    private final AtomicInteger rejected = new AtomicInteger();
+    private final AtomicReference<Throwable> failure = new AtomicReference<Throwable>();
+  }
+
+  // Helper
+  private static void drain(final InputStream in) throws IOException
+  {
+    final byte[] buffer = new byte[8192];
+    while (in.read(buffer) != -1)
+    {
+      // Discard
+    }
+  }
+
+  /**
+   * Generate an authorization header as a client whose clock is off by the
+   * given number of seconds would.
+   */
+  private static String skewedHeader(final HawkCredentials credentials, final URI uri, final String method,
+                                     final String hash, final String nonce, final long skew)
+  {
+    final long ts = System.currentTimeMillis() / 1000L + skew;
+    final String mac = Hawk.calculateMAC(credentials, Hawk.AuthType.HEADER, ts, uri, nonce, method, hash, null, null, null);
+    return "Hawk id=\"" + credentials.getKeyId() + "\", ts=\"" + ts + "\", nonce=\"" + nonce +
+        (hash == null ? "" : "\", hash=\"" + hash) + "\", mac=\"" + mac + '"';
+  }
+
+  /**
+   * Send a request, returning its response code.
+   */
+  private static int send(final URI uri, final String method, final String authorizationHeader, final byte[] body) throws IOException
+  {
+    final HttpURLConnection connection = (HttpURLConnection)uri.toURL().openConnection();
+    connection.setRequestMethod(method);
+    connection.setRequestProperty("Authorization", authorizationHeader);
+    if (body != null)
+    {
+      connection.setRequestProperty("Content-Type", CONTENT_TYPE);
+      connection.setDoOutput(true);
+      connection.setFixedLengthStreamingMode(body.length);
+      final OutputStream out = connection.getOutputStream();
+      out.write(body);
+      out.close();
+    }
+    final int status = connection.getResponseCode();
+    // Read the response to the end, so that the connection is kept alive
+    final InputStream in = status < 400 ? connection.getInputStream() : connection.getErrorStream();
+    if (in != null)
+    {
+      drain(in);
+      in.close();
+    }
+    return status;
+  }
+
+  /**
+   * Send requests from all of the client threads.
+   * Four in five requests are fresh and should be accepted; the rest are split
+   * between replays of an earlier request, clocks skewed within the allowed
+   * skew, and clocks skewed beyond it.
+   */
+  private Run run(final int requests) throws Exception
+  {
+    final Run run = new Run();
+    final AtomicInteger next = new AtomicInteger();
+    final CyclicBarrier start = new CyclicBarrier(CONCURRENCY);
+    final Thread[] threads = new Thread[CONCURRENCY];
+    for (int t = 0; t < CONCURRENCY; t++)
+    {
+      final Random random = new Random(t);
+      threads[t] = new Thread(new Runnable()
+      {
+        @Override
+        public void run()
+        {
+          try
+          {
+            start.await();
+            String lastHeader = null;
+            URI lastUri = null;
+            String lastMethod = null;
+            byte[] lastBody = null;
+            for (int i = next.getAndIncrement(); i < requests; i = next.getAndIncrement())
+            {
+              final int key = random.nextInt(KEYS);
+              final URI uri = baseUri.resolve("/resource/" + key + "?request=" + i);
+              final byte[] body = bodies[random.nextInt(bodies.length)];
+              final String method = body == null ? "GET" : "POST";
+              final HawkPayload payload = body == null ? null : HawkPayload.fromBytes(CONTENT_TYPE, body);
+              final int kind = random.nextInt(100);
+
+              final String header;
+              final boolean accept;
+              if (kind < 80 || lastHeader == null)
+              {
+                header = clients[key].generatePayloadAuthorizationHeader(uri, method, payload, null, null, null);
+                accept = true;
+              }
+              else if (kind < 90)
+              {
+                final HawkCredentials credentials = credentialsSource.deriveCredentials("device-" + key);
+                final String hash = payload == null ? null : payload.calculateHash(credentials);
+                final long skew = (kind < 85 ? 30L : 120L) * (random.nextBoolean() ? 1L : -1L);
+                header = skewedHeader(credentials, uri, method, hash, "skew" + skewedNonces.incrementAndGet(), skew);
+                accept = kind < 85;
+              }
+              else
+              {
+                if (send(lastUri, lastMethod, lastHeader, lastBody) == 200)
+                {
+                  run.unexpected.incrementAndGet();
+                }
+                run.rejected.incrementAndGet();
+                continue;
+              }
+              final int status = send(uri, method, header, body);
+              if ((status == 200) != accept)
+              {
+                run.unexpected.incrementAndGet();
+              }
+              if (!accept)
+              {
+                run.rejected.incrementAndGet();
+              }
+              lastHeader = header;
+              lastUri = uri;
+              lastMethod = method;
+              lastBody = body;
+            }
+          }
+          catch (Throwable th)
+          {
+            run.failure.compareAndSet(null, th);
+          }
+        }
+      });
+      threads[t].start();
+    }
+    for (final Thread thread : threads)
+    {
+      thread.join();
+    }
+    return run;
+  }
+
+  @BeforeClass
+  public void setUp() throws Exception
+  {
+    if (!BENCHMARKS)
+    {
+      return;
+    }
+    this.configuration = new HawkClientConfiguration.Builder().payloadValidation(PayloadValidation.IFPRESENT).build();
+    this.credentialsSource = new DerivedCredentialsSource("master secret".getBytes("UTF-8"), HawkCredentials.Algorithm.SHA256);
+
+    this.httpServer = HttpServer.create(new InetSocketAddress("localhost", 0), 0);
+    final int port = this.httpServer.getAddress().getPort();
+    final HawkServer hawkServer = new HawkServer.Builder()
+                                                .credentialsSource(this.credentialsSource)
+                                                .configuration(this.configuration)
+                                                .build();
+    this.httpServer.createContext("/", new HawkHandler(hawkServer, port));
+    this.serverThreads = Executors.newFixedThreadPool(CONCURRENCY);
+    this.httpServer.setExecutor(this.serverThreads);
+    this.httpServer.start();
+    this.baseUri = new URI("http://localhost:" + port + "/");
+
+    this.clients = new HawkClient[KEYS];
+    for (int i = 0; i < KEYS; i++)
+    {
+      this.clients[i] = new HawkClient.Builder()
+                                      .credentials(this.credentialsSource.deriveCredentials("device-" + i))
+                                      .configuration(this.configuration)
+                                      .build();
+    }
+    this.bodies = new byte[BODY_SIZES.length][];
+    final Random random = new Random(0);
+    for (int i = 0; i < BODY_SIZES.length; i++)
+    {
+      if (BODY_SIZES[i] > 0)
+      {
+        this.bodies[i] = new byte[BODY_SIZES[i]];
+        random.nextBytes(this.bodies[i]);
+      }
+    }
+  }
+
+  @AfterClass
+  public void tearDown()
+  {
+    if (this.httpServer != null)
+    {
+      this.httpServer.stop(0);
+      this.serverThreads.shutdownNow();
+    }
+  }
+
+  @Test(groups = "benchmark")
+  public void testLoad() throws Exception
+  {
+    if (!BENCHMARKS)
+    {
+      return;
+    }
+    // Warm up the JIT and the connection pool first
+    run(REQUESTS / 4);
+
+    final Run run = run(REQUESTS);
+
+    if (run.failure.get() instanceof Exception) {
+      throw (Exception)run.failure.get();
+    }
+    if (run.failure.get() != null) {
+      throw new AssertionError(run.failure.get());
+    }
+
+    assertEquals(run.unexpected.get(), 0, "Requests with an unexpected response");
+    assertTrue(run.rejected.get() > 0, "No requests were rejected");
+  }
+}
@@ -0,0 +1,174 @@
+/*
+ *    Copyright 2013 Weald Technology Trading Limited
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ */
+
+package test.li.vin.hawk;
+
+import static org.testng.Assert.*;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.testng.annotations.Test;
+
+import li.vin.hawk.HawkCredentials;
+import li.vin.hawk.MappedCredentialsTable;
+
+public class MappedCredentialsTableTest
+{
+  private static HawkCredentials credentials(final String keyId, final HawkCredentials.Algorithm algorithm)
+  {
+    return new HawkCredentials.Builder()
+                              .keyId(keyId)
+                              .key("key-for-" + keyId)
+                              .algorithm(algorithm)
+                              .build();
+  }
+
+  @Test
+  public void testLookup() throws Exception
+  {
+    final List<HawkCredentials> credentials = new ArrayList<HawkCredentials>();
+    for (int i = 0; i < 10000; i++)
+    {
+      credentials.add(credentials("device-" + i, i % 3 == 0 ? HawkCredentials.Algorithm.SHA1 : HawkCredentials.Algorithm.SHA256));
+    }
+    credentials.add(credentials("d\u00e9vice-\u00fcnicode", HawkCredentials.Algorithm.SHA256));
+
+    final File file = File.createTempFile("credentials", ".table");
+    try
+    {
+      MappedCredentialsTable.write(file, credentials.iterator(), credentials.size());
+      final MappedCredentialsTable table = new MappedCredentialsTable(file);
+      assertEquals(table.size(), credentials.size());
+      for (final HawkCredentials expected : credentials)
+      {
+        assertEquals(table.getCredentials(expected.getKeyId()), expected);
+      }
+      assertNull(table.getCredentials("device-10000"));
+      assertNull(table.getCredentials("d\u00e9vice-10"));
+      assertNull(table.getCredentials(""));
+      assertNull(table.getCredentials(null));
+    }
+    finally
+    {
+      file.delete();
+    }
+  }
+
+  @Test
+  public void testEmptyTable() throws Exception
+  {
+    final File file = File.createTempFile("credentials", ".table");
+    try
+    {
+      MappedCredentialsTable.write(file, new ArrayList<HawkCredentials>().iterator(), 0);
+      final MappedCredentialsTable table = new MappedCredentialsTable(file);
+      assertEquals(table.size(), 0);
+      assertNull(table.getCredentials("device-1"));
+    }
+    finally
+    {
+      file.delete();
+    }
+  }
+
+  @Test
+  public void testDuplicateKeyId() throws Exception
+  {
+    final File file = File.createTempFile("credentials", ".table");
+    try
+    {
+      MappedCredentialsTable.write(file, Arrays.asList(credentials("device-1", HawkCredentials.Algorithm.SHA256),
+                                                       credentials("device-1", HawkCredentials.Algorithm.SHA1)).iterator(), 2);
+      fail("Table written with a duplicate key ID");
+    }
+    catch (IllegalArgumentException iae)
+    {
+      // Good
+    }
+    finally
+    {
+      file.delete();
+    }
+  }
+
+  @Test
+  public void testReplaceTable() throws Exception
+  {
+    final File directory = File.createTempFile("credentials", ".dir");
+    directory.delete();
+    directory.mkdir();
+    final File file = new File(directory, "credentials.table");
+    try
+    {
+      MappedCredentialsTable.write(file, Arrays.asList(credentials("device-1", HawkCredentials.Algorithm.SHA256)).iterator(), 1);
+      final MappedCredentialsTable old = new MappedCredentialsTable(file);
+
+      // A table mapped before the rewrite keeps resolving its own credentials
+      MappedCredentialsTable.write(file, Arrays.asList(credentials("device-2", HawkCredentials.Algorithm.SHA1)).iterator(), 1);
+      assertEquals(old.getCredentials("device-1"), credentials("device-1", HawkCredentials.Algorithm.SHA256));
+      assertEquals(new MappedCredentialsTable(file).getCredentials("device-2"), credentials("device-2", HawkCredentials.Algorithm.SHA1));
+
+      // A failed rewrite leaves the table as it was, and no temporary file
+      try
+      {
+        MappedCredentialsTable.write(file, Arrays.asList(credentials("device-3", HawkCredentials.Algorithm.SHA256),
+                                                         credentials("device-3", HawkCredentials.Algorithm.SHA1)).iterator(), 2);
+        fail("Table written with a duplicate key ID");
+      }
+      catch (IllegalArgumentException iae)
+      {
+        // Good
+      }
+      assertEquals(new MappedCredentialsTable(file).getCredentials("device-2"), credentials("device-2", HawkCredentials.Algorithm.SHA1));
+      assertEquals(directory.list().length, 1);
+    }
+    finally
+    {
+      for (final File child : directory.listFiles())
+      {
+        child.delete();
+      }
+      directory.delete();
+    }
+  }
+
+  @Test
+  public void testInvalidFile() throws Exception
+  {
+    final File file = File.createTempFile("credentials", ".table");
+    try
+    {
+      final FileOutputStream out = new FileOutputStream(file);
+      out.write("not a credentials table".getBytes("UTF-8"));
+      out.close();
+      new MappedCredentialsTable(file);
+      fail("Mapped a file that is not a table");
+    }
+    catch (IOException ioe)
+    {
+      // Good
+    }
+    finally
+    {
+      file.delete();
+    }
+  }
+}
@@ -0,0 +1,400 @@
+/*
+ *    Copyright 2013 Weald Technology Trading Limited
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ */
+
+package test.li.vin.hawk;
+
+import static org.testng.Assert.*;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import org.testng.annotations.Test;
+
+import li.vin.hawk.BatchingNonceStore;
+import li.vin.hawk.BloomFilterNonceStore;
+import li.vin.hawk.HawkError;
+import li.vin.hawk.HawkNonce;
+import li.vin.hawk.InMemoryNonceStore;
+import li.vin.hawk.MappedNonceStore;
+
+public class NonceStoreTest
+{
+  private static final int BENCHMARK_NONCES = 2000;
+
+  private long now()
+  {
+    return System.currentTimeMillis() / 1000L;
+  }
+
+  @Test
+  public void testInMemory() throws Exception
+  {
+    final InMemoryNonceStore store = new InMemoryNonceStore(60L);
+    final HawkNonce nonce = new HawkNonce("dh37fgj492je", "j4h3g2", now());
+    assertFalse(store.contains(nonce));
+    assertTrue(store.add(nonce));
+    assertTrue(store.contains(nonce));
+    assertFalse(store.add(new HawkNonce("dh37fgj492je", "j4h3g2", nonce.getTimestamp())));
+
+    // The same nonce from another key or at another time is distinct
+    assertTrue(store.add(new HawkNonce("kbmdu72h12xt", "j4h3g2", nonce.getTimestamp())));
+    assertTrue(store.add(new HawkNonce("dh37fgj492je", "j4h3g2", nonce.getTimestamp() + 1)));
+  }
+
+  @Test
+  public void testInMemoryPurge() throws Exception
+  {
+    final InMemoryNonceStore store = new InMemoryNonceStore(60L);
+    final long ts = now();
+    // The first add starts a purge pass over the empty store
+    final HawkNonce fresh = new HawkNonce("dh37fgj492je", "fresh", ts);
+    assertTrue(store.add(fresh));
+    for (int i = 0; i < 10000; i++)
+    {
+      assertTrue(store.add(new HawkNonce("dh37fgj492je", "stale" + i, ts - 3600L)));
+    }
+    assertEquals(store.size(), 10001);
+
+    store.purgeExpired();
+    assertEquals(store.size(), 1);
+    assertTrue(store.contains(fresh));
+  }
+
+  @Test
+  public void testBloomFilter() throws Exception
+  {
+    final BloomFilterNonceStore store = new BloomFilterNonceStore(new InMemoryNonceStore(60L), 60L, 1000L, 0.01);
+    final long ts = now();
+    for (int i = 0; i < 10000; i++)
+    {
+      assertTrue(store.add(new HawkNonce("dh37fgj492je", "nonce" + i, ts - (i % 60))));
+    }
+
+    // Replays are confirmed by the exact store
+    for (int i = 0; i < 100; i++)
+    {
+      final HawkNonce replay = new HawkNonce("dh37fgj492je", "nonce" + i, ts - (i % 60));
+      assertTrue(store.contains(replay));
+      assertFalse(store.add(replay));
+    }
+    assertEquals(store.getConfirmedCount(), 100L);
+
+    // Fresh nonces rarely reach the exact store
+    for (int i = 0; i < 10000; i++)
+    {
+      assertFalse(store.contains(new HawkNonce("dh37fgj492je", "fresh" + i, ts - (i % 60))));
+    }
+    final long falsePositives = store.getFallThroughCount() - store.getConfirmedCount();
+    assertTrue(falsePositives < 10000 * 0.05, "Too many false positives: " + falsePositives);
+  }
+
+  @Test
+  public void testMappedStore() throws Exception
+  {
+    final File file = File.createTempFile("nonces", ".store");
+    file.delete();
+    try
+    {
+      final long ts = now();
+      final MappedNonceStore store = new MappedNonceStore(file, 60L, 1000L);
+      for (int i = 0; i < 10000; i++)
+      {
+        assertTrue(store.add(new HawkNonce("dh37fgj492je", "nonce" + i, ts - (i % 60))));
+      }
+      final HawkNonce nonce = new HawkNonce("dh37fgj492je", "nonce0", ts);
+      assertTrue(store.contains(nonce));
+      assertFalse(store.add(nonce));
+      assertFalse(store.contains(new HawkNonce("kbmdu72h12xt", "nonce0", ts)));
+      store.force();
+
+      // A restarted server still sees the nonces
+      final MappedNonceStore restarted = new MappedNonceStore(file, 60L, 1000L);
+      for (int i = 0; i < 10000; i++)
+      {
+        final HawkNonce replay = new HawkNonce("dh37fgj492je", "nonce" + i, ts - (i % 60));
+        assertTrue(restarted.contains(replay));
+        assertFalse(restarted.add(replay));
+      }
+      assertTrue(restarted.add(new HawkNonce("dh37fgj492je", "fresh", ts)));
+
+      // Nonces of a slice are discarded when a newer slice reuses its tables
+      final long later = ts + 3600L;
+      assertTrue(restarted.add(new HawkNonce("dh37fgj492je", "nonce0", later)));
+      assertFalse(restarted.contains(new HawkNonce("dh37fgj492je", "nonce1", later)));
+
+      try
+      {
+        new MappedNonceStore(file, 300L, 1000L);
+        fail("Opened a nonce store with a different window");
+      }
+      catch (IOException ioe)
+      {
+        // Good
+      }
+    }
+    finally
+    {
+      file.delete();
+    }
+  }
+
+  @Test
+  public void testBatching() throws Exception
+  {
+    final FakeNonceServer server = new FakeNonceServer(5L);
+    final BatchingNonceStore store = new BatchingNonceStore(server, 64, 1);
+    try
+    {
+      final long ts = now();
+      final List<Future<Boolean>> results = new ArrayList<Future<Boolean>>();
+      for (int i = 0; i < 500; i++)
+      {
+        results.add(store.addAsync(new HawkNonce("dh37fgj492je", "nonce" + (i % 250), ts)));
+      }
+      int accepted = 0;
+      for (final Future<Boolean> result : results)
+      {
+        if (result.get())
+        {
+          accepted++;
+        }
+      }
+      assertEquals(accepted, 250);
+      assertEquals(store.getNonceCount(), 500L);
+      assertTrue(store.getBatchCount() < 500L, "Nonces were not batched");
+      assertTrue(server.getCalls() >= 500 / 64);
+    }
+    finally
+    {
+      store.close();
+    }
+  }
+
+  @Test
+  public void testBackendFailure() throws Exception
+  {
+    final FakeNonceServer server = new FakeNonceServer(0L);
+    final BatchingNonceStore store = new BatchingNonceStore(server);
+    try
+    {
+      server.setAvailable(false);
+      try
+      {
+        store.add(new HawkNonce("dh37fgj492je", "j4h3g2", now()));
+        fail("Recorded nonce with store down");
+      }
+      catch (Exception de)
+      {
+        // Good
+      }
+    }
+    finally
+    {
+      store.close();
+    }
+  }
+
+  /**
+   * A backend that does not answer until released, counting down a latch
+   * as each batch arrives.
+   */
+  private static BatchingNonceStore.Backend stalledBackend(final CountDownLatch release, final CountDownLatch arrived)
+  {
+    return new BatchingNonceStore.Backend()
+    {
+      @Override
+      public boolean[] addAll(final List<HawkNonce> nonces) throws IOException
+      {
+        arrived.countDown();
+        try
+        {
+          release.await();
+        }
+        catch (InterruptedException ie)
+        {
+          throw new IOException("Interrupted", ie);
+        }
+        return new boolean[nonces.size()];
+      }
+    };
+  }
+
+  @Test
+  public void testQueueFull() throws Exception
+  {
+    final CountDownLatch release = new CountDownLatch(1);
+    final CountDownLatch arrived = new CountDownLatch(1);
+    final BatchingNonceStore store = new BatchingNonceStore(stalledBackend(release, arrived), 1, 1, 60000L, 4);
+    try
+    {
+      final long ts = now();
+      // One nonce on the wire and four waiting; the rest fail at once
+      final List<Future<Boolean>> results = new ArrayList<Future<Boolean>>();
+      results.add(store.addAsync(new HawkNonce("dh37fgj492je", "nonce0", ts)));
+      arrived.await();
+      for (int i = 1; i < 10; i++)
+      {
+        results.add(store.addAsync(new HawkNonce("dh37fgj492je", "nonce" + i, ts)));
+      }
+      for (int i = 0; i < 10; i++)
+      {
+        assertEquals(results.get(i).isDone(), i >= 5, "nonce" + i);
+      }
+
+      final long start = System.currentTimeMillis();
+      try
+      {
+        store.add(new HawkNonce("dh37fgj492je", "j4h3g2", ts));
+        fail("Recorded nonce with queue full");
+      }
+      catch (HawkError he)
+      {
+        // Good
+      }
+      assertTrue(System.currentTimeMillis() - start < 5000L, "Waited for a full queue");
+    }
+    finally
+    {
+      release.countDown();
+      store.close();
+    }
+  }
+
+  @Test
+  public void testBackendTimeout() throws Exception
+  {
+    final CountDownLatch release = new CountDownLatch(1);
+    final BatchingNonceStore store = new BatchingNonceStore(stalledBackend(release, new CountDownLatch(1)), 64, 1, 100L);
+    try
+    {
+      final long start = System.currentTimeMillis();
+      try
+      {
+        store.add(new HawkNonce("dh37fgj492je", "j4h3g2", now()));
+        fail("Recorded nonce with store stalled");
+      }
+      catch (HawkError he)
+      {
+        // Good
+      }
+      assertTrue(System.currentTimeMillis() - start < 5000L, "Waited too long for the store");
+    }
+    finally
+    {
+      release.countDown();
+      store.close();
+    }
+  }
+
+  @Test
+  public void testCloseRace() throws Exception
+  {
+    for (int round = 0; round < 50; round++)
+    {
+      final BatchingNonceStore store = new BatchingNonceStore(new FakeNonceServer(0L));
+      final long ts = now();
+      final List<Future<Boolean>> results = new ArrayList<Future<Boolean>>();
+      final Thread adder = new Thread(new Runnable()
+      {
+        @Override
+        public void run()
+        {
+          for (int i = 0; i < 1000; i++)
+          {
+            final Future<Boolean> result = store.addAsync(new HawkNonce("dh37fgj492je", "nonce" + i, ts));
+            synchronized (results)
+            {
+              results.add(result);
+            }
+          }
+        }
+      });
+      adder.start();
+      store.close();
+      adder.join();
+      // Every nonce either went out before the close or failed, none hang
+      synchronized (results)
+      {
+        for (final Future<Boolean> result : results)
+        {
+          try
+          {
+            result.get(5, TimeUnit.SECONDS);
+          }
+          catch (ExecutionException ee)
+          {
+            // Good
+          }
+        }
+      }
+    }
+  }
+
+  /**
+   * Compare backend round trips with and without batching, with many request
+   * threads contending for the store.
+   */
+  @Test
+  public void testBatchingRoundTrips() throws Exception
+  {
+    assertEquals(countRoundTrips(1), BENCHMARK_NONCES);
+    final int batched = countRoundTrips(BatchingNonceStore.DEFAULT_MAX_BATCH_SIZE);
+    assertTrue(batched <= BENCHMARK_NONCES / 2, batched + " round trips for " + BENCHMARK_NONCES + " nonces");
+  }
+
+  private int countRoundTrips(final int maxBatchSize) throws Exception
+  {
+    final FakeNonceServer server = new FakeNonceServer(1L);
+    final BatchingNonceStore store = new BatchingNonceStore(server, maxBatchSize, BatchingNonceStore.DEFAULT_PIPELINE_DEPTH);
+    try
+    {
+      final long ts = now();
+      final Thread[] threads = new Thread[32];
+      for (int t = 0; t < threads.length; t++)
+      {
+        final int thread = t;
+        threads[t] = new Thread()
+        {
+          @Override
+          public void run()
+          {
+            for (int i = thread; i < BENCHMARK_NONCES; i += threads.length)
+            {
+              store.add(new HawkNonce("dh37fgj492je", "nonce" + i, ts));
+            }
+          }
+        };
+        threads[t].start();
+      }
+      for (final Thread thread : threads)
+      {
+        thread.join();
+      }
+      assertEquals(store.getBatchCount(), (long)server.getCalls());
+      return server.getCalls();
+    }
+    finally
+    {
+      store.close();
+    }
+  }
+}
@@ -0,0 +1,112 @@
+/*
+ *    Copyright 2013 Weald Technology Trading Limited
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ */
+
+package test.li.vin.hawk;
+
+import static org.testng.Assert.*;
+
+import org.testng.annotations.BeforeClass;
+import org.testng.annotations.Test;
+
+import li.vin.hawk.Hawk;
+import li.vin.hawk.HawkCredentials;
+import li.vin.hawk.HawkPayload;
+import li.vin.hawk.PayloadHashCache;
+
+public class PayloadHashCacheTest
+{
+  private static final String CONTENT_TYPE = "text/plain; charset=utf-8";
+
+  private HawkCredentials testcredentials1, testcredentials2;
+
+  @BeforeClass
+  public void setUp() throws Exception
+  {
+    this.testcredentials1 = new HawkCredentials.Builder()
+                                               .keyId("dh37fgj492je")
+                                               .key("werxhqb98rpaxn39848xrunpaw3489ruxnpa98w4rxn")
+                                               .algorithm(HawkCredentials.Algorithm.SHA256)
+                                               .build();
+    this.testcredentials2 = new HawkCredentials.Builder()
+                                               .keyId("kbmdu72h12xt")
+                                               .key("nzvxvljms2n239w7alsaduanpet109apbisuda0bt79")
+                                               .algorithm(HawkCredentials.Algorithm.SHA256)
+                                               .build();
+  }
+
+  @Test
+  public void testStringBodies() throws Exception
+  {
+    final PayloadHashCache cache = new PayloadHashCache();
+    final String expected = Hawk.calculateBodyMac(this.testcredentials1, CONTENT_TYPE, "Text body");
+    assertEquals(cache.calculateBodyMac(this.testcredentials1, CONTENT_TYPE, "Text body"), expected);
+    // An equal body in a different string is still a hit
+    assertEquals(cache.calculateBodyMac(this.testcredentials1, CONTENT_TYPE, new String("Text body")), expected);
+    assertEquals(cache.getHitCount(), 1L);
+
+    // Different credentials, content type or body are different hashes
+    assertEquals(cache.calculateBodyMac(this.testcredentials2, CONTENT_TYPE, "Text body"),
+                 Hawk.calculateBodyMac(this.testcredentials2, CONTENT_TYPE, "Text body"));
+    assertEquals(cache.calculateBodyMac(this.testcredentials1, "text/html", "Text body"),
+                 Hawk.calculateBodyMac(this.testcredentials1, "text/html", "Text body"));
+    assertEquals(cache.calculateBodyMac(this.testcredentials1, CONTENT_TYPE, "Text body!"),
+                 Hawk.calculateBodyMac(this.testcredentials1, CONTENT_TYPE, "Text body!"));
+    assertEquals(cache.getHitCount(), 1L);
+    assertEquals(cache.getMissCount(), 4L);
+  }
+
+  @Test
+  public void testPayloads() throws Exception
+  {
+    final PayloadHashCache cache = new PayloadHashCache();
+    final HawkPayload payload = HawkPayload.fromBytes(CONTENT_TYPE, "Text body".getBytes("UTF-8"));
+    final String expected = payload.calculateHash(this.testcredentials1);
+    assertEquals(cache.calculateHash(this.testcredentials1, payload), expected);
+    assertEquals(cache.calculateHash(this.testcredentials1, payload), expected);
+    assertEquals(cache.getHitCount(), 1L);
+  }
+
+  @Test
+  public void testEviction() throws Exception
+  {
+    final PayloadHashCache cache1 = new PayloadHashCache(2, 1000L);
+    cache1.calculateBodyMac(this.testcredentials1, CONTENT_TYPE, "one");
+    cache1.calculateBodyMac(this.testcredentials1, CONTENT_TYPE, "two");
+    cache1.calculateBodyMac(this.testcredentials1, CONTENT_TYPE, "one");
+    cache1.calculateBodyMac(this.testcredentials1, CONTENT_TYPE, "three");
+    assertEquals(cache1.size(), 2);
+    // "two" was least recently used
+    cache1.calculateBodyMac(this.testcredentials1, CONTENT_TYPE, "one");
+    assertEquals(cache1.getHitCount(), 2L);
+    cache1.calculateBodyMac(this.testcredentials1, CONTENT_TYPE, "two");
+    assertEquals(cache1.getMissCount(), 4L);
+
+    final PayloadHashCache cache2 = new PayloadHashCache(100, 10L);
+    cache2.calculateBodyMac(this.testcredentials1, CONTENT_TYPE, "123456");
+    cache2.calculateBodyMac(this.testcredentials1, CONTENT_TYPE, "abcdef");
+    assertEquals(cache2.size(), 1);
+    cache2.calculateBodyMac(this.testcredentials1, CONTENT_TYPE, "a body that is too large to cache");
+    assertEquals(cache2.size(), 1);
+
+    // Payloads are held by reference, so even one larger than the bound is cached
+    final PayloadHashCache cache3 = new PayloadHashCache(100, 1024L);
+    final HawkPayload large = HawkPayload.fromBytes(CONTENT_TYPE, new byte[64 * 1024]);
+    cache3.calculateHash(this.testcredentials1, large);
+    cache3.calculateHash(this.testcredentials1, large);
+    assertEquals(cache3.getHitCount(), 1L);
+    assertEquals(cache3.size(), 1);
+  }
+}